@@ -0,0 +1,182 @@
+package com.geekq.common.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SnowflakeIdWorkerTest {
+
+    private static final long EPOCH = 1420041600000L;
+
+    @Test
+    public void nextIdsAreIncreasingAndCarryWorkerBits() {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(3, 5);
+        long[] ids = worker.nextIds(4096);
+        for (int i = 1; i < ids.length; i++) {
+            assertTrue(ids[i] > ids[i - 1]);
+        }
+        for (long id : ids) {
+            assertEquals(3, (id >> 12) & 31);
+            assertEquals(5, (id >> 17) & 31);
+        }
+        assertTrue(worker.nextId() > ids[ids.length - 1]);
+    }
+
+    @Test
+    public void sequenceOverflowBorrowsNextMillisecond() {
+        ManualClockWorker worker = new ManualClockWorker(1000, 0);
+        worker.now.set(EPOCH + 10);
+        long[] first = worker.nextIds(4096);
+        long[] second = worker.nextIds(10);
+        assertEquals(10, first[0] >>> 22);
+        assertEquals(4095, first[4095] & 4095);
+        // 时钟没走，序列用完后借下一毫秒
+        assertEquals(11, second[0] >>> 22);
+        assertEquals(0, second[0] & 4095);
+    }
+
+    @Test
+    public void concurrentNextIdsAreUnique() throws Exception {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(1, 1);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        int threads = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        AtomicLong generated = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            int batch = t % 2 == 0 ? 1 : 37;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 2000; i++) {
+                    for (long id : worker.nextIds(batch)) {
+                        ids.add(id);
+                        generated.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            workers.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        assertEquals(generated.get(), ids.size());
+    }
+
+    @Test
+    public void smallRollbackBorrowsFromFuture() {
+        ManualClockWorker worker = new ManualClockWorker(1000, 0);
+        worker.now.set(EPOCH + 5000);
+        long before = worker.nextId();
+        worker.now.set(EPOCH + 4500);
+        long after = worker.nextId();
+        assertTrue(after > before);
+        assertEquals(5000, after >>> 22);
+    }
+
+    @Test
+    public void rollbackBeyondBorrowLimitIsRefused() {
+        ManualClockWorker worker = new ManualClockWorker(1000, 0);
+        worker.now.set(EPOCH + 5000);
+        worker.nextId();
+        worker.now.set(EPOCH + 3000);
+        try {
+            worker.nextId();
+            fail("回拨超过可借范围应该拒绝");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rollbackAtBorrowLimitWaitsForClock() throws Exception {
+        ManualClockWorker worker = new ManualClockWorker(10, 1000);
+        worker.now.set(EPOCH + 100);
+        // 借满 10 毫秒
+        for (int i = 0; i < 11; i++) {
+            worker.nextIds(4096);
+        }
+        // 回拨 5 毫秒，超出可借范围，时钟 50 毫秒后追上来
+        worker.now.set(EPOCH + 95);
+        Thread clock = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            worker.now.set(EPOCH + 110);
+        });
+        clock.start();
+        long id = worker.nextId();
+        clock.join();
+        assertTrue((id >>> 22) >= 110);
+    }
+
+    @Test
+    public void rollbackAtBorrowLimitFailsAfterWaitBound() {
+        ManualClockWorker worker = new ManualClockWorker(10, 20);
+        worker.now.set(EPOCH + 100);
+        for (int i = 0; i < 11; i++) {
+            worker.nextIds(4096);
+        }
+        worker.now.set(EPOCH + 95);
+        long start = System.nanoTime();
+        try {
+            worker.nextId();
+            fail("时钟一直没追上应该拒绝");
+        } catch (IllegalStateException e) {
+            long waited = (System.nanoTime() - start) / 1000000;
+            assertTrue("waited " + waited, waited >= 15 && waited < 1000);
+        }
+    }
+
+    @Test
+    public void rejectsInvalidArguments() {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(0, 0);
+        for (int count : new int[]{0, 4097}) {
+            try {
+                worker.nextIds(count);
+                fail("count 越界应该拒绝");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            new SnowflakeIdWorker(32, 0);
+            fail("workerId 越界应该拒绝");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * 时钟由测试控制
+     */
+    private static class ManualClockWorker extends SnowflakeIdWorker {
+
+        private final AtomicLong now = new AtomicLong(EPOCH);
+
+        private ManualClockWorker(long maxBorrowMillis, long maxWaitMillis) {
+            super(1, 1, maxBorrowMillis, maxWaitMillis);
+        }
+
+        @Override
+        protected long timeGen() {
+            return now.get();
+        }
+    }
+}
@@ -18,6 +18,7 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.OutputStream;
+import java.util.function.Supplier;
 
 import static com.geekq.miaosha.common.enums.ResultStatus.ACCESS_LIMIT_REACHED;
 import static com.geekq.miaosha.common.enums.ResultStatus.SESSION_ERROR;
@@ -73,13 +74,20 @@ public class AccessInterceptor extends HandlerInterceptorAdapter {
             } else {
                 //do nothing
             }
+            // 窗口内第一次访问时建计数 key 并设置过期，再自增，一次 pipeline 完成
             AccessKey ak = AccessKey.withExpire(seconds);
-            Integer count = redisService.get(ak, key, Integer.class);
-            if (count == null) {
-                redisService.set(ak, key, 1);
-            } else if (count < maxCount) {
-                redisService.incr(ak, key);
-            } else {
+            String accessKey = key;
+            long[] countAndTtl = redisService.pipelineGet(batch -> {
+                batch.setIfAbsent(ak, accessKey, 0);
+                Supplier<Long> count = batch.incr(ak, accessKey);
+                Supplier<Long> ttl = batch.ttl(ak, accessKey);
+                return () -> new long[]{count.get(), ttl.get()};
+            });
+            // key 恰好在两条命令之间过期时自增会建出不过期的 key，补上过期时间
+            if (countAndTtl[1] == -1) {
+                redisService.expire(ak.getPrefix() + key, seconds);
+            }
+            if (countAndTtl[0] > maxCount) {
                 render(response, ACCESS_LIMIT_REACHED);
                 return false;
             }
@@ -1,13 +1,18 @@
 package com.geekq.miaosha.common;
 
 public class Constanst {
-    public static String CLOSE_ORDER_INFO_TASK_LOCK = "CLOSE_ORDER_INFO_KEY";
-
     public static String COUNTLOGIN = "count:login";
 
 
     public enum orderStaus {
-        ORDER_NOT_PAY("新建未支付");
+        // 顺序即 order_info.status 的取值
+        ORDER_NOT_PAY("新建未支付"),
+        ORDER_PAID("已支付"),
+        ORDER_SHIPPED("已发货"),
+        ORDER_RECEIVED("已收货"),
+        ORDER_REFUNDED("已退款"),
+        ORDER_FINISHED("已完成"),
+        ORDER_CLOSED("超时关闭");
 
         private String name;
 
@@ -0,0 +1,167 @@
+package com.geekq.miaosha.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 分层时间轮
+ * 第一层每格 tickMillis，一圈 tickMillis * wheelSize；超出一圈的任务放进上一层(每格是下一层的一圈)，
+ * 时间推进到某一格时把格里的任务重新放回时间轮：到期的取出，没到期的降到下一层。
+ * 第一层的格子在格子结束时到期，任务不会早于 expireAt 取出，最多晚一格。
+ * 只有非空的格子进优先队列，推进时间不用逐格空转
+ */
+public class TimingWheel<T> {
+
+    private final Level root;
+
+    /**
+     * 非空的格子，按到期时间排序；同时到期的先处理下层，上层降下来的任务才不会落进下层还没处理的格子
+     */
+    private final PriorityQueue<Bucket<T>> queue = new PriorityQueue<Bucket<T>>((a, b) -> a.expiration != b.expiration
+            ? Long.compare(a.expiration, b.expiration) : Integer.compare(a.level, b.level));
+
+    private int size;
+
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        if (tickMillis <= 0 || wheelSize <= 1) {
+            throw new IllegalArgumentException("tickMillis must be positive and wheelSize greater than 1");
+        }
+        this.root = new Level(tickMillis, wheelSize, startMillis, 0);
+    }
+
+    /**
+     * 加入任务
+     *
+     * @return false 表示已经到期，没有加入
+     */
+    public synchronized boolean add(T item, long expireAt) {
+        if (!root.add(new Entry<T>(item, expireAt))) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * 推进到 now，取出所有到期的任务
+     */
+    public synchronized List<T> poll(long now) {
+        List<T> expired = new ArrayList<T>();
+        Bucket<T> bucket;
+        while ((bucket = queue.peek()) != null && bucket.expiration <= now) {
+            queue.poll();
+            root.advance(bucket.expiration);
+            List<Entry<T>> entries = bucket.flush();
+            for (Entry<T> entry : entries) {
+                if (!root.add(entry)) {
+                    expired.add(entry.item);
+                    size--;
+                }
+            }
+        }
+        root.advance(now);
+        return expired;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private class Level {
+
+        private final long tickMillis;
+
+        private final int wheelSize;
+
+        private final long interval;
+
+        private final List<Bucket<T>> buckets;
+
+        /**
+         * 第几层，上层的格子到期时只是把任务降到下一层
+         */
+        private final int level;
+
+        private long currentTime;
+
+        private Level overflow;
+
+        private Level(long tickMillis, int wheelSize, long startMillis, int level) {
+            this.tickMillis = tickMillis;
+            this.wheelSize = wheelSize;
+            this.level = level;
+            this.interval = tickMillis * wheelSize;
+            this.currentTime = startMillis - startMillis % tickMillis;
+            this.buckets = new ArrayList<Bucket<T>>(wheelSize);
+            for (int i = 0; i < wheelSize; i++) {
+                buckets.add(new Bucket<T>(level));
+            }
+        }
+
+        private boolean add(Entry<T> entry) {
+            if (entry.expireAt <= currentTime) {
+                return false;
+            }
+            // 第一层放进结束时间不早于 expireAt 的格子，上层放进所在的格子
+            boolean upper = level > 0;
+            long virtualId = upper ? entry.expireAt / tickMillis : (entry.expireAt + tickMillis - 1) / tickMillis;
+            long bucketTime = virtualId * tickMillis;
+            if (upper ? bucketTime < currentTime + interval : bucketTime <= currentTime + interval) {
+                Bucket<T> bucket = buckets.get((int) (virtualId % wheelSize));
+                bucket.entries.add(entry);
+                // 格子复用到新一圈时重新排队
+                if (bucket.expiration != bucketTime) {
+                    bucket.expiration = bucketTime;
+                    queue.offer(bucket);
+                }
+                return true;
+            }
+            if (overflow == null) {
+                overflow = new Level(interval, wheelSize, currentTime, level + 1);
+            }
+            return overflow.add(entry);
+        }
+
+        private void advance(long time) {
+            if (time >= currentTime + tickMillis) {
+                currentTime = time - time % tickMillis;
+                if (overflow != null) {
+                    overflow.advance(currentTime);
+                }
+            }
+        }
+    }
+
+    private static class Bucket<T> {
+
+        private final List<Entry<T>> entries = new ArrayList<Entry<T>>();
+
+        private final int level;
+
+        private long expiration = -1;
+
+        private Bucket(int level) {
+            this.level = level;
+        }
+
+        private List<Entry<T>> flush() {
+            List<Entry<T>> flushed = new ArrayList<Entry<T>>(entries);
+            entries.clear();
+            expiration = -1;
+            return flushed;
+        }
+    }
+
+    private static class Entry<T> {
+
+        private final T item;
+
+        private final long expireAt;
+
+        private Entry(T item, long expireAt) {
+            this.item = item;
+            this.expireAt = expireAt;
+        }
+    }
+}
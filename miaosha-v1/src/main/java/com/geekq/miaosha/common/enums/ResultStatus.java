@@ -57,7 +57,8 @@ public enum ResultStatus {
      */
     MIAO_SHA_OVER(40001, "商品已经秒杀完毕"),
     REPEATE_MIAOSHA(40002, "不能重复秒杀"),
-    MIAOSHA_FAIL(40003, "秒杀失败");
+    MIAOSHA_FAIL(40003, "秒杀失败"),
+    MIAOSHA_BUSY(40004, "系统繁忙，请稍后再试");
 
     /**
      * 商品模块
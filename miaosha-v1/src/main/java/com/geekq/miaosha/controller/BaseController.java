@@ -2,6 +2,7 @@ package com.geekq.miaosha.controller;
 
 import com.geekq.miaosha.redis.KeyPrefix;
 import com.geekq.miaosha.redis.RedisService;
+import com.geekq.miaosha.redis.SingleFlightLoader;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -13,6 +14,7 @@ import org.thymeleaf.spring5.view.ThymeleafViewResolver;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 @Controller
 public class BaseController {
@@ -22,16 +24,25 @@ public class BaseController {
     ThymeleafViewResolver thymeleafViewResolver;
     @Autowired
     RedisService redisService;
+    @Autowired
+    SingleFlightLoader singleFlightLoader;
     //加一个配置项
     @Value("#{'${pageCache.enbale}'}")
     private boolean pageCacheEnable;
 
     public static void out(HttpServletResponse res, String html) {
+        out(res, html.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 页面缓存里存的就是 UTF-8 字节，直接写出
+     */
+    public static void out(HttpServletResponse res, byte[] html) {
         res.setContentType("text/html");
         res.setCharacterEncoding("UTF-8");
         try {
             OutputStream out = res.getOutputStream();
-            out.write(html.getBytes("UTF-8"));
+            out.write(html);
             out.flush();
             out.close();
         } catch (Exception e) {
@@ -46,7 +57,7 @@ public class BaseController {
      *    - 通过Redis实现页面级缓存，提高页面加载速度
      *    - 使用配置项 pageCache.enbale 控制是否启用页面缓存功能
      *    - 当缓存启用时，先尝试从Redis获取已缓存的页面内容，如果存在则直接返回
-     *    - 如果缓存不存在，则手动渲染页面并将结果存入Redis缓存
+     *    - 如果缓存不存在，则手动渲染页面并将结果存入Redis缓存，同一页面并发缺失时只渲染一次
      * 2. 2.
      *    页面渲染 ：
      *    - 提供 render 方法，用于渲染Thymeleaf模板
@@ -64,21 +75,29 @@ public class BaseController {
      * @return
      */
     public String render(HttpServletRequest request, HttpServletResponse response, Model model, String tplName, KeyPrefix prefix, String key) {
+        return render(request, response, model, tplName, prefix, key, () -> {
+        });
+    }
+
+    /**
+     * prepareModel 只在需要渲染时执行，命中缓存时不查库
+     */
+    public String render(HttpServletRequest request, HttpServletResponse response, Model model, String tplName,
+                         KeyPrefix prefix, String key, Runnable prepareModel) {
         if (!pageCacheEnable) {
+            prepareModel.run();
             return tplName;
         }
-        //取缓存
-        String html = redisService.get(prefix, key, String.class);
-        if (!StringUtils.isEmpty(html)) {
-            out(response, html);
-            return null;
-        }
-        //手动渲染
-        WebContext ctx = new WebContext(request, response,
-                request.getServletContext(), request.getLocale(), model.asMap());
-        html = thymeleafViewResolver.getTemplateEngine().process(tplName, ctx);
-        if (!StringUtils.isEmpty(html)) {
-            redisService.set(prefix, key, html);
+        //取缓存，缺失时手动渲染
+        byte[] html = singleFlightLoader.get(prefix, key, byte[].class, () -> {
+            prepareModel.run();
+            WebContext ctx = new WebContext(request, response,
+                    request.getServletContext(), request.getLocale(), model.asMap());
+            String page = thymeleafViewResolver.getTemplateEngine().process(tplName, ctx);
+            return StringUtils.isEmpty(page) ? null : page.getBytes(StandardCharsets.UTF_8);
+        });
+        if (html == null) {
+            return tplName;
         }
         out(response, html);
         return null;
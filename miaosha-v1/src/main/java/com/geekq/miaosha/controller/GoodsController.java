@@ -8,7 +8,6 @@ import com.geekq.miaosha.service.GoodsService;
 import com.geekq.miaosha.service.MiaoShaUserService;
 import com.geekq.miaosha.vo.GoodsDetailVo;
 import com.geekq.miaosha.vo.GoodsVo;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,7 +22,6 @@ import org.thymeleaf.spring5.view.ThymeleafViewResolver;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.List;
 
 @Controller
 @RequestMapping("/goods")
@@ -49,10 +47,9 @@ public class GoodsController extends BaseController {
     @ResponseBody
     public String list(HttpServletRequest request, HttpServletResponse response, Model model, MiaoshaUser user) {
         model.addAttribute("user", user);
-        List<GoodsVo> goodsList = goodsService.listGoodsVo();
-        model.addAttribute("goodsList", goodsList);
-        // 商品列表 页面级 缓存
-        return render(request, response, model, "goods_list", GoodsKey.getGoodsList, "");
+        // 商品列表 页面级 缓存，只有渲染时才查商品
+        return render(request, response, model, "goods_list", GoodsKey.getGoodsList, "",
+                () -> model.addAttribute("goodsList", goodsService.listGoodsVo()));
     }
 
     @RequestMapping(value = "/to_detail2/{goodsId}", produces = "text/html")
@@ -60,33 +57,29 @@ public class GoodsController extends BaseController {
     public String detail2(HttpServletRequest request, HttpServletResponse response, Model model, MiaoshaUser user,
                           @PathVariable("goodsId") long goodsId) {
         model.addAttribute("user", user);
-        //取缓存
-        String html = redisService.get(GoodsKey.getGoodsDetail, "" + goodsId, String.class);
-        if (!StringUtils.isEmpty(html)) {
-            return html;
-        }
-        //手动渲染
-        GoodsVo goods = goodsService.getGoodsVoByGoodsId(goodsId);
-        model.addAttribute("goods", goods);
+        //取缓存，缺失时手动渲染
+        return render(request, response, model, "goods_detail", GoodsKey.getGoodsDetail, "" + goodsId, () -> {
+            GoodsVo goods = goodsService.getGoodsVoByGoodsId(goodsId);
+            model.addAttribute("goods", goods);
 
-        long startAt = goods.getStartDate().getTime();
-        long endAt = goods.getEndDate().getTime();
-        long now = System.currentTimeMillis();
+            long startAt = goods.getStartDate().getTime();
+            long endAt = goods.getEndDate().getTime();
+            long now = System.currentTimeMillis();
 
-        // 秒杀商品详情查询，计算 秒杀状态，秒杀倒计时
-        int miaoshaStatus = 0;
-        int remainSeconds = 0;
-        if (now < startAt) {//秒杀还没开始，倒计时
-            remainSeconds = (int) ((startAt - now) / 1000);
-        } else if (now > endAt) {//秒杀已经结束
-            miaoshaStatus = 2;
-            remainSeconds = -1;
-        } else {//秒杀进行中
-            miaoshaStatus = 1;
-        }
-        model.addAttribute("miaoshaStatus", miaoshaStatus);
-        model.addAttribute("remainSeconds", remainSeconds);
-        return "goods_detail";
+            // 秒杀商品详情查询，计算 秒杀状态，秒杀倒计时
+            int miaoshaStatus = 0;
+            int remainSeconds = 0;
+            if (now < startAt) {//秒杀还没开始，倒计时
+                remainSeconds = (int) ((startAt - now) / 1000);
+            } else if (now > endAt) {//秒杀已经结束
+                miaoshaStatus = 2;
+                remainSeconds = -1;
+            } else {//秒杀进行中
+                miaoshaStatus = 1;
+            }
+            model.addAttribute("miaoshaStatus", miaoshaStatus);
+            model.addAttribute("remainSeconds", remainSeconds);
+        });
     }
 
     /**
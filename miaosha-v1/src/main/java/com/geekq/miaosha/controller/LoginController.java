@@ -27,13 +27,15 @@ public class LoginController {
     @Autowired
     private MiaoShaUserService userService;
 
+    @Autowired
+    private RedisLua redisLua;
+
     @Reference
     @RequestMapping("/to_login")
     public String tologin(LoginVo loginVo, Model model) {
         logger.info(loginVo.toString());
         //未完成
-        RedisLua.vistorCount(COUNTLOGIN);
-        String count = RedisLua.getVistorCount(COUNTLOGIN).toString();
+        String count = String.valueOf(redisLua.vistorCount(COUNTLOGIN));
         logger.info("访问网站的次数为:{}", count);
         model.addAttribute("count", count);
         return "login";
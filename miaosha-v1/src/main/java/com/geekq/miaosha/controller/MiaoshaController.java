@@ -2,16 +2,18 @@ package com.geekq.miaosha.controller;
 
 import com.geekq.miaosha.access.AccessLimit;
 import com.geekq.miaosha.common.resultbean.ResultGeekQ;
-import com.geekq.miaosha.domain.MiaoshaOrder;
 import com.geekq.miaosha.domain.MiaoshaUser;
 import com.geekq.miaosha.rabbitmq.MQSender;
 import com.geekq.miaosha.rabbitmq.MiaoshaMessage;
 import com.geekq.miaosha.redis.GoodsKey;
 import com.geekq.miaosha.redis.RedisService;
+import com.geekq.miaosha.service.GoodsOverRegistry;
 import com.geekq.miaosha.service.GoodsService;
 import com.geekq.miaosha.service.MiaoShaUserService;
 import com.geekq.miaosha.service.MiaoshaService;
 import com.geekq.miaosha.service.OrderService;
+import com.geekq.miaosha.service.StockLeaseService;
+import com.geekq.miaosha.service.StockShardService;
 import com.geekq.miaosha.vo.GoodsVo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +30,7 @@ import java.awt.image.BufferedImage;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.geekq.miaosha.common.enums.ResultStatus.*;
 
@@ -55,7 +58,14 @@ public class MiaoshaController implements InitializingBean {
     @Autowired
     MQSender mqSender;
 
-    private HashMap<Long, Boolean> localOverMap = new HashMap<Long, Boolean>();
+    @Autowired
+    GoodsOverRegistry goodsOverRegistry;
+
+    @Autowired
+    StockShardService stockShardService;
+
+    @Autowired
+    StockLeaseService stockLeaseService;
 
     /**
      * QPS:1306
@@ -73,12 +83,6 @@ public class MiaoshaController implements InitializingBean {
             result.withError(SESSION_ERROR.getCode(), SESSION_ERROR.getMessage());
             return result;
         }
-        //验证path
-        boolean check = miaoshaService.checkPath(user, goodsId, path);
-        if (!check) {
-            result.withError(REQUEST_ILLEGAL.getCode(), REQUEST_ILLEGAL.getMessage());
-            return result;
-        }
 //		//使用RateLimiter 限流
 //		RateLimiter rateLimiter = RateLimiter.create(10);
 //		//判断能否在1秒内得到令牌，如果不能则立即返回false，不会阻塞程序
@@ -88,34 +92,39 @@ public class MiaoshaController implements InitializingBean {
 //
 //		}
 
-        //是否已经秒杀到
-        // key userId goodsId； value 秒杀订单
-        // 从 redis 查询 秒杀订单，查询到则返回 不能重复秒杀
-        MiaoshaOrder order = orderService.getMiaoshaOrderByUserIdGoodsId(Long.valueOf(user.getNickname()), goodsId);
-        if (order != null) {
+        //内存标记，减少redis访问
+        // 内存级别判断 商品是否已经秒杀完毕，售罄标记由 redis 广播同步到所有节点；本节点租约里还有库存时先卖租约
+        if (goodsOverRegistry.isOver(goodsId) && !stockLeaseService.hasLocalStock(goodsId)) {
+            result.withError(MIAO_SHA_OVER.getCode(), MIAO_SHA_OVER.getMessage());
+            return result;
+        }
+        // 验证path + 是否已经秒杀到 + redis 预减库存，lua 脚本一次往返原子完成
+        // 同一用户并发请求只有一个能通过购买标记，不会重复减库存
+        int admission = miaoshaService.admission(user, goodsId, path);
+        if (admission == MiaoshaService.ADMISSION_PATH_ILLEGAL) {
+            result.withError(REQUEST_ILLEGAL.getCode(), REQUEST_ILLEGAL.getMessage());
+            return result;
+        }
+        if (admission == MiaoshaService.ADMISSION_REPEATE) {
             result.withError(REPEATE_MIAOSHA.getCode(), REPEATE_MIAOSHA.getMessage());
             return result;
         }
-        //内存标记，减少redis访问
-        // 内存级别判断 商品是否已经秒杀完毕
-        boolean over = localOverMap.get(goodsId);
-        if (over) {
-            result.withError(MIAO_SHA_OVER.getCode(), MIAO_SHA_OVER.getMessage());
+        // 扣减库存超时、redis 异常或其他节点还有库存租约，不能标记售罄
+        if (admission == MiaoshaService.ADMISSION_BUSY) {
+            result.withError(MIAOSHA_BUSY.getCode(), MIAOSHA_BUSY.getMessage());
             return result;
         }
-        //预见库存
-        // redis 减库存
-        Long stock = redisService.decr(GoodsKey.getMiaoshaGoodsStock, "" + goodsId);
-        // 如果结果小于0，说明已经卖完，内存级别设置秒杀结束
-        if (stock < 0) {
-            localOverMap.put(goodsId, true);
+        // 库存已卖完，内存级别设置秒杀结束并通知其他节点；
+        // 开启库存租约时只有 redis 总库存为 0 且没有节点持有租约才会走到这里
+        if (admission == MiaoshaService.ADMISSION_OVER) {
+            goodsOverRegistry.markOver(goodsId);
             result.withError(MIAO_SHA_OVER.getCode(), MIAO_SHA_OVER.getMessage());
             return result;
         }
         // 发送 异步消息，异步创建订单
         MiaoshaMessage mm = new MiaoshaMessage();
         mm.setGoodsId(goodsId);
-        mm.setUser(user);
+        mm.setUserId(Long.valueOf(user.getNickname()));
         mqSender.sendMiaoshaMessage(mm);
         return result;
     }
@@ -221,9 +230,13 @@ public class MiaoshaController implements InitializingBean {
         if (goodsList == null) {
             return;
         }
+        Map<String, Integer> stocks = new HashMap<String, Integer>();
         for (GoodsVo goods : goodsList) {
-            redisService.set(GoodsKey.getMiaoshaGoodsStock, "" + goods.getId(), goods.getStockCount());
-            localOverMap.put(goods.getId(), false);
+            stocks.put("" + goods.getId(), goods.getStockCount());
+            // 热点商品按 stock_shards 把库存分散到多个 key
+            stockShardService.init(goods);
         }
+        // 所有商品库存一次 MSET 写入
+        redisService.mset(GoodsKey.getMiaoshaGoodsStock, stocks);
     }
 }
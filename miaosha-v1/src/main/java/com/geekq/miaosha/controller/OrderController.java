@@ -50,7 +50,7 @@ public class OrderController {
             return result;
         }
         long goodsId = order.getGoodsId();
-        GoodsVo goods = goodsService.getGoodsVoByGoodsId(goodsId);
+        GoodsVo goods = goodsService.getGoodsSnapshot(goodsId);
         OrderDetailVo vo = new OrderDetailVo();
         vo.setOrder(order);
         vo.setGoods(goods);
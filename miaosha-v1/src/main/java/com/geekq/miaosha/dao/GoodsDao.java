@@ -12,14 +12,29 @@ import java.util.List;
 @Mapper
 public interface GoodsDao {
 
-    @Select("select g.*,mg.stock_count, mg.start_date, mg.end_date,mg.miaosha_price from miaosha_goods mg left join goods g on mg.goods_id = g.id")
+    @Select("select g.*,mg.stock_count, mg.start_date, mg.end_date,mg.miaosha_price,mg.stock_shards from miaosha_goods mg left join goods g on mg.goods_id = g.id")
     public List<GoodsVo> listGoodsVo();
 
-    @Select("select g.*,mg.stock_count, mg.start_date, mg.end_date,mg.miaosha_price from miaosha_goods mg left join goods g on mg.goods_id = g.id where g.id = #{goodsId}")
+    @Select("select g.*,mg.stock_count, mg.start_date, mg.end_date,mg.miaosha_price,mg.stock_shards from miaosha_goods mg left join goods g on mg.goods_id = g.id where g.id = #{goodsId}")
     public GoodsVo getGoodsVoByGoodsId(@Param("goodsId") long goodsId);
 
     // 判断 库存大于0 才减库存
     @Update("update miaosha_goods set stock_count = stock_count - 1 where goods_id = #{goodsId} and stock_count > 0")
     public int reduceStock(MiaoshaGoods g);
 
+    @Select("select stock_count from miaosha_goods where goods_id = #{goodsId}")
+    public Integer getStockCount(@Param("goodsId") long goodsId);
+
+    // 锁住库存行，之后在同一事务里按实际库存扣减
+    @Select("select stock_count from miaosha_goods where goods_id = #{goodsId} for update")
+    public Integer getStockCountForUpdate(@Param("goodsId") long goodsId);
+
+    // 批量下单：库存足够才扣减
+    @Update("update miaosha_goods set stock_count = stock_count - #{count} where goods_id = #{goodsId} and stock_count >= #{count}")
+    public int reduceStockCount(@Param("goodsId") long goodsId, @Param("count") int count);
+
+    // 订单关闭退回库存
+    @Update("update miaosha_goods set stock_count = stock_count + #{count} where goods_id = #{goodsId}")
+    public int returnStock(@Param("goodsId") long goodsId, @Param("count") int count);
+
 }
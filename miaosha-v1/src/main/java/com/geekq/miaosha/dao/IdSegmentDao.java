@@ -0,0 +1,23 @@
+package com.geekq.miaosha.dao;
+
+import com.geekq.miaosha.domain.IdSegment;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+@Mapper
+public interface IdSegmentDao {
+
+    // 号段不存在时从订单表当前最大 id 开始
+    @Insert("insert ignore into id_segment(biz_tag, max_id, step, update_time) "
+            + "select #{bizTag}, coalesce(max(id), 0), #{step}, now() from order_info")
+    public int initOrderSegment(@Param("bizTag") String bizTag, @Param("step") int step);
+
+    @Update("update id_segment set max_id = max_id + step, update_time = now() where biz_tag = #{bizTag}")
+    public int updateMaxId(@Param("bizTag") String bizTag);
+
+    @Select("select * from id_segment where biz_tag = #{bizTag}")
+    public IdSegment getIdSegment(@Param("bizTag") String bizTag);
+}
@@ -12,20 +12,41 @@ public interface OrderDao {
     @Select("select * from miaosha_order where user_id=#{userNickName} and goods_id=#{goodsId}")
     public MiaoshaOrder getMiaoshaOrderByUserIdGoodsId(@Param("userNickName") long userNickName, @Param("goodsId") long goodsId);
 
-    @Insert("insert into order_info(user_id, goods_id, goods_name, goods_count, goods_price, order_channel, status, create_date)values("
-            + "#{userId}, #{goodsId}, #{goodsName}, #{goodsCount}, #{goodsPrice}, #{orderChannel},#{status},#{createDate} )")
-    @SelectKey(keyColumn = "id", keyProperty = "id", resultType = long.class, before = false, statement = "select last_insert_id()")
-    public long insert(OrderInfo orderInfo);
+    // 订单 id 由 OrderIdService 按号段分配
+    @Insert("insert into order_info(id, user_id, goods_id, goods_name, goods_count, goods_price, order_channel, status, create_date)values("
+            + "#{id}, #{userId}, #{goodsId}, #{goodsName}, #{goodsCount}, #{goodsPrice}, #{orderChannel},#{status},#{createDate} )")
+    public int insert(OrderInfo orderInfo);
 
     @Insert("insert into miaosha_order (user_id, goods_id, order_id)values(#{userId}, #{goodsId}, #{orderId})")
     public int insertMiaoshaOrder(MiaoshaOrder miaoshaOrder);
 
+    @Insert("<script>insert into order_info(id, user_id, goods_id, goods_name, goods_count, goods_price, order_channel, status, create_date)values"
+            + "<foreach collection='orders' item='o' separator=','>"
+            + "(#{o.id}, #{o.userId}, #{o.goodsId}, #{o.goodsName}, #{o.goodsCount}, #{o.goodsPrice}, #{o.orderChannel},#{o.status},#{o.createDate})"
+            + "</foreach></script>")
+    public int insertBatch(@Param("orders") List<OrderInfo> orders);
+
+    @Insert("<script>insert into miaosha_order (user_id, goods_id, order_id)values"
+            + "<foreach collection='orders' item='o' separator=','>(#{o.userId}, #{o.goodsId}, #{o.orderId})</foreach></script>")
+    public int insertMiaoshaOrderBatch(@Param("orders") List<MiaoshaOrder> orders);
+
+    @Select("<script>select user_id from miaosha_order where goods_id=#{goodsId} and user_id in "
+            + "<foreach collection='userIds' item='userId' open='(' separator=',' close=')'>#{userId}</foreach></script>")
+    public List<Long> listMiaoshaOrderUserIds(@Param("goodsId") long goodsId, @Param("userIds") List<Long> userIds);
+
     @Select("select * from order_info where id = #{orderId}")
     public OrderInfo getOrderById(@Param("orderId") long orderId);
 
-    @Select("select * from order_info where status=#{status} and create_Date<=#{createDate}")
-    public List<OrderInfo> selectOrderStatusByCreateTime(@Param("status") Integer status, @Param("createDate") String createDate);
+    // 锁住仍是该状态的订单，关单和退库存在同一事务里
+    @Select("<script>select * from order_info where status=#{status} and id in "
+            + "<foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach> for update</script>")
+    public List<OrderInfo> listOrdersByStatusForUpdate(@Param("ids") List<Long> ids, @Param("status") int status);
+
+    @Update("<script>update order_info set status=#{toStatus} where status=#{fromStatus} and id in "
+            + "<foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach></script>")
+    public int updateOrderStatus(@Param("ids") List<Long> ids, @Param("fromStatus") int fromStatus, @Param("toStatus") int toStatus);
 
-    @Select("update order_info set status=0 where id=#{id}")
-    public int closeOrderByOrderInfo();
+    @Delete("<script>delete from miaosha_order where order_id in "
+            + "<foreach collection='orderIds' item='orderId' open='(' separator=',' close=')'>#{orderId}</foreach></script>")
+    public int deleteMiaoshaOrders(@Param("orderIds") List<Long> orderIds);
 }
@@ -0,0 +1,19 @@
+package com.geekq.miaosha.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.Date;
+
+@Setter
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class IdSegment {
+    private String bizTag;
+    private Long maxId;
+    private Integer step;
+    private Date updateTime;
+}
@@ -17,4 +17,5 @@ public class MiaoshaGoods {
     private Integer stockCount;
     private Date startDate;
     private Date endDate;
+    private Integer stockShards;
 }
@@ -0,0 +1,199 @@
+package com.geekq.miaosha.rabbitmq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀队列消费者数/prefetch 自适应(AIMD)
+ * 定时采样队列积压和下单事务耗时：耗时超过阈值说明数据库扛不住，消费者数和 prefetch 减半；
+ * 耗时正常且积压超过阈值则消费者数加一、prefetch 加一；否则保持。
+ * prefetch 对之后新建的消费者生效，消费者数变化时逐步收敛。
+ * 分区模式下主队列只做转发，分区队列固定单线程消费，不调整
+ */
+@Component
+public class AdaptiveConsumerTuner {
+
+    /**
+     * 主队列监听器 id，见 MQReceiver
+     */
+    public static final String RECEIVER_ID = "miaoshaReceiver";
+    public static final String BATCH_RECEIVER_ID = "miaoshaBatchReceiver";
+
+    private static Logger log = LoggerFactory.getLogger(AdaptiveConsumerTuner.class);
+
+    @Autowired
+    RabbitListenerEndpointRegistry registry;
+
+    @Autowired
+    AmqpAdmin amqpAdmin;
+
+    @Value("${miaosha.mq.adaptive.enable:false}")
+    private boolean enable;
+
+    @Value("${miaosha.mq.adaptive.min-consumers:1}")
+    private int minConsumers;
+
+    @Value("${miaosha.mq.adaptive.max-consumers:16}")
+    private int maxConsumers;
+
+    @Value("${miaosha.mq.adaptive.max-prefetch:50}")
+    private int maxPrefetch;
+
+    /**
+     * 积压超过多少条时扩容
+     */
+    @Value("${miaosha.mq.adaptive.lag-threshold:1000}")
+    private long lagThreshold;
+
+    /**
+     * 单笔下单平均耗时超过多少毫秒时缩容
+     */
+    @Value("${miaosha.mq.adaptive.max-latency:200}")
+    private long maxLatencyMillis;
+
+    @Value("${miaosha.mq.partition.enable:false}")
+    private boolean partitionEnable;
+
+    @Value("${miaosha.order.batch.size:100}")
+    private int batchSize;
+
+    /**
+     * 容器启动时的消费者数和 prefetch，首次调整以此为起点
+     */
+    @Value("${spring.rabbitmq.listener.simple.max-concurrency:1}")
+    private int initialConsumers;
+
+    @Value("${spring.rabbitmq.listener.simple.prefetch:250}")
+    private int initialPrefetch;
+
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong latencyCount = new AtomicLong();
+
+    private final AtomicLong increases = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+
+    private volatile int consumers;
+    private volatile int prefetch;
+    private volatile long lastDepth;
+    private volatile long lastLatencyMillis;
+    private volatile String lastDecision = "hold";
+
+    /**
+     * 记录单笔下单事务耗时
+     */
+    public void recordLatency(long nanos) {
+        if (enable) {
+            latencyNanos.addAndGet(nanos);
+            latencyCount.incrementAndGet();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${miaosha.mq.adaptive.interval:5000}")
+    public void tune() {
+        if (!enable || partitionEnable) {
+            return;
+        }
+        SimpleMessageListenerContainer container = runningContainer();
+        if (container == null) {
+            return;
+        }
+        QueueInformation info = amqpAdmin.getQueueInfo(MQConfig.MIAOSHA_QUEUE);
+        long depth = info == null ? 0 : info.getMessageCount();
+        long count = latencyCount.getAndSet(0);
+        long nanos = latencyNanos.getAndSet(0);
+        long latencyMillis = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos / count);
+
+        // 批量容器的 prefetch 跟批大小绑定，不调整
+        boolean batch = BATCH_RECEIVER_ID.equals(container.getListenerId());
+        if (consumers == 0) {
+            consumers = Math.min(maxConsumers, Math.max(Math.max(minConsumers, 1), initialConsumers));
+            prefetch = batch ? batchSize : Math.min(maxPrefetch, Math.max(1, initialPrefetch));
+        }
+        int nextConsumers = consumers;
+        int nextPrefetch = prefetch;
+        String decision;
+        if (latencyMillis > maxLatencyMillis) {
+            nextConsumers = Math.max(minConsumers, consumers / 2);
+            nextPrefetch = Math.max(1, prefetch / 2);
+            decision = "decrease";
+        } else if (depth > lagThreshold) {
+            nextConsumers = Math.min(maxConsumers, consumers + 1);
+            nextPrefetch = Math.min(maxPrefetch, prefetch + 1);
+            decision = "increase";
+        } else {
+            decision = "hold";
+        }
+        if (batch) {
+            nextPrefetch = prefetch;
+        }
+
+        if (nextConsumers != consumers || nextPrefetch != prefetch) {
+            if ("increase".equals(decision)) {
+                increases.incrementAndGet();
+            } else {
+                decreases.incrementAndGet();
+            }
+            if (!batch) {
+                container.setPrefetchCount(nextPrefetch);
+            }
+            // 先放宽上限再调整，避免 concurrentConsumers > maxConcurrentConsumers
+            if (nextConsumers > consumers) {
+                container.setMaxConcurrentConsumers(nextConsumers);
+                container.setConcurrentConsumers(nextConsumers);
+            } else {
+                container.setConcurrentConsumers(nextConsumers);
+                container.setMaxConcurrentConsumers(nextConsumers);
+            }
+            log.info("调整秒杀队列消费者 depth:{} latency:{}ms consumers:{}->{} prefetch:{}->{}",
+                    depth, latencyMillis, consumers, nextConsumers, prefetch, nextPrefetch);
+            consumers = nextConsumers;
+            prefetch = nextPrefetch;
+        }
+        lastDepth = depth;
+        lastLatencyMillis = latencyMillis;
+        lastDecision = decision;
+    }
+
+    private SimpleMessageListenerContainer runningContainer() {
+        for (String id : new String[]{RECEIVER_ID, BATCH_RECEIVER_ID}) {
+            MessageListenerContainer container = registry.getListenerContainer(id);
+            if (container instanceof SimpleMessageListenerContainer && container.isRunning()) {
+                return (SimpleMessageListenerContainer) container;
+            }
+        }
+        return null;
+    }
+
+    @Scheduled(fixedDelay = 10000)
+    public void logMetrics() {
+        if (enable && !partitionEnable && consumers > 0) {
+            log.info("秒杀队列消费者自适应统计:{}", metrics());
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("consumers", consumers);
+        metrics.put("prefetch", prefetch);
+        metrics.put("queueDepth", lastDepth);
+        metrics.put("latencyMillis", lastLatencyMillis);
+        metrics.put("lastDecision", lastDecision);
+        metrics.put("increases", increases.get());
+        metrics.put("decreases", decreases.get());
+        return metrics;
+    }
+}
@@ -1,10 +1,16 @@
 package com.geekq.miaosha.rabbitmq;
 
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Configuration
@@ -21,12 +27,19 @@ public class MQConfig {
     public static final String MIAOSHA_DLQ          = "miaosha.queue.dlq"; // 死信队列
     public static final String MIAOSHA_DLQ_KEY      = "miaosha.dlq";       // 死信路由键
 
-    /** 延迟重试队列（固定 5s 后回流主队列） */
-    public static final String MIAOSHA_RETRY_5S_QUEUE = "miaosha.queue.retry.5s";
+    /** 分级延迟重试队列前缀，后接该级延迟，如 miaosha.queue.retry.5000ms */
+    public static final String MIAOSHA_RETRY_QUEUE_PREFIX = "miaosha.queue.retry.";
 
     /** 停车场队列（重试超限/人工处理） */
     public static final String MIAOSHA_PARKING_LOT = "miaosha.queue.parking";
 
+    /** 按商品分区：一致性哈希交换机 + 分区队列 miaosha.queue.p{n} */
+    public static final String MIAOSHA_PARTITION_EXCHANGE = "miaosha.partition";
+    public static final String MIAOSHA_PARTITION_QUEUE_PREFIX = "miaosha.queue.p";
+
+    /** 批量下单消费者的容器工厂 */
+    public static final String BATCH_CONTAINER_FACTORY = "batchContainerFactory";
+
     public static final String EXCHANGE_TOPIC = "exchange_topic";
 
     public static final String MIAOSHA_MESSAGE = "miaosha_mess";
@@ -88,14 +101,18 @@ public class MQConfig {
                 .with(MIAOSHA_DLQ_KEY);
     }
 
-    /** 延迟重试队列：消息在这里等 5 秒，到期后经默认交换机 "" 回流主队列 */
+    /** 分级延迟重试队列：按配置每级一个队列，到期后经默认交换机 "" 回流主队列 */
     @Bean
-    public Queue miaoshaRetry5sQueue() {
-        return QueueBuilder.durable(MIAOSHA_RETRY_5S_QUEUE)
-                .withArgument("x-message-ttl", 5000)          // 固定 5 秒
-                .withArgument("x-dead-letter-exchange", "")   // 回到默认交换机
-                .withArgument("x-dead-letter-routing-key", MIAOSHA_QUEUE) // 定向回主队列
-                .build();
+    public Declarables miaoshaRetryQueues(MiaoshaRetryPolicy retryPolicy) {
+        List<Declarable> queues = new ArrayList<Declarable>();
+        for (int i = 0; i < retryPolicy.tierCount(); i++) {
+            queues.add(QueueBuilder.durable(retryPolicy.queueName(i))
+                    .withArgument("x-message-ttl", retryPolicy.queueTtl(i))   // 兜底，消息自带抖动后的过期时间
+                    .withArgument("x-dead-letter-exchange", "")   // 回到默认交换机
+                    .withArgument("x-dead-letter-routing-key", MIAOSHA_QUEUE) // 定向回主队列
+                    .build());
+        }
+        return new Declarables(queues);
     }
 
     /** 停车场队列：不绑定任何交换机，仅供人工/监控消费 */
@@ -104,6 +121,56 @@ public class MQConfig {
         return QueueBuilder.durable(MIAOSHA_PARKING_LOT).build();
     }
 
+    public static String partitionQueue(int partition) {
+        return MIAOSHA_PARTITION_QUEUE_PREFIX + partition;
+    }
+
+    /**
+     * 分区拓扑：需要 rabbitmq_consistent_hash_exchange 插件，按路由键(goodsId)一致性哈希到分区队列，
+     * 同一商品只落到一个分区。队列开启 single-active-consumer，多节点部署时每个分区同一时刻只有一个消费者，
+     * 重新发布时由 broker 把分区交给存活节点；分区数变化时一致性哈希只迁移少量商品
+     */
+    @Bean
+    public Declarables miaoshaPartitions(@Value("${miaosha.mq.partition.enable:false}") boolean enable,
+                                         @Value("${miaosha.mq.partition.count:4}") int count) {
+        List<Declarable> declarables = new ArrayList<Declarable>();
+        if (!enable) {
+            return new Declarables(declarables);
+        }
+        CustomExchange exchange = new CustomExchange(MIAOSHA_PARTITION_EXCHANGE, "x-consistent-hash", true, false);
+        declarables.add(exchange);
+        for (int i = 0; i < count; i++) {
+            Queue queue = QueueBuilder.durable(partitionQueue(i))
+                    .withArgument("x-dead-letter-exchange", MIAOSHA_DLX_EXCHANGE)
+                    .withArgument("x-dead-letter-routing-key", MIAOSHA_DLQ_KEY)
+                    .singleActiveConsumer()
+                    .build();
+            declarables.add(queue);
+            // 绑定键是权重，各分区相同
+            declarables.add(BindingBuilder.bind(queue).to(exchange).with("1").noargs());
+        }
+        return new Declarables(declarables);
+    }
+
+    /**
+     * 批量消费容器：一次最多拉 batch-size 条，或等 batch-timeout 毫秒后把已到的消息交给监听器
+     * 其余配置（手动 ACK 等）沿用 spring.rabbitmq.listener.simple.*
+     */
+    @Bean(name = BATCH_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory batchContainerFactory(ConnectionFactory connectionFactory,
+                                                                      SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                      @Value("${miaosha.order.batch.size:100}") int batchSize,
+                                                                      @Value("${miaosha.order.batch.timeout:50}") long batchTimeout) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(batchTimeout);
+        factory.setPrefetchCount(batchSize);
+        return factory;
+    }
+
     /**
      * 秒杀测试队列
      */
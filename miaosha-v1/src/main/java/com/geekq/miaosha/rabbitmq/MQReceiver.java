@@ -1,11 +1,12 @@
 package com.geekq.miaosha.rabbitmq;
 
-import com.geekq.miaosha.domain.MiaoshaOrder;
 import com.geekq.miaosha.domain.MiaoshaUser;
 import com.geekq.miaosha.redis.RedisService;
 import com.geekq.miaosha.service.GoodsService;
 import com.geekq.miaosha.service.MiaoShaMessageService;
 import com.geekq.miaosha.service.MiaoshaService;
+import com.geekq.miaosha.service.OrderGroupCommitService;
+import com.geekq.miaosha.service.OrderIdempotencyService;
 import com.geekq.miaosha.service.OrderService;
 import com.geekq.miaosha.vo.GoodsVo;
 import com.geekq.miaosha.vo.MiaoShaMessageVo;
@@ -14,8 +15,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.CannotAcquireLockException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.TransientDataAccessException;
@@ -23,13 +26,22 @@ import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class MQReceiver {
 
     private static Logger log = LoggerFactory.getLogger(MQReceiver.class);
 
+    private static final MiaoshaMessageConverter MIAOSHA_CONVERTER = new MiaoshaMessageConverter();
+
     @Autowired
     RedisService redisService;
 
@@ -48,83 +60,277 @@ public class MQReceiver {
     @Autowired
     RabbitTemplate rabbitTemplate;
 
+    @Autowired
+    MiaoshaRetryPolicy retryPolicy;
+
+    @Autowired
+    AdaptiveConsumerTuner consumerTuner;
+
+    @Autowired
+    OrderIdempotencyService idempotencyService;
+
+    @Autowired
+    OrderGroupCommitService groupCommitService;
+
+    @Value("${miaosha.mq.partition.enable:false}")
+    private boolean partitionEnable;
+
+    /**
+     * 转发到分区交换机后等待 confirm 的最长时间(毫秒)，和发送管道共用
+     */
+    @Value("${miaosha.mq.send.confirm-timeout:5000}")
+    private long confirmTimeoutMillis;
+
     /**
      * 监听死信队列，写日志/落库/报警，通常直接 ACK（AUTO 模式下方法返回即 ACK）
      */
     @RabbitListener(queues = MQConfig.MIAOSHA_DLQ)
-    public void consumeDlq(String body) {
-        log.error("[DLQ] 收到死信：{}", body);
+    public void consumeDlq(Message amqpMsg) {
+        log.error("[DLQ] 收到死信：{}", describe(amqpMsg));
         // TODO: 这里可以落库 + 告警（如钉钉/飞书/邮件），或转停车场等
     }
 
-    // 最大重试次数
-    private static final int MAX_RETRY = 3;
+    // 接收秒杀消息（开启批量消费时不启动）
+    @RabbitListener(id = AdaptiveConsumerTuner.RECEIVER_ID, queues = MQConfig.MIAOSHA_QUEUE, autoStartup = "#{!${miaosha.order.batch.enable:false}}")
+    public void receive(Message amqpMsg, Channel channel) throws IOException {
+        if (partitionEnable) {
+            forward(Collections.singletonList(amqpMsg), channel);
+            return;
+        }
+        handle(channel, amqpMsg);
+    }
 
-    // 接收秒杀消息
-    @RabbitListener(queues = MQConfig.MIAOSHA_QUEUE)
-    public void receive(String message, Channel channel, Message amqpMsg) throws IOException {
-        long tag = amqpMsg.getMessageProperties().getDeliveryTag();
-        try {
-            log.info("receive message:" + message);
+    /**
+     * 批量接收秒杀消息：按 (用户, 商品) 去重，同一商品一次扣库存、多行插入订单，
+     * 最后 basicAck(lastTag, true) 一次确认；整批失败或库存不够整批时退回单条处理
+     */
+    @RabbitListener(id = AdaptiveConsumerTuner.BATCH_RECEIVER_ID, queues = MQConfig.MIAOSHA_QUEUE, containerFactory = MQConfig.BATCH_CONTAINER_FACTORY,
+            autoStartup = "${miaosha.order.batch.enable:false}")
+    public void receiveBatch(List<Message> amqpMsgs, Channel channel) throws IOException {
+        if (partitionEnable) {
+            forward(amqpMsgs, channel);
+            return;
+        }
+        handleBatch(amqpMsgs, channel);
+    }
 
-            // 触发条件你自定：比如消息体包含某个标记时模拟瞬时异常
-            if (message.contains("simulate:transient")) {
-                throw new TransientDataAccessResourceException("mock: transient glitch");
+    /**
+     * 分区模式下主队列只剩存量消息和重试回流的消息，按商品转发到分区交换机；
+     * 同 MiaoshaSendPipeline，整批发布后等待 publisher confirm，确认且没被退回的才 ACK，
+     * 否则 NACK 重新入队，转发失败不会丢消息
+     */
+    private void forward(List<Message> amqpMsgs, Channel channel) throws IOException {
+        List<Message> forwards = new ArrayList<Message>(amqpMsgs.size());
+        List<MiaoshaMessage> parsed = new ArrayList<MiaoshaMessage>(amqpMsgs.size());
+        for (Message amqpMsg : amqpMsgs) {
+            try {
+                parsed.add(MIAOSHA_CONVERTER.fromMessage(amqpMsg));
+                forwards.add(amqpMsg);
+            } catch (Exception e) {
+                handle(channel, amqpMsg);
             }
+        }
+        if (forwards.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<CorrelationData> confirms = new ArrayList<CorrelationData>(forwards.size());
+        try {
+            rabbitTemplate.invoke(ops -> {
+                for (int i = 0; i < forwards.size(); i++) {
+                    MiaoshaMessage mm = parsed.get(i);
+                    CorrelationData correlation = new CorrelationData(String.valueOf(mm.getRequestId()));
+                    ops.send(MQConfig.MIAOSHA_PARTITION_EXCHANGE, String.valueOf(mm.getGoodsId()), forwards.get(i), correlation);
+                    confirms.add(correlation);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("转发到分区交换机失败 size:{} sent:{}", forwards.size(), confirms.size(), e);
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMillis);
+        for (int i = 0; i < forwards.size(); i++) {
+            long tag = forwards.get(i).getMessageProperties().getDeliveryTag();
+            if (i < confirms.size() && isConfirmed(confirms.get(i), deadline)) {
+                channel.basicAck(tag, false);
+            } else {
+                log.warn("转发未确认，重新入队 requestId:{}", parsed.get(i).getRequestId());
+                channel.basicNack(tag, false, true);
+            }
+        }
+    }
+
+    private static boolean isConfirmed(CorrelationData correlation, long deadline) {
+        try {
+            CorrelationData.Confirm confirm = correlation.getFuture()
+                    .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            // mandatory 下路由失败的消息同样会被 ack，需要再看是否被退回
+            return confirm.isAck() && correlation.getReturned() == null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
 
-            MiaoshaMessage mm = RedisService.stringToBean(message, MiaoshaMessage.class);
-            MiaoshaUser user = mm.getUser();
+    void handleBatch(List<Message> amqpMsgs, Channel channel) throws IOException {
+        // goodsId -> (userId -> user)
+        Map<Long, Map<Long, MiaoshaUser>> groups = new LinkedHashMap<Long, Map<Long, MiaoshaUser>>();
+        Map<Long, List<Message>> groupMessages = new HashMap<Long, List<Message>>();
+        Map<Long, List<Long>> groupRequestIds = new HashMap<Long, List<Long>>();
+        List<Message> singles = new ArrayList<Message>();
+        long lastTag = -1;
+        for (Message amqpMsg : amqpMsgs) {
+            MiaoshaMessage mm = null;
+            try {
+                mm = MIAOSHA_CONVERTER.fromMessage(amqpMsg);
+            } catch (Exception e) {
+                log.warn("batch parse failed, fallback to single: {}", describe(amqpMsg));
+            }
+            if (mm == null || mm.getUser() == null || isSimulateTransient(amqpMsg)) {
+                singles.add(amqpMsg);
+                continue;
+            }
+            // 已处理过的重复消息随整批一起 ACK
+            if (idempotencyService.isProcessed(mm.getRequestId())) {
+                lastTag = Math.max(lastTag, amqpMsg.getMessageProperties().getDeliveryTag());
+                continue;
+            }
             long goodsId = mm.getGoodsId();
+            groupRequestIds.computeIfAbsent(goodsId, id -> new ArrayList<Long>()).add(mm.getRequestId());
+            groups.computeIfAbsent(goodsId, id -> new LinkedHashMap<Long, MiaoshaUser>())
+                    .putIfAbsent(mm.getUserId(), mm.getUser());
+            groupMessages.computeIfAbsent(goodsId, id -> new ArrayList<Message>()).add(amqpMsg);
+        }
 
-            // 查询商品实际库存
-            GoodsVo goods = goodsService.getGoodsVoByGoodsId(goodsId);
-            int stock = goods.getStockCount();
-            if (stock <= 0) {
-                channel.basicAck(tag, false);      // 没库存/商品不存在 → 当作已处理
-                return;
+        for (Map.Entry<Long, Map<Long, MiaoshaUser>> group : groups.entrySet()) {
+            long goodsId = group.getKey();
+            List<Message> messages = groupMessages.get(goodsId);
+            try {
+                GoodsVo goods = goodsService.getGoodsSnapshot(goodsId);
+                // 商品不存在 → 当作已处理；否则整批下单，没库存时 miaoshaBatch 不会下单
+                if (goods != null) {
+                    long start = System.nanoTime();
+                    miaoshaService.miaoshaBatch(new ArrayList<MiaoshaUser>(group.getValue().values()), goods);
+                    // 按单笔摊薄，和单条消费的耗时可比
+                    consumerTuner.recordLatency((System.nanoTime() - start) / group.getValue().size());
+                }
+                for (Long requestId : groupRequestIds.get(goodsId)) {
+                    idempotencyService.markProcessed(requestId);
+                }
+                for (Message m : messages) {
+                    lastTag = Math.max(lastTag, m.getMessageProperties().getDeliveryTag());
+                }
+            } catch (Exception e) {
+                log.warn("Batch order failed, fallback to single, goodsId:{} size:{}", goodsId, messages.size(), e);
+                singles.addAll(messages);
+            }
+        }
+
+        // 单条处理的消息各自 ACK/NACK，必须在批量 ACK 之前完成
+        for (Message amqpMsg : singles) {
+            handle(channel, amqpMsg);
+        }
+        if (lastTag > 0) {
+            channel.basicAck(lastTag, true);
+        }
+    }
+
+    void handle(Channel channel, Message amqpMsg) throws IOException {
+        long tag = amqpMsg.getMessageProperties().getDeliveryTag();
+        String message = null;
+        long requestId = 0;
+        MiaoshaMessage mm = null;
+        try {
+            // 触发条件你自定：比如消息体包含某个标记时模拟瞬时异常
+            if (isSimulateTransient(amqpMsg)) {
+                throw new TransientDataAccessResourceException("mock: transient glitch");
             }
-            //判断是否已经秒杀到了
-            MiaoshaOrder order = orderService.getMiaoshaOrderByUserIdGoodsId(Long.valueOf(user.getNickname()), goodsId);
-            if (order != null) {
-                channel.basicAck(tag, false);      // 已下单 → 幂等
+
+            mm = MIAOSHA_CONVERTER.fromMessage(amqpMsg);
+            message = String.valueOf(mm);
+            log.info("receive message:" + message);
+            requestId = mm.getRequestId();
+            // 重投/重试回流的消息已处理过，不再碰数据库
+            if (idempotencyService.isProcessed(requestId)) {
+                channel.basicAck(tag, false);
                 return;
             }
-            // 秒杀到了且有库存，减库存，下订单
-            // 减库存 下订单 写入秒杀订单
-            miaoshaService.miaosha(user, goods);
+            // 没库存/商品不存在/已下过单时直接跳过，当作已处理
+            long start = System.nanoTime();
+            groupCommitService.placeOrder(mm.getUser(), mm.getGoodsId());
+            consumerTuner.recordLatency(System.nanoTime() - start);
+            idempotencyService.markProcessed(requestId);
             channel.basicAck(tag, false);          // 成功 → ACK
         } catch (DuplicateKeyException e) {
             // 幂等冲突：已下过单，当作成功
             log.warn("Duplicate order, treat as success: {}", message);
+            idempotencyService.markProcessed(requestId);
             channel.basicAck(tag, false);
             //channel.basicNack(tag, false, false);  // 幂等冲突 → DLQ（建议配 DLX）
         } catch (TransientDataAccessException e) {
+            if (message == null) {
+                message = describe(amqpMsg);
+            }
             // 认为是临时性异常（可重试）
             int retry = currentRetry(amqpMsg);
-            if (retry < MAX_RETRY) {
-                log.warn("Transient error, retry {}/{} after delay: {}", retry + 1, MAX_RETRY, message);
-                // 递增重试计数，发到延迟队列
-                rabbitTemplate.convertAndSend("", MQConfig.MIAOSHA_RETRY_5S_QUEUE, message, m -> {
-                    m.getMessageProperties().getHeaders().put("x-retry", retry + 1);
-                    return m;
-                });
+            if (retry < retryPolicy.maxRetry()) {
+                // 递增重试计数，按次数发到对应级别的延迟队列
+                // 原样转发消息体，保留 content-type
+                String retryQueue = retryPolicy.prepare(amqpMsg, retry + 1);
+                log.warn("Transient error, retry {}/{} via {}: {}", retry + 1, retryPolicy.maxRetry(), retryQueue, message);
+                rabbitTemplate.send("", retryQueue, amqpMsg);
                 channel.basicAck(tag, false);       // ACK 掉当前这条
             } else {
                 // 超限：进停车场并 ACK
-                log.error("Retry exceeded ({}). Send to parking-lot: {}", MAX_RETRY, message, e);
-                rabbitTemplate.convertAndSend("", MQConfig.MIAOSHA_PARKING_LOT, message);
+                log.error("Retry exceeded ({}). Send to parking-lot: {}", retryPolicy.maxRetry(), message, e);
+                retryPolicy.recordParked();
+                rabbitTemplate.send("", MQConfig.MIAOSHA_PARKING_LOT, amqpMsg);
+                releaseAdmission(mm);
                 channel.basicAck(tag, false);
             }
         } catch (Exception e) {
             // 非可重试异常：直接死信（由 DLX 转到 DLQ）
-            log.error("Non-retryable error, dead-letter: {}", message, e);
+            log.error("Non-retryable error, dead-letter: {}", message == null ? describe(amqpMsg) : message, e);
+            releaseAdmission(mm);
             channel.basicNack(tag, false, false);   // 不重入队 ⇒ 走 DLX → DLQ
         }
     }
 
+    /**
+     * 下单最终失败(进停车场或死信)：退回预减的库存并清掉购买标记，用户可以重新抢
+     */
+    private void releaseAdmission(MiaoshaMessage mm) {
+        if (mm == null) {
+            return;
+        }
+        try {
+            miaoshaService.rollbackAdmission(mm.getUserId(), mm.getGoodsId());
+        } catch (Exception e) {
+            log.error("退回秒杀准入失败 userId:{} goodsId:{}", mm.getUserId(), mm.getGoodsId(), e);
+        }
+    }
+
+    /**
+     * 旧版 JSON 消息可以带标记模拟瞬时异常
+     */
+    private boolean isSimulateTransient(Message amqpMsg) {
+        return !MiaoshaMessageConverter.isCompact(amqpMsg)
+                && new String(amqpMsg.getBody(), StandardCharsets.UTF_8).contains("simulate:transient");
+    }
+
+    private String describe(Message amqpMsg) {
+        try {
+            return String.valueOf(MIAOSHA_CONVERTER.fromMessage(amqpMsg));
+        } catch (Exception e) {
+            return new String(amqpMsg.getBody(), StandardCharsets.UTF_8);
+        }
+    }
+
     private int currentRetry(Message msg) {
         Map<String, Object> h = msg.getMessageProperties().getHeaders();
-        Object v = h.get("x-retry");
+        Object v = h.get(MiaoshaRetryPolicy.RETRY_HEADER);
         if (v instanceof Number) return ((Number) v).intValue();
         try {
             return Integer.parseInt(String.valueOf(v));
@@ -1,29 +1,95 @@
 package com.geekq.miaosha.rabbitmq;
 
+import com.geekq.miaosha.exception.GlobleException;
 import com.geekq.miaosha.redis.RedisService;
+import com.geekq.miaosha.service.IdWorkerService;
+import com.geekq.miaosha.service.MiaoshaService;
+import com.geekq.miaosha.service.OrderPipeline;
 import com.geekq.miaosha.vo.MiaoShaMessageVo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
 import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import static com.geekq.miaosha.common.enums.ResultStatus.SYSTEM_ERROR;
+
 @Service
 public class MQSender {
 
     private static Logger log = LoggerFactory.getLogger(MQSender.class);
 
+    private static final MiaoshaMessageConverter MIAOSHA_CONVERTER = new MiaoshaMessageConverter();
+
     @Autowired
     AmqpTemplate amqpTemplate;
 
     @Autowired
     private RabbitTemplate rabbitTemplate;
 
+    @Autowired
+    MiaoshaSendPipeline sendPipeline;
+
+    @Autowired
+    MiaoshaOutbox outbox;
+
+    @Autowired
+    MiaoshaService miaoshaService;
+
+    @Autowired
+    OrderPipeline orderPipeline;
+
+    @Autowired
+    IdWorkerService idWorkerService;
+
+    @Value("${miaosha.mq.partition.enable:false}")
+    private boolean partitionEnable;
+
     public void sendMiaoshaMessage(MiaoshaMessage mm) {
-        String msg = RedisService.beanToString(mm);
-        log.info("send message:" + msg);
-        amqpTemplate.convertAndSend(MQConfig.MIAOSHA_QUEUE, msg);
+        if (mm.getRequestId() == 0) {
+            mm.setRequestId(idWorkerService.nextId());
+        }
+        if (mm.getTimestamp() == 0) {
+            mm.setTimestamp(System.currentTimeMillis());
+        }
+        log.info("send message:{}", mm);
+        // 单节点部署走进程内流水线，不经过 broker
+        if (orderPipeline.isEnable()) {
+            if (!orderPipeline.publish(mm)) {
+                miaoshaService.rollbackAdmission(mm.getUserId(), mm.getGoodsId());
+                throw new GlobleException(SYSTEM_ERROR);
+            }
+            return;
+        }
+        // 发件箱还有积压时继续排在后面，保持顺序
+        if (outbox.hasBacklog() && outbox.append(mm)) {
+            return;
+        }
+        // 异步发送缓冲区满时退回同步发送
+        if (sendPipeline.isEnable() && sendPipeline.send(mm)) {
+            return;
+        }
+        Message message = MIAOSHA_CONVERTER.toMessage(mm, new MessageProperties());
+        try {
+            if (partitionEnable) {
+                amqpTemplate.send(MQConfig.MIAOSHA_PARTITION_EXCHANGE, String.valueOf(mm.getGoodsId()), message);
+            } else {
+                amqpTemplate.send(MQConfig.MIAOSHA_QUEUE, message);
+            }
+        } catch (AmqpException e) {
+            // broker 不可用：落本地发件箱，恢复后转发；发件箱也写不进去时退回库存
+            if (outbox.append(mm)) {
+                log.warn("broker 不可用，秒杀消息写入发件箱: {}", mm);
+                return;
+            }
+            miaoshaService.rollbackAdmission(mm.getUserId(), mm.getGoodsId());
+            throw e;
+        }
     }
 
     /**
@@ -2,11 +2,35 @@ package com.geekq.miaosha.rabbitmq;
 
 import com.geekq.miaosha.domain.MiaoshaUser;
 
+/**
+ * 秒杀下单消息
+ * 只传 userId(即用户手机号 nickname)、goodsId、requestId、时间戳，由 {@link MiaoshaMessageConverter} 编码成定长二进制；
+ * user 仅用于兼容旧版 JSON 消息，消费端需要时按 userId 懒构造
+ */
 public class MiaoshaMessage {
-    private MiaoshaUser user;
+    private long userId;
     private long goodsId;
+    private long requestId;
+    private long timestamp;
+    private MiaoshaUser user;
+
+    public long getUserId() {
+        if (userId == 0 && user != null && user.getNickname() != null) {
+            userId = Long.parseLong(user.getNickname());
+        }
+        return userId;
+    }
+
+    public void setUserId(long userId) {
+        this.userId = userId;
+    }
 
     public MiaoshaUser getUser() {
+        if (user == null && userId != 0) {
+            MiaoshaUser lazy = new MiaoshaUser();
+            lazy.setNickname(String.valueOf(userId));
+            user = lazy;
+        }
         return user;
     }
 
@@ -21,4 +45,26 @@ public class MiaoshaMessage {
     public void setGoodsId(long goodsId) {
         this.goodsId = goodsId;
     }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "MiaoshaMessage{userId=" + getUserId() + ", goodsId=" + goodsId
+                + ", requestId=" + requestId + ", timestamp=" + timestamp + "}";
+    }
 }
@@ -0,0 +1,78 @@
+package com.geekq.miaosha.rabbitmq;
+
+import com.geekq.miaosha.redis.RedisService;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 秒杀消息二进制编解码
+ * 格式：version(1) | userId(8) | goodsId(8) | requestId(8) | timestamp(8)，共 33 字节；
+ * 非该 content-type 的消息按旧版 JSON 解析，滚动发布期间队列里的存量消息照常消费。
+ * 不注册成 bean，否则会被 boot 装配成 RabbitTemplate 的全局转换器，只在秒杀队列上显式使用
+ */
+public class MiaoshaMessageConverter implements MessageConverter {
+
+    public static final String CONTENT_TYPE = "application/x-miaosha-message";
+
+    public static final byte VERSION = 1;
+
+    public static final int LENGTH = 1 + 8 * 4;
+
+    public static byte[] encode(MiaoshaMessage mm) {
+        return ByteBuffer.allocate(LENGTH)
+                .put(VERSION)
+                .putLong(mm.getUserId())
+                .putLong(mm.getGoodsId())
+                .putLong(mm.getRequestId())
+                .putLong(mm.getTimestamp())
+                .array();
+    }
+
+    public static MiaoshaMessage decode(byte[] body) {
+        if (body == null || body.length < LENGTH) {
+            throw new MessageConversionException("秒杀消息长度非法:" + (body == null ? 0 : body.length));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new MessageConversionException("不支持的秒杀消息版本:" + version);
+        }
+        MiaoshaMessage mm = new MiaoshaMessage();
+        mm.setUserId(buffer.getLong());
+        mm.setGoodsId(buffer.getLong());
+        mm.setRequestId(buffer.getLong());
+        mm.setTimestamp(buffer.getLong());
+        return mm;
+    }
+
+    public static boolean isCompact(Message message) {
+        return CONTENT_TYPE.equals(message.getMessageProperties().getContentType());
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+        if (!(object instanceof MiaoshaMessage)) {
+            throw new MessageConversionException("不支持的消息类型:" + (object == null ? null : object.getClass()));
+        }
+        messageProperties.setContentType(CONTENT_TYPE);
+        messageProperties.setContentLength(LENGTH);
+        return new Message(encode((MiaoshaMessage) object), messageProperties);
+    }
+
+    @Override
+    public MiaoshaMessage fromMessage(Message message) throws MessageConversionException {
+        if (isCompact(message)) {
+            return decode(message.getBody());
+        }
+        try {
+            return RedisService.stringToBean(new String(message.getBody(), StandardCharsets.UTF_8), MiaoshaMessage.class);
+        } catch (Exception e) {
+            throw new MessageConversionException("旧版秒杀消息解析失败", e);
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package com.geekq.miaosha.rabbitmq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 秒杀消息本地发件箱
+ * broker 不可用或发送超时时，已扣库存的秒杀消息顺序追加到本节点的内存映射段文件，
+ * 记录格式 length(4) | crc32(4) | payload，payload 为 {@link MiaoshaMessageConverter} 的二进制编码；
+ * 后台转发线程按追加顺序把消息发回 RabbitMQ(等待 confirm)，成功后推进检查点并删除已发完的段。
+ * 追加后组提交刷盘：并发追加的线程里第一个拿到刷盘锁的把已写入的部分一起 force，其余线程发现自己的记录已落盘直接返回。
+ * 段写满后滚动，总大小受磁盘预算限制；启动时按 CRC 扫描最后一段恢复写位置，从检查点继续转发。
+ * 转发是至少一次，重复消息由消费端幂等处理
+ */
+@Component
+public class MiaoshaOutbox implements InitializingBean, DisposableBean {
+
+    private static final int HEADER = 8;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String CHECKPOINT = "checkpoint";
+
+    private static Logger log = LoggerFactory.getLogger(MiaoshaOutbox.class);
+
+    @Autowired
+    RabbitTemplate rabbitTemplate;
+
+    @Value("${miaosha.mq.outbox.enable:false}")
+    private boolean enable;
+
+    @Value("${miaosha.mq.outbox.dir:./data/outbox}")
+    private String dir;
+
+    @Value("${miaosha.mq.outbox.segment-size:67108864}")
+    private int segmentSize;
+
+    /**
+     * 磁盘预算(字节)，超过后拒绝追加
+     */
+    @Value("${miaosha.mq.outbox.max-bytes:1073741824}")
+    private long maxBytes;
+
+    /**
+     * 追加后是否刷盘，关闭后只写到页缓存，进程崩溃不丢，机器掉电可能丢最近的消息
+     */
+    @Value("${miaosha.mq.outbox.force:true}")
+    private boolean force;
+
+    @Value("${miaosha.mq.outbox.relay-batch:100}")
+    private int relayBatch;
+
+    @Value("${miaosha.mq.send.confirm-timeout:5000}")
+    private long confirmTimeoutMillis;
+
+    @Value("${miaosha.mq.partition.enable:false}")
+    private boolean partitionEnable;
+
+    /**
+     * 段序号 -> 段文件
+     */
+    private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+    private long writeSeq;
+
+    private MappedByteBuffer writeBuffer;
+
+    private final Object forceLock = new Object();
+
+    /**
+     * 已刷盘到的位置，由 forceLock 保护
+     */
+    private long forcedSeq;
+
+    private int forcedPosition;
+
+    private volatile long readSeq;
+
+    private volatile int readPosition;
+
+    private MappedByteBuffer readBuffer;
+
+    private long readBufferSeq = -1;
+
+    private FileChannel checkpoint;
+
+    private volatile boolean running;
+
+    private Thread relay;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong relayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 追加一条秒杀消息
+     *
+     * @return false 表示超出磁盘预算或写入失败
+     */
+    public boolean append(MiaoshaMessage mm) {
+        if (!enable) {
+            return false;
+        }
+        byte[] payload = MiaoshaMessageConverter.encode(mm);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        long seq;
+        int end;
+        synchronized (this) {
+            try {
+                if (writeBuffer.remaining() < HEADER + payload.length && !rotate()) {
+                    rejected.incrementAndGet();
+                    log.error("秒杀发件箱超出磁盘预算 {} 字节，拒绝: {}", maxBytes, mm);
+                    return false;
+                }
+                writeBuffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+                seq = writeSeq;
+                end = writeBuffer.position();
+            } catch (IOException e) {
+                rejected.incrementAndGet();
+                log.error("写入秒杀发件箱失败: {}", mm, e);
+                return false;
+            }
+        }
+        if (force) {
+            force(seq, end);
+        }
+        appended.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 组提交：把当前写位置之前的内容一起刷盘，已被前一组刷过的直接返回。
+     * 滚动到新段前旧段已经刷过，只需要刷当前段
+     */
+    private void force(long seq, int end) {
+        synchronized (forceLock) {
+            if (forcedSeq > seq || (forcedSeq == seq && forcedPosition >= end)) {
+                return;
+            }
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                buffer = writeBuffer;
+                seq = writeSeq;
+                end = writeBuffer.position();
+            }
+            try {
+                buffer.force();
+            } catch (RuntimeException e) {
+                // 记录已在页缓存里，转发不受影响
+                log.error("秒杀发件箱刷盘失败", e);
+                return;
+            }
+            forcedSeq = seq;
+            forcedPosition = end;
+        }
+    }
+
+    /**
+     * 还有未转发的消息。此时新消息也进发件箱，保持顺序
+     */
+    public synchronized boolean hasBacklog() {
+        return enable && (readSeq < writeSeq || readPosition < writeBuffer.position());
+    }
+
+    /**
+     * 有拒绝说明磁盘预算不够或写盘失败，broker 不可用时这些请求只能退回库存，打 WARN
+     */
+    @Scheduled(fixedDelay = 10000)
+    public void logMetrics() {
+        if (!enable || appended.get() + rejected.get() == 0) {
+            return;
+        }
+        if (rejected.get() > 0) {
+            log.warn("秒杀发件箱统计:{}", metrics());
+        } else {
+            log.info("秒杀发件箱统计:{}", metrics());
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        synchronized (this) {
+            metrics.put("segments", segments.size());
+        }
+        metrics.put("appended", appended.get());
+        metrics.put("relayed", relayed.get());
+        metrics.put("rejected", rejected.get());
+        return metrics;
+    }
+
+    private boolean rotate() throws IOException {
+        if ((long) (segments.size() + 1) * segmentSize > maxBytes) {
+            return false;
+        }
+        writeBuffer.force();
+        openWriteSegment(writeSeq + 1);
+        return true;
+    }
+
+    private void openWriteSegment(long seq) throws IOException {
+        File file = new File(dir, String.format("%020d%s", seq, SEGMENT_SUFFIX));
+        writeBuffer = map(file, FileChannel.MapMode.READ_WRITE);
+        writeSeq = seq;
+        segments.put(seq, file);
+    }
+
+    private MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < segmentSize) {
+                raf.setLength(segmentSize);
+            }
+            return raf.getChannel().map(mode, 0, segmentSize);
+        }
+    }
+
+    /**
+     * 读取 position 处的一条完整记录，越界、长度非法或 CRC 不符都视为没有
+     */
+    private static byte[] readRecord(ByteBuffer buffer, int position, int limit) {
+        if (position + HEADER > limit) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + HEADER + length > limit) {
+            return null;
+        }
+        int expected = buffer.getInt(position + 4);
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + HEADER);
+        view.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == expected ? payload : null;
+    }
+
+    private void relayLoop() {
+        while (running) {
+            try {
+                if (!relayOnce()) {
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("秒杀发件箱转发失败，稍后重试", e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 转发一批
+     *
+     * @return false 表示没有可转发的消息
+     */
+    private boolean relayOnce() throws IOException {
+        long currentWriteSeq;
+        int writePosition;
+        synchronized (this) {
+            currentWriteSeq = writeSeq;
+            writePosition = writeBuffer.position();
+        }
+        if (readBufferSeq != readSeq) {
+            File file;
+            synchronized (this) {
+                file = segments.get(readSeq);
+            }
+            readBuffer = map(file, FileChannel.MapMode.READ_ONLY);
+            readBufferSeq = readSeq;
+        }
+        int limit = readSeq == currentWriteSeq ? writePosition : segmentSize;
+        int position = readPosition;
+        List<byte[]> batch = new ArrayList<byte[]>(relayBatch);
+        byte[] payload;
+        while (batch.size() < relayBatch && (payload = readRecord(readBuffer, position, limit)) != null) {
+            batch.add(payload);
+            position += HEADER + payload.length;
+        }
+        if (batch.isEmpty()) {
+            if (readSeq < currentWriteSeq) {
+                nextReadSegment();
+                return true;
+            }
+            return false;
+        }
+        if (!publish(batch)) {
+            throw new IllegalStateException("秒杀发件箱转发未确认 size:" + batch.size());
+        }
+        readPosition = position;
+        relayed.addAndGet(batch.size());
+        saveCheckpoint();
+        return true;
+    }
+
+    /**
+     * 当前段已转发完，删除并切到下一段
+     */
+    private void nextReadSegment() throws IOException {
+        File done;
+        synchronized (this) {
+            done = segments.remove(readSeq);
+            readSeq = segments.higherKey(readSeq);
+            readPosition = 0;
+        }
+        readBuffer = null;
+        readBufferSeq = -1;
+        saveCheckpoint();
+        if (done != null && !done.delete()) {
+            log.warn("删除秒杀发件箱段失败: {}", done);
+        }
+    }
+
+    private boolean publish(List<byte[]> batch) {
+        List<CorrelationData> confirms = new ArrayList<CorrelationData>(batch.size());
+        rabbitTemplate.invoke(ops -> {
+            for (byte[] payload : batch) {
+                MessageProperties properties = new MessageProperties();
+                properties.setContentType(MiaoshaMessageConverter.CONTENT_TYPE);
+                Message message = new Message(payload, properties);
+                CorrelationData correlation = new CorrelationData();
+                if (partitionEnable) {
+                    long goodsId = MiaoshaMessageConverter.decode(payload).getGoodsId();
+                    ops.send(MQConfig.MIAOSHA_PARTITION_EXCHANGE, String.valueOf(goodsId), message, correlation);
+                } else {
+                    ops.send("", MQConfig.MIAOSHA_QUEUE, message, correlation);
+                }
+                confirms.add(correlation);
+            }
+            return null;
+        });
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMillis);
+        for (CorrelationData correlation : confirms) {
+            try {
+                CorrelationData.Confirm confirm = correlation.getFuture()
+                        .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (!confirm.isAck() || correlation.getReturned() != null) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void saveCheckpoint() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putLong(readSeq).putInt(readPosition).flip();
+        checkpoint.write(buffer, 0);
+        checkpoint.force(false);
+    }
+
+    /**
+     * 启动恢复：删除检查点之前的段，扫描最后一段找到写位置
+     */
+    private void recover() throws IOException {
+        File directory = new File(dir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建秒杀发件箱目录:" + directory.getAbsolutePath());
+        }
+        File[] files = directory.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+
+        checkpoint = new RandomAccessFile(new File(directory, CHECKPOINT), "rw").getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        if (checkpoint.read(buffer, 0) == 12) {
+            buffer.flip();
+            readSeq = buffer.getLong();
+            readPosition = buffer.getInt();
+        }
+        // 检查点之前的段已经转发完
+        while (!segments.isEmpty() && segments.firstKey() < readSeq) {
+            Map.Entry<Long, File> done = segments.pollFirstEntry();
+            if (!done.getValue().delete()) {
+                log.warn("删除秒杀发件箱段失败: {}", done.getValue());
+            }
+        }
+        if (segments.isEmpty()) {
+            openWriteSegment(readSeq);
+            readPosition = 0;
+        } else {
+            if (!segments.containsKey(readSeq)) {
+                readSeq = segments.firstKey();
+                readPosition = 0;
+            }
+            openWriteSegment(segments.lastKey());
+            int position = 0;
+            byte[] payload;
+            while ((payload = readRecord(writeBuffer, position, segmentSize)) != null) {
+                position += HEADER + payload.length;
+            }
+            writeBuffer.position(position);
+        }
+        saveCheckpoint();
+        if (hasBacklog()) {
+            log.info("秒杀发件箱恢复 segments:{} read:{}@{} write:{}@{}", segments.size(),
+                    readSeq, readPosition, writeSeq, writeBuffer.position());
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enable) {
+            return;
+        }
+        recover();
+        running = true;
+        relay = new Thread(this::relayLoop, "miaosha-outbox-relay");
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (!enable) {
+            return;
+        }
+        running = false;
+        relay.interrupt();
+        relay.join(confirmTimeoutMillis);
+        synchronized (this) {
+            writeBuffer.force();
+        }
+        checkpoint.close();
+        log.info("秒杀发件箱关闭 appended:{} relayed:{} rejected:{}", appended.get(), relayed.get(), rejected.get());
+    }
+}
@@ -0,0 +1,73 @@
+package com.geekq.miaosha.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerEndpoint;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistrar;
+import org.springframework.amqp.rabbit.annotation.RabbitListenerConfigurer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * 分区队列消费者：每个分区注册一个单线程容器，同一商品的订单只由一个线程串行处理，
+ * 不同商品的分区并行；开启批量下单时按批交给 MQReceiver
+ */
+@Component
+public class MiaoshaPartitionListener implements RabbitListenerConfigurer, ChannelAwareBatchMessageListener {
+
+    @Autowired
+    MQReceiver receiver;
+
+    @Autowired
+    @Qualifier("rabbitListenerContainerFactory")
+    SimpleRabbitListenerContainerFactory containerFactory;
+
+    @Autowired
+    @Qualifier(MQConfig.BATCH_CONTAINER_FACTORY)
+    SimpleRabbitListenerContainerFactory batchContainerFactory;
+
+    @Value("${miaosha.mq.partition.enable:false}")
+    private boolean enable;
+
+    @Value("${miaosha.mq.partition.count:4}")
+    private int count;
+
+    @Value("${miaosha.order.batch.enable:false}")
+    private boolean batch;
+
+    @Override
+    public void configureRabbitListeners(RabbitListenerEndpointRegistrar registrar) {
+        if (!enable) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            SimpleRabbitListenerEndpoint endpoint = new SimpleRabbitListenerEndpoint();
+            endpoint.setId("miaosha-partition-" + i);
+            endpoint.setQueueNames(MQConfig.partitionQueue(i));
+            endpoint.setConcurrency("1-1");
+            endpoint.setBatchListener(batch);
+            endpoint.setMessageListener(this);
+            registrar.registerEndpoint(endpoint, batch ? batchContainerFactory : containerFactory);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, Channel channel) throws Exception {
+        receiver.handle(channel, message);
+    }
+
+    @Override
+    public void onMessageBatch(List<Message> messages, Channel channel) {
+        try {
+            receiver.handleBatch(messages, channel);
+        } catch (Exception e) {
+            throw new IllegalStateException("分区批量下单失败", e);
+        }
+    }
+}
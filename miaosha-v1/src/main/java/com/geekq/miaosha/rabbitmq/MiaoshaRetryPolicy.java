@@ -0,0 +1,111 @@
+package com.geekq.miaosha.rabbitmq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分级延迟重试
+ * 每级一个延迟队列(miaosha.queue.retry.{delay}ms)，第 n 次重试进第 n 级；
+ * 每条消息的过期时间在该级延迟上随机抖动，避免数据库抖动时重试整齐地一波波打回来。
+ * 队列 TTL 取抖动上限，消息过期后经默认交换机回流主队列
+ */
+@Component
+public class MiaoshaRetryPolicy {
+
+    public static final String RETRY_HEADER = "x-retry";
+
+    private static Logger log = LoggerFactory.getLogger(MiaoshaRetryPolicy.class);
+
+    private final long[] delays;
+
+    private final double jitter;
+
+    private final AtomicLongArray tierCounts;
+
+    private final AtomicLong parked = new AtomicLong();
+
+    public MiaoshaRetryPolicy(@Value("${miaosha.mq.retry.delays:1000,5000,30000,120000}") long[] delays,
+                              @Value("${miaosha.mq.retry.jitter:0.2}") double jitter) {
+        if (delays.length == 0) {
+            throw new IllegalArgumentException("miaosha.mq.retry.delays 不能为空");
+        }
+        this.delays = delays;
+        this.jitter = Math.max(0, Math.min(jitter, 1));
+        this.tierCounts = new AtomicLongArray(delays.length);
+    }
+
+    /**
+     * 最大重试次数，每级用一次
+     */
+    public int maxRetry() {
+        return delays.length;
+    }
+
+    public int tierCount() {
+        return delays.length;
+    }
+
+    public String queueName(int tier) {
+        return MQConfig.MIAOSHA_RETRY_QUEUE_PREFIX + delays[tier] + "ms";
+    }
+
+    /**
+     * 队列级 TTL：抖动上限
+     */
+    public long queueTtl(int tier) {
+        return (long) (delays[tier] * (1 + jitter));
+    }
+
+    /**
+     * 第 retry 次重试(从 1 开始)对应的级别
+     */
+    public int tierOf(int retry) {
+        return Math.min(Math.max(retry, 1), delays.length) - 1;
+    }
+
+    /**
+     * 标记重试次数并设置抖动后的过期时间，返回要投递的延迟队列
+     */
+    public String prepare(Message amqpMsg, int retry) {
+        int tier = tierOf(retry);
+        double factor = 1 + (ThreadLocalRandom.current().nextDouble() * 2 - 1) * jitter;
+        amqpMsg.getMessageProperties().getHeaders().put(RETRY_HEADER, retry);
+        amqpMsg.getMessageProperties().setExpiration(String.valueOf((long) (delays[tier] * factor)));
+        tierCounts.incrementAndGet(tier);
+        return queueName(tier);
+    }
+
+    public void recordParked() {
+        parked.incrementAndGet();
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < delays.length; i++) {
+            metrics.put(delays[i] + "ms", tierCounts.get(i));
+        }
+        metrics.put("parked", parked.get());
+        return metrics;
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void logMetrics() {
+        long total = parked.get();
+        for (int i = 0; i < delays.length; i++) {
+            total += tierCounts.get(i);
+        }
+        if (total > 0) {
+            log.info("秒杀消息重试统计:{}", metrics());
+        }
+    }
+}
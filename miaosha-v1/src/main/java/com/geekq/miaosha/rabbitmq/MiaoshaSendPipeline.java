@@ -0,0 +1,279 @@
+package com.geekq.miaosha.rabbitmq;
+
+import com.geekq.miaosha.service.MiaoshaService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀消息异步发送
+ * 请求线程只把消息放进有界环形缓冲区，发送线程按批在同一个 channel 上发布并等待 publisher confirm；
+ * nack、被退回或超时未确认的消息重新入队重试，重试超限后写入本地发件箱，发件箱也写不进去才退回 redis 库存，
+ * 避免 broker 抖动时阻塞 tomcat 线程或丢掉已扣库存的订单
+ */
+@Component
+public class MiaoshaSendPipeline implements InitializingBean, DisposableBean {
+
+    private static Logger log = LoggerFactory.getLogger(MiaoshaSendPipeline.class);
+
+    private static final MiaoshaMessageConverter MIAOSHA_CONVERTER = new MiaoshaMessageConverter();
+
+    @Autowired
+    RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    MiaoshaService miaoshaService;
+
+    @Autowired
+    MiaoshaOutbox outbox;
+
+    @Value("${miaosha.mq.send.async:false}")
+    private boolean enable;
+
+    @Value("${miaosha.mq.send.buffer-size:65536}")
+    private int bufferSize;
+
+    @Value("${miaosha.mq.send.threads:2}")
+    private int threads;
+
+    @Value("${miaosha.mq.send.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 一批消息等待 confirm 的最长时间(毫秒)
+     */
+    @Value("${miaosha.mq.send.confirm-timeout:5000}")
+    private long confirmTimeoutMillis;
+
+    @Value("${miaosha.mq.send.max-retry:3}")
+    private int maxRetry;
+
+    @Value("${miaosha.mq.partition.enable:false}")
+    private boolean partitionEnable;
+
+    private BlockingQueue<PendingMessage> buffer;
+
+    private final List<Thread> senders = new ArrayList<Thread>();
+
+    private volatile boolean running;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong compensated = new AtomicLong();
+    private final AtomicLong overflow = new AtomicLong();
+    private final AtomicLong confirmBatches = new AtomicLong();
+    private final AtomicLong confirmNanos = new AtomicLong();
+    private final AtomicLong maxConfirmNanos = new AtomicLong();
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 放入发送缓冲区，不等待 broker
+     *
+     * @return false 表示缓冲区已满，由调用方同步发送
+     */
+    public boolean send(MiaoshaMessage mm) {
+        Message message = MIAOSHA_CONVERTER.toMessage(mm, new MessageProperties());
+        if (buffer.offer(new PendingMessage(mm, message))) {
+            return true;
+        }
+        overflow.incrementAndGet();
+        return false;
+    }
+
+    private void sendLoop() {
+        List<PendingMessage> batch = new ArrayList<PendingMessage>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            try {
+                PendingMessage first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, batchSize - 1);
+                publish(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("秒杀消息发送线程异常", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 同一个 channel 上连续发布整批，再统一等待 confirm
+     */
+    private void publish(List<PendingMessage> batch) {
+        long start = System.nanoTime();
+        List<CorrelationData> confirms = new ArrayList<CorrelationData>(batch.size());
+        try {
+            rabbitTemplate.invoke(ops -> {
+                for (PendingMessage pm : batch) {
+                    CorrelationData correlation = new CorrelationData(String.valueOf(pm.mm.getRequestId()));
+                    if (partitionEnable) {
+                        ops.send(MQConfig.MIAOSHA_PARTITION_EXCHANGE, String.valueOf(pm.mm.getGoodsId()), pm.message, correlation);
+                    } else {
+                        ops.send("", MQConfig.MIAOSHA_QUEUE, pm.message, correlation);
+                    }
+                    confirms.add(correlation);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("批量发送秒杀消息失败 size:{} sent:{}", batch.size(), confirms.size(), e);
+        }
+        published.addAndGet(confirms.size());
+
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMillis);
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMessage pm = batch.get(i);
+            if (i < confirms.size() && isConfirmed(confirms.get(i), deadline)) {
+                confirmed.incrementAndGet();
+            } else {
+                onFailure(pm);
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        confirmBatches.incrementAndGet();
+        confirmNanos.addAndGet(elapsed);
+        maxConfirmNanos.accumulateAndGet(elapsed, Math::max);
+    }
+
+    private boolean isConfirmed(CorrelationData correlation, long deadline) {
+        try {
+            CorrelationData.Confirm confirm = correlation.getFuture()
+                    .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            // mandatory 下路由失败的消息同样会被 ack，需要再看是否被退回
+            return confirm.isAck() && correlation.getReturned() == null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void onFailure(PendingMessage pm) {
+        failed.incrementAndGet();
+        if (++pm.attempts <= maxRetry && running && buffer.offer(pm)) {
+            retried.incrementAndGet();
+            log.warn("秒杀消息未确认，重试 {}/{}: {}", pm.attempts, maxRetry, pm.mm);
+            return;
+        }
+        // 重试超限先落本地发件箱，写不进去才退回库存
+        if (outbox.append(pm.mm)) {
+            spilled.incrementAndGet();
+            return;
+        }
+        compensate(pm);
+    }
+
+    /**
+     * 投递彻底失败：退回 redis 库存、清除重复秒杀标记
+     */
+    private void compensate(PendingMessage pm) {
+        compensated.incrementAndGet();
+        log.error("秒杀消息投递失败，退回库存: {}", pm.mm);
+        try {
+            miaoshaService.rollbackAdmission(pm.mm.getUserId(), pm.mm.getGoodsId());
+        } catch (Exception e) {
+            log.error("退回库存失败: {}", pm.mm, e);
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        long batches = confirmBatches.get();
+        metrics.put("queueDepth", buffer == null ? 0 : buffer.size());
+        metrics.put("published", published.get());
+        metrics.put("confirmed", confirmed.get());
+        metrics.put("failed", failed.get());
+        metrics.put("retried", retried.get());
+        metrics.put("spilled", spilled.get());
+        metrics.put("compensated", compensated.get());
+        metrics.put("overflow", overflow.get());
+        metrics.put("avgConfirmMillis", batches == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(confirmNanos.get() / batches));
+        metrics.put("maxConfirmMillis", TimeUnit.NANOSECONDS.toMillis(maxConfirmNanos.get()));
+        return metrics;
+    }
+
+    @Scheduled(fixedDelay = 10000)
+    public void logMetrics() {
+        if (enable && published.get() > 0) {
+            log.info("秒杀消息发送统计:{}", metrics());
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enable) {
+            return;
+        }
+        buffer = new ArrayBlockingQueue<PendingMessage>(bufferSize);
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(this::sendLoop, "miaosha-mq-sender-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            senders.add(thread);
+        }
+    }
+
+    /**
+     * 停机时把缓冲区里的消息发完
+     */
+    @Override
+    public void destroy() throws Exception {
+        running = false;
+        for (Thread thread : senders) {
+            thread.join(confirmTimeoutMillis * 2);
+        }
+        PendingMessage pm;
+        while (buffer != null && (pm = buffer.poll()) != null) {
+            if (!outbox.append(pm.mm)) {
+                compensate(pm);
+            }
+        }
+    }
+
+    private static class PendingMessage {
+
+        private final MiaoshaMessage mm;
+
+        private final Message message;
+
+        private int attempts;
+
+        PendingMessage(MiaoshaMessage mm, Message message) {
+            this.mm = mm;
+            this.message = message;
+        }
+    }
+}
@@ -1,15 +1,46 @@
 package com.geekq.miaosha.redis;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public abstract class BasePrefix implements KeyPrefix {
 
+    /**
+     * 已加载的前缀，完整前缀 -> 前缀；同一个类的前缀随类一起加载
+     */
+    private static final Map<String, BasePrefix> REGISTERED = new ConcurrentHashMap<String, BasePrefix>();
+
     private int expireSeconds;
 
     private String prefix;
 
+    private RedisCodec codec;
+
+    private boolean indexed;
+
     public BasePrefix(int expireSeconds, String prefix) {
+        this(expireSeconds, prefix, JsonRedisCodec.INSTANCE);
+    }
 
+    public BasePrefix(int expireSeconds, String prefix, RedisCodec codec) {
+        this(expireSeconds, prefix, codec, false);
+    }
+
+    public BasePrefix(int expireSeconds, String prefix, RedisCodec codec, boolean indexed) {
         this.expireSeconds = expireSeconds;
         this.prefix = prefix;
+        this.codec = codec;
+        this.indexed = indexed;
+        REGISTERED.put(getPrefix(), this);
+    }
+
+    /**
+     * 已加载的所有前缀
+     */
+    public static Collection<BasePrefix> registered() {
+        return Collections.unmodifiableCollection(REGISTERED.values());
     }
 
     public BasePrefix(String prefix) {
@@ -21,6 +52,16 @@ public abstract class BasePrefix implements KeyPrefix {
         return expireSeconds;
     }
 
+    @Override
+    public RedisCodec codec() {
+        return codec;
+    }
+
+    @Override
+    public boolean indexed() {
+        return indexed;
+    }
+
     /**
      * 可确定获取唯一key
      *
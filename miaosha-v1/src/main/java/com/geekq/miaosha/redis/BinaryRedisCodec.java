@@ -0,0 +1,370 @@
+package com.geekq.miaosha.redis;
+
+import com.alibaba.fastjson.JSON;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑二进制编解码，只用于能从数据库重新加载的缓存对象
+ * 按字段固定顺序写值，不写字段名：整数用 zigzag 变长编码，日期写毫秒数，字符串写长度+UTF-8。
+ * 每个对象带一个字段结构的 hash，类增删字段后旧值解码为 null，按缓存未命中重新加载；数据截断或损坏同样解码为 null。
+ * 支持基本类型及包装类、String、Date、BigDecimal、枚举、byte[] 和嵌套的普通对象，不支持集合；
+ * 嵌套对象的运行时类型必须和字段声明类型一致(子类的字段写不进去)，嵌套最多 MAX_DEPTH 层
+ */
+public class BinaryRedisCodec implements RedisCodec {
+
+    public static final BinaryRedisCodec INSTANCE = new BinaryRedisCodec();
+
+    /**
+     * 首字节，和 JSON 的 '{' 区分
+     */
+    private static final byte MAGIC = (byte) 0xB1;
+
+    /**
+     * 对象嵌套最大层数，防止循环引用或自引用类型的数据无限递归
+     */
+    static final int MAX_DEPTH = 32;
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<Class<?>, Schema>();
+
+    @Override
+    public <T> byte[] encode(T value) {
+        if (value == null) {
+            return null;
+        }
+        Output out = new Output(128);
+        out.writeByte(MAGIC);
+        try {
+            writeBean(out, value, schema(value.getClass()), 0);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("二进制编码失败:" + value.getClass().getName(), e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        if (bytes == null || bytes.length == 0 || clazz == null) {
+            return null;
+        }
+        try {
+            // 切换编码前写入的 JSON 值，过期前仍按 JSON 读
+            if (bytes[0] == '{') {
+                return JSON.parseObject(bytes, clazz);
+            }
+            if (bytes[0] != MAGIC) {
+                return null;
+            }
+            return clazz.cast(readBean(new Input(bytes, 1), schema(clazz), 0));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // 损坏的缓存值按未命中处理，由调用方重新加载
+            return null;
+        }
+    }
+
+    private Schema schema(Class<?> clazz) {
+        Schema schema = schemas.get(clazz);
+        if (schema == null) {
+            schema = new Schema(clazz);
+            schemas.put(clazz, schema);
+        }
+        return schema;
+    }
+
+    private void writeBean(Output out, Object bean, Schema schema, int depth) throws IllegalAccessException {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("BinaryRedisCodec 嵌套超过 " + MAX_DEPTH + " 层，可能有循环引用");
+        }
+        out.writeInt(schema.hash);
+        for (Field field : schema.fields) {
+            Class<?> type = field.getType();
+            Object value = field.get(bean);
+            if (!type.isPrimitive()) {
+                if (value == null) {
+                    out.writeByte(0);
+                    continue;
+                }
+                out.writeByte(1);
+            }
+            writeValue(out, field, value, depth);
+        }
+    }
+
+    private Object readBean(Input in, Schema schema, int depth) throws ReflectiveOperationException {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("BinaryRedisCodec 嵌套超过 " + MAX_DEPTH + " 层");
+        }
+        if (in.readInt() != schema.hash) {
+            return null;
+        }
+        Object bean = schema.constructor.newInstance();
+        for (Field field : schema.fields) {
+            Class<?> type = field.getType();
+            if (!type.isPrimitive() && in.readByte() == 0) {
+                continue;
+            }
+            Object value = readValue(in, type, depth);
+            if (value == null) {
+                // 嵌套对象结构不一致，整个值作废
+                return null;
+            }
+            field.set(bean, value);
+        }
+        return bean;
+    }
+
+    private void writeValue(Output out, Field field, Object value, int depth) throws IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == int.class || type == Integer.class || type == short.class || type == Short.class
+                || type == byte.class || type == Byte.class) {
+            out.writeVarLong(((Number) value).longValue());
+        } else if (type == long.class || type == Long.class) {
+            out.writeVarLong((Long) value);
+        } else if (type == boolean.class || type == Boolean.class) {
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if (type == double.class || type == Double.class) {
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == float.class || type == Float.class) {
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (type == char.class || type == Character.class) {
+            out.writeVarLong((Character) value);
+        } else if (type == String.class) {
+            out.writeBytes(((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (type == Date.class) {
+            out.writeVarLong(((Date) value).getTime());
+        } else if (type == BigDecimal.class) {
+            out.writeBytes(value.toString().getBytes(StandardCharsets.US_ASCII));
+        } else if (type == byte[].class) {
+            out.writeBytes((byte[]) value);
+        } else if (type.isEnum()) {
+            out.writeBytes(((Enum<?>) value).name().getBytes(StandardCharsets.UTF_8));
+        } else {
+            // 按声明类型的结构写，子类多出的字段会丢，解码出来的也不是原来的类型
+            if (value.getClass() != type) {
+                throw new IllegalArgumentException("BinaryRedisCodec 字段 " + field.getDeclaringClass().getSimpleName() + "."
+                        + field.getName() + " 声明为 " + type.getName() + "，实际为 " + value.getClass().getName());
+            }
+            writeBean(out, value, schema(type), depth + 1);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object readValue(Input in, Class<?> type, int depth) throws ReflectiveOperationException {
+        if (type == int.class || type == Integer.class) {
+            return (int) in.readVarLong();
+        } else if (type == short.class || type == Short.class) {
+            return (short) in.readVarLong();
+        } else if (type == byte.class || type == Byte.class) {
+            return (byte) in.readVarLong();
+        } else if (type == long.class || type == Long.class) {
+            return in.readVarLong();
+        } else if (type == boolean.class || type == Boolean.class) {
+            return in.readByte() != 0;
+        } else if (type == double.class || type == Double.class) {
+            return Double.longBitsToDouble(in.readLong());
+        } else if (type == float.class || type == Float.class) {
+            return Float.intBitsToFloat(in.readInt());
+        } else if (type == char.class || type == Character.class) {
+            return (char) in.readVarLong();
+        } else if (type == String.class) {
+            return new String(in.readBytes(), StandardCharsets.UTF_8);
+        } else if (type == Date.class) {
+            return new Date(in.readVarLong());
+        } else if (type == BigDecimal.class) {
+            return new BigDecimal(new String(in.readBytes(), StandardCharsets.US_ASCII));
+        } else if (type == byte[].class) {
+            return in.readBytes();
+        } else if (type.isEnum()) {
+            return Enum.valueOf((Class<? extends Enum>) type, new String(in.readBytes(), StandardCharsets.UTF_8));
+        } else {
+            return readBean(in, schema(type), depth + 1);
+        }
+    }
+
+    /**
+     * 类的字段顺序：父类在前，同一个类内按字段名排序
+     */
+    private static class Schema {
+
+        private final Field[] fields;
+
+        private final int hash;
+
+        private final Constructor<?> constructor;
+
+        private Schema(Class<?> clazz) {
+            if (clazz.isArray() || Iterable.class.isAssignableFrom(clazz) || Map.class.isAssignableFrom(clazz)) {
+                throw new IllegalArgumentException("BinaryRedisCodec 不支持集合类型:" + clazz.getName());
+            }
+            List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                hierarchy.add(0, c);
+            }
+            List<Field> fields = new ArrayList<Field>();
+            int hash = 1;
+            for (Class<?> c : hierarchy) {
+                Field[] declared = c.getDeclaredFields();
+                Arrays.sort(declared, Comparator.comparing(Field::getName));
+                for (Field field : declared) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                    hash = 31 * hash + field.getName().hashCode();
+                    hash = 31 * hash + field.getType().getName().hashCode();
+                }
+            }
+            this.fields = fields.toArray(new Field[0]);
+            this.hash = hash;
+            try {
+                this.constructor = clazz.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("BinaryRedisCodec 需要无参构造方法:" + clazz.getName(), e);
+            }
+        }
+    }
+
+    private static class Output {
+
+        private byte[] buf;
+
+        private int pos;
+
+        private Output(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        private void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        private void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        /**
+         * zigzag + 7 位一组，小的正负数都只占一两个字节
+         */
+        private void writeVarLong(long v) {
+            ensure(10);
+            long zigzag = (v << 1) ^ (v >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[pos++] = (byte) zigzag;
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class Input {
+
+        private final byte[] buf;
+
+        private int pos;
+
+        private Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        /**
+         * 剩余不足 n 字节说明数据被截断
+         */
+        private void require(int n) {
+            if (n < 0 || n > buf.length - pos) {
+                throw new IllegalArgumentException("BinaryRedisCodec 数据截断或损坏，位置 " + pos + " 需要 " + n + " 字节");
+            }
+        }
+
+        private byte readByte() {
+            require(1);
+            return buf[pos++];
+        }
+
+        private int readInt() {
+            require(4);
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readLong() {
+            require(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readVarLong() {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (shift > 63) {
+                    throw new IllegalArgumentException("BinaryRedisCodec 变长整数超过 10 字节，位置 " + pos);
+                }
+                b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        private byte[] readBytes() {
+            long length = readVarLong();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("BinaryRedisCodec 非法长度 " + length);
+            }
+            require((int) length);
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + (int) length);
+            pos += (int) length;
+            return bytes;
+        }
+    }
+}
@@ -2,11 +2,24 @@ package com.geekq.miaosha.redis;
 
 public class GoodsKey extends BasePrefix {
 
-    public static GoodsKey getGoodsList = new GoodsKey(60, "gl");
-    public static GoodsKey getGoodsDetail = new GoodsKey(60, "gd");
+    // 页面缓存原样存 html 字节，命中时直接写给响应；登记索引，改版时可以整体清掉
+    public static GoodsKey getGoodsList = new GoodsKey(60, "gl", RawRedisCodec.INSTANCE, true);
+    public static GoodsKey getGoodsDetail = new GoodsKey(60, "gd", RawRedisCodec.INSTANCE, true);
     public static GoodsKey getMiaoshaGoodsStock = new GoodsKey(0, "gs");
+    // 持有库存租约的节点，只在所有租约都还回或用完后才标记售罄
+    public static GoodsKey getMiaoshaGoodsLeaseHolders = new GoodsKey(0, "lh");
+    public static GoodsKey getGoodsVo = new GoodsKey(600, "gv", BinaryRedisCodec.INSTANCE);
+    public static GoodsKey goodsVersion = new GoodsKey(0, "gver");
     private GoodsKey(int expireSeconds, String prefix) {
         super(expireSeconds, prefix);
     }
 
+    private GoodsKey(int expireSeconds, String prefix, RedisCodec codec) {
+        super(expireSeconds, prefix, codec);
+    }
+
+    private GoodsKey(int expireSeconds, String prefix, RedisCodec codec, boolean indexed) {
+        super(expireSeconds, prefix, codec, indexed);
+    }
+
 }
@@ -0,0 +1,13 @@
+package com.geekq.miaosha.redis;
+
+public class IdWorkerKey extends BasePrefix {
+
+    /**
+     * snowflake worker id 租约，定时续期
+     */
+    public static IdWorkerKey lease = new IdWorkerKey(60, "lease");
+
+    private IdWorkerKey(int expireSeconds, String prefix) {
+        super(expireSeconds, prefix);
+    }
+}
@@ -0,0 +1,65 @@
+package com.geekq.miaosha.redis;
+
+import com.alibaba.fastjson.JSON;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 默认编解码：整数、字符串按原文存(incr/decr、lua 脚本可以直接操作)，其他对象 fastjson 直接读写 byte[]，只解析一次
+ */
+public class JsonRedisCodec implements RedisCodec {
+
+    public static final JsonRedisCodec INSTANCE = new JsonRedisCodec();
+
+    @Override
+    public <T> byte[] encode(T value) {
+        if (value == null) {
+            return null;
+        }
+        Class<?> clazz = value.getClass();
+        if (clazz == Integer.class || clazz == Long.class) {
+            return value.toString().getBytes(StandardCharsets.US_ASCII);
+        } else if (clazz == String.class) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8);
+        } else if (clazz == byte[].class) {
+            return (byte[]) value;
+        } else {
+            return JSON.toJSONBytes(value);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        if (bytes == null || bytes.length == 0 || clazz == null) {
+            return null;
+        }
+        if (clazz == int.class || clazz == Integer.class) {
+            return (T) Integer.valueOf((int) parseLong(bytes));
+        } else if (clazz == long.class || clazz == Long.class) {
+            return (T) Long.valueOf(parseLong(bytes));
+        } else if (clazz == String.class) {
+            return (T) new String(bytes, StandardCharsets.UTF_8);
+        } else if (clazz == byte[].class) {
+            return (T) bytes;
+        } else {
+            return JSON.parseObject(bytes, clazz);
+        }
+    }
+
+    /**
+     * 直接从 ascii 数字解析，不创建中间 String
+     */
+    static long parseLong(byte[] bytes) {
+        boolean negative = bytes[0] == '-';
+        long value = 0;
+        for (int i = negative ? 1 : 0; i < bytes.length; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("非法整数:" + new String(bytes, StandardCharsets.US_ASCII));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+}
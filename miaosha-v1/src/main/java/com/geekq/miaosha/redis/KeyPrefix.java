@@ -6,4 +6,18 @@ public interface KeyPrefix {
 
     public String getPrefix();
 
+    /**
+     * 值的编解码，默认整数、字符串原文存，对象存 JSON
+     */
+    public default RedisCodec codec() {
+        return JsonRedisCodec.INSTANCE;
+    }
+
+    /**
+     * 是否登记前缀索引：set 类写入同时把 key 记进索引集合，delete(KeyPrefix) 按索引分批删除，不用扫全库
+     */
+    public default boolean indexed() {
+        return false;
+    }
+
 }
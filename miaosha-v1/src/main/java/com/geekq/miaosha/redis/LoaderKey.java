@@ -0,0 +1,13 @@
+package com.geekq.miaosha.redis;
+
+public class LoaderKey extends BasePrefix {
+
+    /**
+     * 集群内只允许一个节点回源加载同一个缓存 key，锁只保护加载过程，几秒即过期
+     */
+    public static LoaderKey lock = new LoaderKey(3, "lock");
+
+    private LoaderKey(int expireSeconds, String prefix) {
+        super(expireSeconds, prefix);
+    }
+}
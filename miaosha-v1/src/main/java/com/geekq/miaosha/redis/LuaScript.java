@@ -0,0 +1,74 @@
+package com.geekq.miaosha.redis;
+
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个已注册的 lua 脚本，按 sha 执行
+ * sha 在本地按脚本内容算出，不依赖启动时是否加载成功；redis 重启或主从切换后返回 NOSCRIPT 时重新加载再执行一次
+ */
+public class LuaScript {
+
+    private final String name;
+
+    private final String source;
+
+    private final String sha;
+
+    private final RedisService redisService;
+
+    LuaScript(String name, String source, String sha, RedisService redisService) {
+        this.name = name;
+        this.source = source;
+        this.sha = sha;
+        this.redisService = redisService;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSha() {
+        return sha;
+    }
+
+    /**
+     * 执行脚本，结果格式同 Jedis.evalsha
+     */
+    public Object eval(List<String> keys, List<String> args) {
+        try {
+            return redisService.evalsha(sha, keys, args);
+        } catch (JedisNoScriptException e) {
+            load();
+            return redisService.evalsha(sha, keys, args);
+        }
+    }
+
+    /**
+     * 脚本返回整数
+     */
+    public Long evalForLong(List<String> keys, List<String> args) {
+        return (Long) eval(keys, args);
+    }
+
+    /**
+     * 脚本返回数组，元素转成字符串
+     */
+    public List<String> evalForList(List<String> keys, List<String> args) {
+        List<?> ret = (List<?>) eval(keys, args);
+        List<String> result = new ArrayList<String>(ret.size());
+        for (Object item : ret) {
+            result.add(item == null ? null : String.valueOf(item));
+        }
+        return result;
+    }
+
+    /**
+     * 把脚本加载进 redis 的脚本缓存
+     */
+    void load() {
+        redisService.scriptLoad(source);
+    }
+}
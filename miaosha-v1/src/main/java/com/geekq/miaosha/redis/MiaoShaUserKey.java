@@ -2,10 +2,19 @@ package com.geekq.miaosha.redis;
 
 public class MiaoShaUserKey extends BasePrefix {
     public static final int TOKEN_EXPIRE = 3600 * 24 * 2; // Token过期机制 ：2天。
-    public static MiaoShaUserKey token = new MiaoShaUserKey(TOKEN_EXPIRE, "tk");
-    public static MiaoShaUserKey getByNickName = new MiaoShaUserKey(0, "nickName");
+    // token 对应的就是登录态，没有地方重新加载，保持 JSON 以兼容类的字段变化；登记索引，可以整体踢下线
+    public static MiaoShaUserKey token = new MiaoShaUserKey(TOKEN_EXPIRE, "tk", JsonRedisCodec.INSTANCE, true);
+    public static MiaoShaUserKey getByNickName = new MiaoShaUserKey(0, "nickName", BinaryRedisCodec.INSTANCE);
 
     public MiaoShaUserKey(int expireSeconds, String prefix) {
         super(expireSeconds, prefix);
     }
+
+    private MiaoShaUserKey(int expireSeconds, String prefix, RedisCodec codec) {
+        super(expireSeconds, prefix, codec);
+    }
+
+    private MiaoShaUserKey(int expireSeconds, String prefix, RedisCodec codec, boolean indexed) {
+        super(expireSeconds, prefix, codec, indexed);
+    }
 }
@@ -3,9 +3,14 @@ package com.geekq.miaosha.redis;
 public class MiaoshaKey extends BasePrefix {
 
     public static MiaoshaKey isGoodsOver = new MiaoshaKey(0, "go");
+    // 所有已售罄的商品id，一个集合，订阅重连后一次 SMEMBERS 重建本地标记
+    public static MiaoshaKey goodsOverSet = new MiaoshaKey(0, "gos");
     public static MiaoshaKey getMiaoshaPath = new MiaoshaKey(60, "mp");
     public static MiaoshaKey getMiaoshaVerifyCode = new MiaoshaKey(300, "vc");
     public static MiaoshaKey getMiaoshaVerifyCodeRegister = new MiaoshaKey(300, "register");
+    // 购买标记只在下单完成前防重，下单后由秒杀订单缓存防重；过期兜底没清掉的标记
+    public static MiaoshaKey isUserMiaosha = new MiaoshaKey(3600 * 24, "um");
+    public static MiaoshaKey orderRequestDone = new MiaoshaKey(3600 * 24, "rd");
     private MiaoshaKey(int expireSeconds, String prefix) {
         super(expireSeconds, prefix);
     }
@@ -0,0 +1,367 @@
+package com.geekq.miaosha.redis;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.commands.ProtocolCommand;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多路复用的 redis 连接
+ * 所有线程共用一个连接：调用方把命令放进队列立即拿到 CompletableFuture，
+ * 写线程把队列里积攒的命令一次写出(天然 pipeline)，读线程按顺序读回复完成对应的 future。
+ * 热点命令不再从 JedisPool 借连接，并发再高也不会卡在等连接上；连接断开时失败所有未完成的命令并重连
+ */
+@Component
+public class MultiplexedRedisClient implements InitializingBean, DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(MultiplexedRedisClient.class);
+
+    @Autowired
+    RedisConfig redisConfig;
+
+    @Value("${miaosha.redis.multiplexed.enable:false}")
+    private boolean enable;
+
+    /**
+     * 一次最多写出的命令数
+     */
+    @Value("${miaosha.redis.multiplexed.max-batch:512}")
+    private int maxBatch;
+
+    @Value("${miaosha.redis.multiplexed.queue-size:65536}")
+    private int queueSize;
+
+    /**
+     * 同步调用等待回复的最长时间(毫秒)
+     */
+    @Value("${miaosha.redis.multiplexed.timeout:1000}")
+    private long timeoutMillis;
+
+    private BlockingQueue<Command> pending;
+
+    private volatile boolean running;
+
+    private Channel channel;
+
+    private final AtomicLong commands = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong reconnects = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enable;
+    }
+
+    /**
+     * 异步执行一条命令，回复为 jedis 原始格式：byte[]、Long、List 或状态码 byte[]
+     */
+    public CompletableFuture<Object> execute(ProtocolCommand command, byte[]... args) {
+        Command c = new Command(command, args);
+        if (!running) {
+            c.future.completeExceptionally(new JedisConnectionException("多路复用连接未启动"));
+        } else if (!pending.offer(c)) {
+            c.future.completeExceptionally(new JedisConnectionException("redis 命令队列已满"));
+        }
+        return c.future;
+    }
+
+    /**
+     * 同步等待结果，redis 返回的错误原样抛出(如 JedisNoScriptException)
+     */
+    public <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new JedisConnectionException(cause);
+        } catch (TimeoutException e) {
+            throw new JedisConnectionException("redis 命令超时 " + timeoutMillis + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException("等待 redis 回复被中断", e);
+        }
+    }
+
+    /**
+     * 写线程：攒一批命令写出并 flush，回复由连接自己的读线程处理
+     */
+    private void writeLoop() {
+        List<Command> batch = new ArrayList<Command>(maxBatch);
+        while (running) {
+            try {
+                Command first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, maxBatch - 1);
+                Channel ch = connected();
+                if (ch == null) {
+                    fail(batch, new JedisConnectionException("redis 连接不可用"));
+                } else if (ch.register(batch)) {
+                    try {
+                        for (Command c : batch) {
+                            ch.connection.send(c.command, c.args);
+                        }
+                        ch.connection.flushOut();
+                        commands.addAndGet(batch.size());
+                        batches.incrementAndGet();
+                    } catch (JedisConnectionException e) {
+                        ch.close(e);
+                    }
+                } else {
+                    fail(batch, new JedisConnectionException("redis 连接已断开"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("多路复用连接写出失败", e);
+                fail(batch, e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static void fail(List<Command> batch, Exception e) {
+        for (Command c : batch) {
+            c.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 当前连接，断开后由写线程重连；连不上时本批命令直接失败，1 秒内不再重试
+     */
+    private Channel connected() {
+        Channel ch = channel;
+        if (ch != null && !ch.closed) {
+            return ch;
+        }
+        if (ch != null && System.currentTimeMillis() - ch.closedAt < 1000) {
+            return null;
+        }
+        try {
+            channel = new Channel(open());
+            if (ch != null) {
+                reconnects.incrementAndGet();
+            }
+            logger.info("多路复用 redis 连接已建立 {}:{}", redisConfig.getHost(), redisConfig.getPort());
+            return channel;
+        } catch (Exception e) {
+            logger.error("多路复用 redis 连接失败", e);
+            if (ch != null) {
+                ch.closedAt = System.currentTimeMillis();
+            }
+            return null;
+        }
+    }
+
+    private DuplexConnection open() {
+        DuplexConnection connection = new DuplexConnection(redisConfig.getHost(), redisConfig.getPort());
+        connection.setConnectionTimeout((int) timeoutMillis);
+        connection.connect();
+        if (StringUtils.isNotEmpty(redisConfig.getPassword())) {
+            connection.sendCommand(Protocol.Command.AUTH, redisConfig.getPassword());
+            connection.getStatusCodeReply();
+        }
+        // 读线程一直阻塞在读回复上
+        connection.setTimeoutInfinite();
+        return connection;
+    }
+
+    @Scheduled(fixedDelay = 10000)
+    public void logMetrics() {
+        if (enable && commands.get() > 0) {
+            logger.info("redis 多路复用统计:{}", metrics());
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        long written = batches.get();
+        metrics.put("commands", commands.get());
+        metrics.put("avgBatch", written == 0 ? 0 : commands.get() / written);
+        metrics.put("queueDepth", pending == null ? 0 : pending.size());
+        metrics.put("reconnects", reconnects.get());
+        return metrics;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enable) {
+            return;
+        }
+        pending = new ArrayBlockingQueue<Command>(queueSize);
+        running = true;
+        Thread writer = new Thread(this::writeLoop, "redis-multiplexed-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        running = false;
+        Channel ch = channel;
+        if (ch != null) {
+            ch.close(new JedisConnectionException("多路复用连接已关闭"));
+        }
+    }
+
+    private static class Command {
+
+        private final ProtocolCommand command;
+
+        private final byte[][] args;
+
+        private final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+        private Command(ProtocolCommand command, byte[][] args) {
+            this.command = command;
+            this.args = args;
+        }
+    }
+
+    /**
+     * 一个物理连接和它已发出、等待回复的命令；回复按发送顺序返回
+     */
+    private static class Channel {
+
+        private final DuplexConnection connection;
+
+        private final Queue<Command> inflight = new ArrayDeque<Command>();
+
+        private volatile boolean closed;
+
+        private volatile long closedAt;
+
+        private Channel(DuplexConnection connection) {
+            this.connection = connection;
+            Thread reader = new Thread(this::readLoop, "redis-multiplexed-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * 先登记再发送，读线程读到回复时一定能找到对应的命令
+         */
+        private synchronized boolean register(List<Command> batch) {
+            if (closed) {
+                return false;
+            }
+            inflight.addAll(batch);
+            return true;
+        }
+
+        private synchronized Command next() {
+            return inflight.poll();
+        }
+
+        private void readLoop() {
+            while (!closed) {
+                Object reply;
+                try {
+                    reply = connection.readReply();
+                } catch (JedisDataException e) {
+                    // 错误回复只影响对应的命令
+                    Command c = next();
+                    if (c != null) {
+                        c.future.completeExceptionally(e);
+                    }
+                    continue;
+                } catch (Exception e) {
+                    close(e);
+                    return;
+                }
+                Command c = next();
+                if (c != null) {
+                    c.future.complete(reply);
+                }
+            }
+        }
+
+        private void close(Exception cause) {
+            List<Command> failed;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                closedAt = System.currentTimeMillis();
+                failed = new ArrayList<Command>(inflight);
+                inflight.clear();
+            }
+            logger.warn("多路复用 redis 连接断开，失败 {} 条未完成命令", failed.size(), cause);
+            connection.close();
+            JedisConnectionException e = cause instanceof JedisConnectionException
+                    ? (JedisConnectionException) cause : new JedisConnectionException(cause);
+            fail(failed, e);
+        }
+    }
+
+    /**
+     * 把 jedis Connection 的写出和读回复拆开，分别在写线程和读线程上调用
+     */
+    private static class DuplexConnection extends Connection {
+
+        private DuplexConnection(String host, int port) {
+            super(host, port);
+        }
+
+        private void send(ProtocolCommand command, byte[][] args) {
+            sendCommand(command, args);
+        }
+
+        private void flushOut() {
+            flush();
+        }
+
+        private Object readReply() {
+            return readProtocolWithCheckingBroken();
+        }
+    }
+
+    /**
+     * evalsha 的回复转换成和 Jedis.evalsha 一致的格式：byte[] 转 String，列表逐个转换
+     */
+    public static Object evalResult(Object reply) {
+        if (reply instanceof byte[]) {
+            return SafeEncoder.encode((byte[]) reply);
+        }
+        if (reply instanceof List) {
+            List<?> list = (List<?>) reply;
+            List<Object> result = new ArrayList<Object>(list.size());
+            for (Object item : list) {
+                result.add(evalResult(item));
+            }
+            return result;
+        }
+        return reply;
+    }
+}
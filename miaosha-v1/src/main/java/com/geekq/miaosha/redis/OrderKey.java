@@ -2,10 +2,19 @@ package com.geekq.miaosha.redis;
 
 public class OrderKey extends BasePrefix {
 
-    public static OrderKey getMiaoshaOrderByUidGid = new OrderKey("moug");
+    // 登记索引，活动结束后可以整体清掉
+    public static OrderKey getMiaoshaOrderByUidGid = new OrderKey("moug", true);
+    /**
+     * 未支付订单超时队列(有序集合)，member 为订单id，score 为超时时间
+     */
+    public static OrderKey orderTimeout = new OrderKey("timeout");
 
 
     public OrderKey(String prefix) {
         super(prefix);
     }
+
+    private OrderKey(String prefix, boolean indexed) {
+        super(0, prefix, JsonRedisCodec.INSTANCE, indexed);
+    }
 }
@@ -0,0 +1,20 @@
+package com.geekq.miaosha.redis;
+
+public class PrefixIndexKey extends BasePrefix {
+
+    /**
+     * 登记了索引的前缀下写过的 key，集合 key 为本前缀 + 被索引的前缀，成员为不带前缀的 key
+     */
+    public static PrefixIndexKey members = new PrefixIndexKey(0, "m");
+
+    private PrefixIndexKey(int expireSeconds, String prefix) {
+        super(expireSeconds, prefix);
+    }
+
+    /**
+     * prefix 的索引集合
+     */
+    public static String of(KeyPrefix prefix) {
+        return members.getPrefix() + prefix.getPrefix();
+    }
+}
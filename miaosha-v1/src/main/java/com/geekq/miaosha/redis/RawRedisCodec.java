@@ -0,0 +1,38 @@
+package com.geekq.miaosha.redis;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 原样存取：byte[] 不做任何转换，String 按 UTF-8；用于页面缓存这类大文本，命中时可直接把 byte[] 写给响应
+ */
+public class RawRedisCodec implements RedisCodec {
+
+    public static final RawRedisCodec INSTANCE = new RawRedisCodec();
+
+    @Override
+    public <T> byte[] encode(T value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        } else if (value instanceof String) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8);
+        }
+        throw new IllegalArgumentException("RawRedisCodec 只支持 byte[] 和 String:" + value.getClass().getName());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        if (bytes == null || clazz == null) {
+            return null;
+        }
+        if (clazz == byte[].class) {
+            return (T) bytes;
+        } else if (clazz == String.class) {
+            return (T) new String(bytes, StandardCharsets.UTF_8);
+        }
+        throw new IllegalArgumentException("RawRedisCodec 只支持 byte[] 和 String:" + clazz.getName());
+    }
+}
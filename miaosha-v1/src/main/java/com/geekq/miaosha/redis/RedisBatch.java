@@ -0,0 +1,149 @@
+package com.geekq.miaosha.redis;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * 一次 pipeline 里的命令，由 RedisService.pipeline 提供，同一个连接上一次往返提交。
+ * 返回的 Supplier 要等 pipeline 提交后才能取值
+ */
+public class RedisBatch {
+
+    private final Pipeline pipeline;
+
+    /**
+     * 本批写入的登记了索引的 key，提交后按写入结果登记
+     */
+    private final List<Written> written = new ArrayList<Written>();
+
+    RedisBatch(Pipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    private static byte[] realKey(KeyPrefix prefix, String key) {
+        return SafeEncoder.encode(prefix.getPrefix() + key);
+    }
+
+    public <T> Supplier<T> get(KeyPrefix prefix, String key, Class<T> clazz) {
+        Response<byte[]> value = pipeline.get(realKey(prefix, key));
+        return () -> prefix.codec().decode(value.get(), clazz);
+    }
+
+    /**
+     * 按前缀的有效期写入
+     */
+    public <T> void set(KeyPrefix prefix, String key, T value) {
+        set(prefix, key, value, prefix.expireSeconds());
+    }
+
+    /**
+     * 有效期由调用方指定，<=0 表示不过期
+     */
+    public <T> void set(KeyPrefix prefix, String key, T value, int seconds) {
+        byte[] bytes = prefix.codec().encode(value);
+        if (bytes == null || bytes.length <= 0) {
+            return;
+        }
+        Response<String> ret = seconds <= 0
+                ? pipeline.set(realKey(prefix, key), bytes)
+                : pipeline.setex(realKey(prefix, key), seconds, bytes);
+        index(prefix, key, ret);
+    }
+
+    /**
+     * key 不存在时写入，带上前缀的有效期
+     */
+    public <T> Supplier<Boolean> setIfAbsent(KeyPrefix prefix, String key, T value) {
+        SetParams params = SetParams.setParams().nx();
+        if (prefix.expireSeconds() > 0) {
+            params.ex(prefix.expireSeconds());
+        }
+        Response<String> ret = pipeline.set(realKey(prefix, key), prefix.codec().encode(value), params);
+        index(prefix, key, ret);
+        return () -> "OK".equals(ret.get());
+    }
+
+    public Supplier<Boolean> exists(KeyPrefix prefix, String key) {
+        Response<Boolean> ret = pipeline.exists(realKey(prefix, key));
+        return ret::get;
+    }
+
+    public Supplier<Long> incr(KeyPrefix prefix, String key) {
+        Response<Long> ret = pipeline.incr(realKey(prefix, key));
+        return ret::get;
+    }
+
+    public Supplier<Long> incrBy(KeyPrefix prefix, String key, long value) {
+        Response<Long> ret = pipeline.incrBy(realKey(prefix, key), value);
+        return ret::get;
+    }
+
+    public Supplier<Long> decr(KeyPrefix prefix, String key) {
+        Response<Long> ret = pipeline.decr(realKey(prefix, key));
+        return ret::get;
+    }
+
+    /**
+     * 剩余有效期(秒)，-1 没有过期时间，-2 key 不存在
+     */
+    public Supplier<Long> ttl(KeyPrefix prefix, String key) {
+        Response<Long> ret = pipeline.ttl(realKey(prefix, key));
+        return ret::get;
+    }
+
+    public void expire(KeyPrefix prefix, String key, int seconds) {
+        pipeline.expire(realKey(prefix, key), seconds);
+    }
+
+    public void delete(KeyPrefix prefix, String key) {
+        pipeline.del(realKey(prefix, key));
+    }
+
+    private void index(KeyPrefix prefix, String key, Response<String> ret) {
+        if (prefix.indexed()) {
+            written.add(new Written(prefix, key, ret));
+        }
+    }
+
+    /**
+     * 本批提交后调用：写入成功(NX 没抢到的不算)的 key 才记进索引集合，索引集合本身不过期，
+     * 成员过期后由 RedisService.pruneIndexes 清理
+     *
+     * @return 是否有要登记的 key，有时调用方再提交一次 next
+     */
+    boolean indexWritten(Pipeline next) {
+        boolean any = false;
+        for (Written w : written) {
+            if ("OK".equals(w.ret.get())) {
+                next.sadd(PrefixIndexKey.of(w.prefix), w.key);
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    boolean hasIndexed() {
+        return !written.isEmpty();
+    }
+
+    private static class Written {
+
+        private final KeyPrefix prefix;
+
+        private final String key;
+
+        private final Response<String> ret;
+
+        private Written(KeyPrefix prefix, String key, Response<String> ret) {
+            this.prefix = prefix;
+            this.key = key;
+            this.ret = ret;
+        }
+    }
+}
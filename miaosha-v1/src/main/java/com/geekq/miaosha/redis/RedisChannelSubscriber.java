@@ -0,0 +1,97 @@
+package com.geekq.miaosha.redis;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.function.Consumer;
+
+/**
+ * 订阅一个 redis 频道，订阅线程独占一个连接，断线后 1 秒重连
+ * 每次(重新)订阅成功后先回调 onSubscribed，断线期间可能漏掉消息，调用方在这里重建本地状态；
+ * 回调和消息都在订阅线程上执行，回调完成后才处理新消息
+ */
+public class RedisChannelSubscriber {
+
+    private static Logger logger = LoggerFactory.getLogger(RedisChannelSubscriber.class);
+
+    private final RedisConfig redisConfig;
+
+    private final String channel;
+
+    private final Consumer<String> onMessage;
+
+    private final Runnable onSubscribed;
+
+    private volatile boolean running;
+
+    private final JedisPubSub listener = new JedisPubSub() {
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            try {
+                onSubscribed.run();
+            } catch (Exception e) {
+                logger.error("订阅频道 {} 后重建本地状态失败", channel, e);
+            }
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            onMessage.accept(message);
+        }
+    };
+
+    public RedisChannelSubscriber(RedisConfig redisConfig, String channel,
+                                  Consumer<String> onMessage, Runnable onSubscribed) {
+        this.redisConfig = redisConfig;
+        this.channel = channel;
+        this.onMessage = onMessage;
+        this.onSubscribed = onSubscribed;
+    }
+
+    /**
+     * 启动守护线程订阅
+     */
+    public void start(String threadName) {
+        running = true;
+        Thread thread = new Thread(this::subscribe, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (listener.isSubscribed()) {
+            listener.unsubscribe();
+        }
+    }
+
+    private void subscribe() {
+        while (running) {
+            Jedis subscriber = null;
+            try {
+                subscriber = new Jedis(redisConfig.getHost(), redisConfig.getPort(), 0);
+                if (StringUtils.isNotEmpty(redisConfig.getPassword())) {
+                    subscriber.auth(redisConfig.getPassword());
+                }
+                subscriber.subscribe(listener, channel);
+            } catch (Exception e) {
+                if (running) {
+                    logger.error("订阅频道 {} 断开，1秒后重连", channel, e);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            } finally {
+                if (subscriber != null) {
+                    subscriber.close();
+                }
+            }
+        }
+    }
+}
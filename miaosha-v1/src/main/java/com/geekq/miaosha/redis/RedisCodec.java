@@ -0,0 +1,18 @@
+package com.geekq.miaosha.redis;
+
+/**
+ * redis 值编解码
+ * 每个 KeyPrefix 指定自己的编解码，RedisService 按前缀直接读写 byte[]，不经过中间 String
+ */
+public interface RedisCodec {
+
+    /**
+     * @return null 或空数组表示不写入
+     */
+    <T> byte[] encode(T value);
+
+    /**
+     * @param bytes key 不存在时为 null
+     */
+    <T> T decode(byte[] bytes, Class<T> clazz);
+}
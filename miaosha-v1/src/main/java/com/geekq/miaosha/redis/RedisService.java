@@ -2,15 +2,32 @@ package com.geekq.miaosha.redis;
 
 import com.alibaba.fastjson.JSON;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ScanParams;
 import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.SafeEncoder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 
 @Service
 @Slf4j
@@ -19,6 +36,18 @@ public class RedisService {
     @Autowired
     JedisPool jedisPool;
 
+    /**
+     * 开启后热点命令走共享的多路复用连接，不再从连接池借连接
+     */
+    @Autowired
+    MultiplexedRedisClient multiplexed;
+
+    /**
+     * delete(KeyPrefix) 每批 UNLINK 的 key 数
+     */
+    @Value("${miaosha.redis.delete-batch:500}")
+    private int deleteBatch;
+
     public static <T> String beanToString(T value) {
         if (value == null) {
             return null;
@@ -78,6 +107,29 @@ public class RedisService {
         return result;
     }
 
+    /**
+     * key 不存在时设置，带上前缀的有效期
+     *
+     * @return 是否设置成功
+     */
+    public boolean setnx(KeyPrefix prefix, String key, String value) {
+        Jedis jedis = null;
+        try {
+            if (prefix.indexed()) {
+                return pipelineGet(batch -> batch.setIfAbsent(prefix, key, value));
+            }
+            jedis = jedisPool.getResource();
+            String realKey = prefix.getPrefix() + key;
+            int seconds = prefix.expireSeconds();
+            if (seconds <= 0) {
+                return jedis.setnx(realKey, value) == 1;
+            }
+            return "OK".equals(jedis.set(realKey, value, SetParams.setParams().nx().ex(seconds)));
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
     /**
      * 设置key的有效期，单位是秒
      *
@@ -106,17 +158,36 @@ public class RedisService {
     }
 
     /**
-     * 获取当个对象
+     * 获取当个对象，按前缀的编解码直接从 byte[] 解码
      */
     public <T> T get(KeyPrefix prefix, String key, Class<T> clazz) {
+        if (multiplexed.isEnabled()) {
+            return multiplexed.await(getAsync(prefix, key, clazz));
+        }
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             //生成真正的key
-            String realKey = prefix.getPrefix() + key;
-            String str = jedis.get(realKey);
-            T t = stringToBean(str, clazz);
-            return t;
+            byte[] realKey = SafeEncoder.encode(prefix.getPrefix() + key);
+            return prefix.codec().decode(jedis.get(realKey), clazz);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 取对象和剩余有效期(秒)，一次 pipeline；key 不存在时对象为 null
+     */
+    public <T> Pair<T, Long> getWithTtl(KeyPrefix prefix, String key, Class<T> clazz) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            byte[] realKey = SafeEncoder.encode(prefix.getPrefix() + key);
+            Pipeline pipeline = jedis.pipelined();
+            Response<byte[]> value = pipeline.get(realKey);
+            Response<Long> ttl = pipeline.ttl(realKey);
+            pipeline.sync();
+            return Pair.of(prefix.codec().decode(value.get(), clazz), ttl.get());
         } finally {
             returnToPool(jedis);
         }
@@ -162,23 +233,35 @@ public class RedisService {
      * 设置对象
      */
     public <T> boolean set(KeyPrefix prefix, String key, T value) {
+        return set(prefix, key, value, prefix.expireSeconds());
+    }
+
+    /**
+     * 设置对象，有效期由调用方指定，<=0 表示不过期
+     */
+    public <T> boolean set(KeyPrefix prefix, String key, T value, int seconds) {
+        if (multiplexed.isEnabled()) {
+            return multiplexed.await(setAsync(prefix, key, value, seconds));
+        }
+        byte[] bytes = prefix.codec().encode(value);
+        if (bytes == null || bytes.length <= 0) {
+            return false;
+        }
+        if (prefix.indexed()) {
+            // 写入和登记索引一次往返
+            pipeline(batch -> batch.set(prefix, key, value, seconds));
+            return true;
+        }
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
-            String str = beanToString(value);
-            if (str == null || str.length() <= 0) {
-                return false;
-            }
             //生成真正的key
-            String realKey = prefix.getPrefix() + key;
-            int seconds = prefix.expireSeconds();
-
-            log.info("redis 存入数据：" + realKey);
-            log.info("redis 存入数据：" + str);
+            byte[] realKey = SafeEncoder.encode(prefix.getPrefix() + key);
+            log.debug("redis 存入数据：{} {} bytes", prefix.getPrefix() + key, bytes.length);
             if (seconds <= 0) {
-                jedis.set(realKey, str);
+                jedis.set(realKey, bytes);
             } else {
-                jedis.setex(realKey, seconds, str);
+                jedis.setex(realKey, seconds, bytes);
             }
             return true;
         } finally {
@@ -186,10 +269,189 @@ public class RedisService {
         }
     }
 
+    /**
+     * 批量取同一前缀下的多个对象，一次 MGET；结果和 keys 一一对应，不存在的为 null
+     */
+    public <T> List<T> mget(KeyPrefix prefix, Class<T> clazz, Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        byte[][] realKeys = new byte[keys.size()][];
+        int i = 0;
+        for (String key : keys) {
+            realKeys[i++] = SafeEncoder.encode(prefix.getPrefix() + key);
+        }
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            List<byte[]> values = jedis.mget(realKeys);
+            List<T> result = new ArrayList<T>(values.size());
+            for (byte[] value : values) {
+                result.add(prefix.codec().decode(value, clazz));
+            }
+            return result;
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    public <T> List<T> mget(KeyPrefix prefix, Class<T> clazz, String... keys) {
+        return mget(prefix, clazz, Arrays.asList(keys));
+    }
+
+    /**
+     * 批量设置同一前缀下的对象：前缀不过期且不登记索引时一次 MSET，否则 pipeline 逐个写入
+     */
+    public <T> void mset(KeyPrefix prefix, Map<String, T> values) {
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+        if (prefix.expireSeconds() > 0 || prefix.indexed()) {
+            pipeline(batch -> {
+                for (Map.Entry<String, T> entry : values.entrySet()) {
+                    batch.set(prefix, entry.getKey(), entry.getValue());
+                }
+            });
+            return;
+        }
+        List<byte[]> keysValues = new ArrayList<byte[]>(values.size() * 2);
+        for (Map.Entry<String, T> entry : values.entrySet()) {
+            byte[] bytes = prefix.codec().encode(entry.getValue());
+            if (bytes == null || bytes.length <= 0) {
+                continue;
+            }
+            keysValues.add(SafeEncoder.encode(prefix.getPrefix() + entry.getKey()));
+            keysValues.add(bytes);
+        }
+        if (keysValues.isEmpty()) {
+            return;
+        }
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            jedis.mset(keysValues.toArray(new byte[0][]));
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 在一个连接上 pipeline 执行多条命令，一次往返；可以跨前缀、混合读写
+     */
+    public void pipeline(Consumer<RedisBatch> commands) {
+        pipelineGet(batch -> {
+            commands.accept(batch);
+            return () -> null;
+        });
+    }
+
+    /**
+     * 同 pipeline，commands 返回的 Supplier 在提交之后求值，用来组合各命令的结果
+     */
+    public <R> R pipelineGet(Function<RedisBatch, Supplier<R>> commands) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            Pipeline pipeline = jedis.pipelined();
+            RedisBatch batch = new RedisBatch(pipeline);
+            Supplier<R> result = commands.apply(batch);
+            pipeline.sync();
+            if (batch.hasIndexed()) {
+                // 写入成功后才登记索引，多一次往返
+                Pipeline index = jedis.pipelined();
+                if (batch.indexWritten(index)) {
+                    index.sync();
+                }
+            }
+            return result.get();
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 有序集合批量添加，member -> score
+     */
+    public Long zadd(KeyPrefix prefix, String key, Map<String, Double> scoreMembers) {
+        if (scoreMembers == null || scoreMembers.isEmpty()) {
+            return 0L;
+        }
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            String realKey = prefix.getPrefix() + key;
+            return jedis.zadd(realKey, scoreMembers);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 有序集合批量删除
+     */
+    public Long zrem(KeyPrefix prefix, String key, String... members) {
+        if (members == null || members.length == 0) {
+            return 0L;
+        }
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            String realKey = prefix.getPrefix() + key;
+            return jedis.zrem(realKey, members);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 集合批量添加
+     */
+    public Long sadd(KeyPrefix prefix, String key, String... members) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            String realKey = prefix.getPrefix() + key;
+            return jedis.sadd(realKey, members);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 集合批量删除
+     */
+    public Long srem(KeyPrefix prefix, String key, String... members) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            String realKey = prefix.getPrefix() + key;
+            return jedis.srem(realKey, members);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 集合全部成员
+     */
+    public Set<String> smembers(KeyPrefix prefix, String key) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            String realKey = prefix.getPrefix() + key;
+            return jedis.smembers(realKey);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
     /**
      * 判断key是否存在
      */
     public <T> boolean exists(KeyPrefix prefix, String key) {
+        if (multiplexed.isEnabled()) {
+            return multiplexed.await(existsAsync(prefix, key));
+        }
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
@@ -205,6 +467,9 @@ public class RedisService {
      * 删除
      */
     public boolean delete(KeyPrefix prefix, String key) {
+        if (multiplexed.isEnabled()) {
+            return multiplexed.await(deleteAsync(prefix, key));
+        }
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
@@ -221,6 +486,9 @@ public class RedisService {
      * 增加值
      */
     public <T> Long incr(KeyPrefix prefix, String key) {
+        if (multiplexed.isEnabled()) {
+            return multiplexed.await(incrAsync(prefix, key));
+        }
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
@@ -232,10 +500,31 @@ public class RedisService {
         }
     }
 
+    /**
+     * 增加指定值
+     */
+    public Long incrBy(KeyPrefix prefix, String key, long value) {
+        if (multiplexed.isEnabled()) {
+            return multiplexed.await(incrByAsync(prefix, key, value));
+        }
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            //生成真正的key
+            String realKey = prefix.getPrefix() + key;
+            return jedis.incrBy(realKey, value);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
     /**
      * 减少值
      */
     public <T> Long decr(KeyPrefix prefix, String key) {
+        if (multiplexed.isEnabled()) {
+            return multiplexed.await(decrAsync(prefix, key));
+        }
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
@@ -247,6 +536,166 @@ public class RedisService {
         }
     }
 
+    /**
+     * 预加载lua脚本，返回脚本sha
+     */
+    public String scriptLoad(String script) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            return jedis.scriptLoad(script);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 执行已预加载的lua脚本
+     */
+    public Object evalsha(String sha, List<String> keys, List<String> args) {
+        if (multiplexed.isEnabled()) {
+            return multiplexed.await(evalshaAsync(sha, keys, args));
+        }
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            return jedis.evalsha(sha, keys, args);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 异步取对象：开启多路复用时和其他请求合并写出，否则在连接池上执行后返回已完成的 future
+     */
+    public <T> CompletableFuture<T> getAsync(KeyPrefix prefix, String key, Class<T> clazz) {
+        if (!multiplexed.isEnabled()) {
+            return supply(() -> get(prefix, key, clazz));
+        }
+        return multiplexed.execute(Protocol.Command.GET, SafeEncoder.encode(prefix.getPrefix() + key))
+                .thenApply(reply -> prefix.codec().decode((byte[]) reply, clazz));
+    }
+
+    /**
+     * 异步设置对象，有效期 <=0 表示不过期
+     */
+    public <T> CompletableFuture<Boolean> setAsync(KeyPrefix prefix, String key, T value, int seconds) {
+        if (!multiplexed.isEnabled()) {
+            return supply(() -> set(prefix, key, value, seconds));
+        }
+        byte[] bytes = prefix.codec().encode(value);
+        if (bytes == null || bytes.length <= 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        byte[] realKey = SafeEncoder.encode(prefix.getPrefix() + key);
+        CompletableFuture<Object> reply = seconds <= 0
+                ? multiplexed.execute(Protocol.Command.SET, realKey, bytes)
+                : multiplexed.execute(Protocol.Command.SETEX, realKey, Protocol.toByteArray(seconds), bytes);
+        if (prefix.indexed()) {
+            // 写入成功后才登记索引，索引失败只记日志
+            return reply.thenApply(ok -> {
+                multiplexed.execute(Protocol.Command.SADD, SafeEncoder.encode(PrefixIndexKey.of(prefix)), SafeEncoder.encode(key))
+                        .whenComplete((added, e) -> {
+                            if (e != null) {
+                                log.warn("登记前缀索引失败 key:{}", prefix.getPrefix() + key, e);
+                            }
+                        });
+                return true;
+            });
+        }
+        return reply.thenApply(ok -> true);
+    }
+
+    public <T> CompletableFuture<Boolean> setAsync(KeyPrefix prefix, String key, T value) {
+        return setAsync(prefix, key, value, prefix.expireSeconds());
+    }
+
+    public CompletableFuture<Boolean> existsAsync(KeyPrefix prefix, String key) {
+        if (!multiplexed.isEnabled()) {
+            return supply(() -> exists(prefix, key));
+        }
+        return multiplexed.execute(Protocol.Command.EXISTS, SafeEncoder.encode(prefix.getPrefix() + key))
+                .thenApply(reply -> (Long) reply > 0);
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(KeyPrefix prefix, String key) {
+        if (!multiplexed.isEnabled()) {
+            return supply(() -> delete(prefix, key));
+        }
+        return multiplexed.execute(Protocol.Command.DEL, SafeEncoder.encode(prefix.getPrefix() + key))
+                .thenApply(reply -> (Long) reply > 0);
+    }
+
+    public CompletableFuture<Long> incrAsync(KeyPrefix prefix, String key) {
+        if (!multiplexed.isEnabled()) {
+            return supply(() -> incr(prefix, key));
+        }
+        return multiplexed.execute(Protocol.Command.INCR, SafeEncoder.encode(prefix.getPrefix() + key))
+                .thenApply(reply -> (Long) reply);
+    }
+
+    public CompletableFuture<Long> incrByAsync(KeyPrefix prefix, String key, long value) {
+        if (!multiplexed.isEnabled()) {
+            return supply(() -> incrBy(prefix, key, value));
+        }
+        return multiplexed.execute(Protocol.Command.INCRBY, SafeEncoder.encode(prefix.getPrefix() + key),
+                Protocol.toByteArray(value)).thenApply(reply -> (Long) reply);
+    }
+
+    public CompletableFuture<Long> decrAsync(KeyPrefix prefix, String key) {
+        if (!multiplexed.isEnabled()) {
+            return supply(() -> decr(prefix, key));
+        }
+        return multiplexed.execute(Protocol.Command.DECR, SafeEncoder.encode(prefix.getPrefix() + key))
+                .thenApply(reply -> (Long) reply);
+    }
+
+    /**
+     * 异步执行已预加载的lua脚本，结果格式和 evalsha 一致；脚本不存在时 future 以 JedisNoScriptException 失败
+     */
+    public CompletableFuture<Object> evalshaAsync(String sha, List<String> keys, List<String> args) {
+        if (!multiplexed.isEnabled()) {
+            return supply(() -> evalsha(sha, keys, args));
+        }
+        byte[][] params = new byte[2 + keys.size() + args.size()][];
+        int i = 0;
+        params[i++] = SafeEncoder.encode(sha);
+        params[i++] = Protocol.toByteArray(keys.size());
+        for (String key : keys) {
+            params[i++] = SafeEncoder.encode(key);
+        }
+        for (String arg : args) {
+            params[i++] = SafeEncoder.encode(arg);
+        }
+        return multiplexed.execute(Protocol.Command.EVALSHA, params).thenApply(MultiplexedRedisClient::evalResult);
+    }
+
+    /**
+     * 在调用线程上同步执行，异常放进 future 而不是直接抛出
+     */
+    private static <T> CompletableFuture<T> supply(Supplier<T> command) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            future.complete(command.get());
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 发布消息
+     */
+    public Long publish(String channel, String message) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            return jedis.publish(channel, message);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
     public Long del(String key) {
         Jedis jedis = null;
         Long result = null;
@@ -262,27 +711,164 @@ public class RedisService {
         return result;
     }
 
+    /**
+     * 删除前缀下所有 key
+     */
     public boolean delete(KeyPrefix prefix) {
         if (prefix == null) {
             return false;
         }
-        List<String> keys = scanKeys(prefix.getPrefix());
-        if (keys == null || keys.size() <= 0) {
-            return true;
-        }
-        Jedis jedis = null;
         try {
-            jedis = jedisPool.getResource();
-            jedis.del(keys.toArray(new String[0]));
+            deleteAll(prefix, null);
             return true;
         } catch (final Exception e) {
-            e.printStackTrace();
+            log.error("删除前缀 {} 失败", prefix.getPrefix(), e);
             return false;
-        } finally {
-            if (jedis != null) {
-                jedis.close();
+        }
+    }
+
+    /**
+     * 分批删除前缀下所有 key，每批一次 UNLINK，大 value 由 redis 后台线程释放，不会长时间阻塞其他客户端。
+     * 登记了索引的前缀只遍历索引集合；其他前缀 SCAN 匹配 prefix*，要扫全库，只适合低峰期运维使用
+     *
+     * @param progress 每删完一批回调一次累计删除数，可以为 null
+     * @return 删除的 key 数
+     */
+    public long deleteAll(KeyPrefix prefix, LongConsumer progress) {
+        long start = System.currentTimeMillis();
+        long deleted = prefix.indexed() ? deleteIndexed(prefix, progress) : deleteScanned(prefix, progress);
+        log.info("删除前缀 {} 共 {} 个 key，耗时 {}ms", prefix.getPrefix(), deleted, System.currentTimeMillis() - start);
+        return deleted;
+    }
+
+    /**
+     * SSCAN 索引集合，每批 UNLINK 成员 key 并移出索引，已过期的成员也一并移出；删除期间新写入的 key 会留下
+     */
+    private long deleteIndexed(KeyPrefix prefix, LongConsumer progress) {
+        String index = PrefixIndexKey.of(prefix);
+        ScanParams sp = new ScanParams().count(deleteBatch);
+        long deleted = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            Jedis jedis = null;
+            try {
+                jedis = jedisPool.getResource();
+                ScanResult<String> ret = jedis.sscan(index, cursor, sp);
+                cursor = ret.getCursor();
+                List<String> members = ret.getResult();
+                if (members.isEmpty()) {
+                    continue;
+                }
+                String[] realKeys = new String[members.size()];
+                for (int i = 0; i < realKeys.length; i++) {
+                    realKeys[i] = prefix.getPrefix() + members.get(i);
+                }
+                Pipeline pipeline = jedis.pipelined();
+                Response<Long> unlinked = pipeline.unlink(realKeys);
+                pipeline.srem(index, members.toArray(new String[0]));
+                pipeline.sync();
+                deleted += unlinked.get();
+            } finally {
+                returnToPool(jedis);
+            }
+            if (progress != null) {
+                progress.accept(deleted);
+            }
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return deleted;
+    }
+
+    /**
+     * 清理索引集合里 key 已过期的成员，索引集合本身不过期
+     */
+    @Scheduled(fixedDelayString = "${miaosha.redis.index-prune-interval:600000}")
+    public void pruneIndexes() {
+        for (BasePrefix prefix : BasePrefix.registered()) {
+            if (!prefix.indexed()) {
+                continue;
+            }
+            try {
+                long pruned = pruneIndex(prefix);
+                if (pruned > 0) {
+                    log.info("清理前缀 {} 的索引成员 {} 个", prefix.getPrefix(), pruned);
+                }
+            } catch (Exception e) {
+                log.error("清理前缀 {} 的索引失败", prefix.getPrefix(), e);
+            }
+        }
+    }
+
+    private long pruneIndex(KeyPrefix prefix) {
+        String index = PrefixIndexKey.of(prefix);
+        ScanParams sp = new ScanParams().count(deleteBatch);
+        long pruned = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            Jedis jedis = null;
+            try {
+                jedis = jedisPool.getResource();
+                ScanResult<String> ret = jedis.sscan(index, cursor, sp);
+                cursor = ret.getCursor();
+                List<String> members = ret.getResult();
+                if (members.isEmpty()) {
+                    continue;
+                }
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Boolean>> exists = new ArrayList<Response<Boolean>>(members.size());
+                for (String member : members) {
+                    exists.add(pipeline.exists(prefix.getPrefix() + member));
+                }
+                pipeline.sync();
+                List<String> expired = new ArrayList<String>();
+                for (int i = 0; i < members.size(); i++) {
+                    if (!exists.get(i).get()) {
+                        expired.add(members.get(i));
+                    }
+                }
+                if (!expired.isEmpty()) {
+                    pruned += jedis.srem(index, expired.toArray(new String[0]));
+                }
+            } finally {
+                returnToPool(jedis);
+            }
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return pruned;
+    }
+
+    /**
+     * 没有索引的前缀：SCAN 一批 UNLINK 一批，不在内存里攒全部 key。
+     * SCAN 按 prefix* 匹配，会扫到以本前缀开头的其他前缀(如 GoodsKey:gv 和 GoodsKey:gver)，这些 key 跳过
+     */
+    private long deleteScanned(KeyPrefix prefix, LongConsumer progress) {
+        List<String> siblings = new ArrayList<String>();
+        for (BasePrefix other : BasePrefix.registered()) {
+            if (other.getPrefix().startsWith(prefix.getPrefix()) && !other.getPrefix().equals(prefix.getPrefix())) {
+                siblings.add(other.getPrefix());
             }
         }
+        ScanParams sp = new ScanParams().match(prefix.getPrefix() + "*").count(deleteBatch);
+        long deleted = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            Jedis jedis = null;
+            try {
+                jedis = jedisPool.getResource();
+                ScanResult<String> ret = jedis.scan(cursor, sp);
+                cursor = ret.getCursor();
+                List<String> keys = new ArrayList<String>(ret.getResult());
+                keys.removeIf(key -> siblings.stream().anyMatch(key::startsWith));
+                if (keys.isEmpty()) {
+                    continue;
+                }
+                deleted += jedis.unlink(keys.toArray(new String[0]));
+            } finally {
+                returnToPool(jedis);
+            }
+            if (progress != null) {
+                progress.accept(deleted);
+            }
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return deleted;
     }
 
     public List<String> scanKeys(String key) {
@@ -0,0 +1,195 @@
+package com.geekq.miaosha.redis;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 缓存回源合并
+ * 同一个 key 缓存缺失时本节点只有一个线程回源，其他线程等它的结果；开启集群锁后整个集群只有一个节点回源。
+ * 写入 redis 的有效期比前缀多 stale-seconds，进入这段宽限期后由抢到刷新的那个调用方同步重新加载，
+ * 其他调用方直接返回旧值，热点 key 过期时不会有大量请求同时渲染页面、查库
+ */
+@Service
+public class SingleFlightLoader {
+
+    private static final long LOCK_POLL_MILLIS = 20;
+
+    private static Logger logger = LoggerFactory.getLogger(SingleFlightLoader.class);
+
+    @Autowired
+    RedisService redisService;
+
+    /**
+     * 过期前多少秒开始提前刷新，期间先返回旧值，0 表示不提前刷新
+     */
+    @Value("${miaosha.cache.stale-seconds:10}")
+    private int staleSeconds;
+
+    /**
+     * 是否用 redis 短锁让集群内只有一个节点回源
+     */
+    @Value("${miaosha.cache.cluster-lock:false}")
+    private boolean clusterLock;
+
+    /**
+     * 等待别的线程或节点加载的最长时间(毫秒)，超时后自己加载
+     */
+    @Value("${miaosha.cache.load-wait:3000}")
+    private long loadWaitMillis;
+
+    private final Map<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<String, CompletableFuture<Object>>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong staleHits = new AtomicLong();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    private final AtomicLong collapsed = new AtomicLong();
+
+    private final AtomicLong loadNanos = new AtomicLong();
+
+    /**
+     * 取缓存，缺失或将要过期时用 loader 加载并写回 redis；loader 返回 null 时不缓存
+     */
+    public <T> T get(KeyPrefix prefix, String key, Class<T> clazz, Supplier<T> loader) {
+        String realKey = prefix.getPrefix() + key;
+        Pair<T, Long> cached = redisService.getWithTtl(prefix, key, clazz);
+        T value = cached.getLeft();
+        if (value != null) {
+            long ttl = cached.getRight();
+            if (staleSeconds <= 0 || prefix.expireSeconds() <= 0 || ttl < 0 || ttl > staleSeconds) {
+                hits.incrementAndGet();
+                return value;
+            }
+            // 已在宽限期：抢到刷新的调用方重新加载，其他调用方先用旧值
+            CompletableFuture<Object> refresh = new CompletableFuture<Object>();
+            if (loading.putIfAbsent(realKey, refresh) != null) {
+                staleHits.incrementAndGet();
+                return value;
+            }
+            return load(realKey, prefix, key, clazz, loader, refresh, value);
+        }
+        CompletableFuture<Object> flight = new CompletableFuture<Object>();
+        CompletableFuture<Object> running = loading.putIfAbsent(realKey, flight);
+        if (running == null) {
+            return load(realKey, prefix, key, clazz, loader, flight, null);
+        }
+        collapsed.incrementAndGet();
+        try {
+            return clazz.cast(running.get(loadWaitMillis, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            logger.warn("等待缓存加载超时，自行加载 key:{}", realKey);
+            return loadAndSet(prefix, key, loader);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                    : new IllegalStateException("加载缓存失败 key:" + realKey, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存加载被中断 key:" + realKey, e);
+        }
+    }
+
+    private <T> T load(String realKey, KeyPrefix prefix, String key, Class<T> clazz, Supplier<T> loader,
+                       CompletableFuture<Object> flight, T stale) {
+        try {
+            T value = clusterLoad(realKey, prefix, key, clazz, loader, stale);
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            if (stale != null) {
+                // 刷新失败继续用旧值，等下一次请求再刷新
+                logger.warn("刷新缓存失败，返回旧值 key:{}", realKey, e);
+                return stale;
+            }
+            throw e;
+        } finally {
+            loading.remove(realKey, flight);
+        }
+    }
+
+    /**
+     * 抢到集群锁的节点加载；没抢到时有旧值直接用旧值，没有则等对方写回 redis
+     */
+    private <T> T clusterLoad(String realKey, KeyPrefix prefix, String key, Class<T> clazz, Supplier<T> loader, T stale) {
+        if (!clusterLock) {
+            return loadAndSet(prefix, key, loader);
+        }
+        if (redisService.setnx(LoaderKey.lock, realKey, "1")) {
+            try {
+                return loadAndSet(prefix, key, loader);
+            } finally {
+                redisService.delete(LoaderKey.lock, realKey);
+            }
+        }
+        if (stale != null) {
+            staleHits.incrementAndGet();
+            return stale;
+        }
+        long deadline = System.currentTimeMillis() + loadWaitMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(LOCK_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            T value = redisService.get(prefix, key, clazz);
+            if (value != null) {
+                collapsed.incrementAndGet();
+                return value;
+            }
+            // 对方加载失败或结果为 null，不再等
+            if (!redisService.exists(LoaderKey.lock, realKey)) {
+                break;
+            }
+        }
+        return loadAndSet(prefix, key, loader);
+    }
+
+    private <T> T loadAndSet(KeyPrefix prefix, String key, Supplier<T> loader) {
+        long start = System.nanoTime();
+        T value = loader.get();
+        loads.incrementAndGet();
+        loadNanos.addAndGet(System.nanoTime() - start);
+        if (value != null) {
+            int seconds = prefix.expireSeconds();
+            redisService.set(prefix, key, value, seconds <= 0 ? 0 : seconds + Math.max(staleSeconds, 0));
+        }
+        return value;
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void logMetrics() {
+        if (hits.get() + staleHits.get() + loads.get() + collapsed.get() > 0) {
+            logger.info("缓存回源合并统计:{}", metrics());
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        long loaded = loads.get();
+        metrics.put("hits", hits.get());
+        metrics.put("staleHits", staleHits.get());
+        metrics.put("loads", loaded);
+        metrics.put("collapsed", collapsed.get());
+        metrics.put("avgLoadMillis", loaded == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(loadNanos.get() / loaded));
+        return metrics;
+    }
+}
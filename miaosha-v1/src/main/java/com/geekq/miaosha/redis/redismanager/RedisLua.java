@@ -1,103 +1,62 @@
 package com.geekq.miaosha.redis.redismanager;
 
+import com.geekq.miaosha.redis.LuaScriptRegistry;
+import com.geekq.miaosha.redis.RedisService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import redis.clients.jedis.Jedis;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
 
 /**
- * lua脚本使用
+ * lua脚本使用，脚本统一由 LuaScriptRegistry 加载
  */
+@Component
 public class RedisLua {
 
     private static Logger logger = LoggerFactory.getLogger(RedisLua.class);
 
-    /**
-     * 未完成  需 evalsha更方便 限制ip 或者 手机号访问次数
-     */
-    public static void getLuaLimit() {
+    @Autowired
+    LuaScriptRegistry luaScriptRegistry;
 
-        Jedis jedis = null;
-        try {
-            jedis = RedisManager.getJedis();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        String lua =
-                "local num=redis.call('incr',KEYS[1]) if tonumber(num)==1 " +
-                        "then redis.call('expire',KEYS[1],ARGV[1]) " +
-                        "return 1 elseif tonumber(num)>" +
-                        "tonumber(ARGV[2]) then return 0 else return 1 end";
+    @Autowired
+    RedisService redisService;
 
-        List<String> keys = new ArrayList<String>();
-        keys.add("ip:limit:127.0.0.1");
-        List<String> argves = new ArrayList<String>();
-        argves.add("6000");
-        argves.add("5");
-        // jedis.auth("xxxx"); // Commented out as Redis server has no password configured
-//        Object evalSha = jedis.evalsha(lua);
-        String luaScript = jedis.scriptLoad(lua);
-        System.out.println(luaScript);
-        Object object = jedis.evalsha(luaScript, keys, argves);
-        System.out.println(object);
+    /**
+     * 限制ip 或者 手机号访问次数，seconds 秒内最多 maxCount 次
+     *
+     * @return 是否放行
+     */
+    public boolean getLuaLimit(String key, int seconds, int maxCount) {
+        return luaScriptRegistry.script("access_limit").evalForLong(Collections.singletonList(key),
+                Arrays.asList(String.valueOf(seconds), String.valueOf(maxCount))) == 1;
     }
 
     /**
      * 统计访问次数
      */
-    public static Object getVistorCount(String key) {
-
-        Jedis jedis = null;
-        Object object = null;
+    public Object getVistorCount(String key) {
         try {
-            jedis = RedisManager.getJedis();
-
-            String count =
-                    "local num=redis.call('get',KEYS[1]) return num";
-            List<String> keys = new ArrayList<String>();
-            keys.add(key);
-            List<String> argves = new ArrayList<String>();
-            // jedis.auth("youxin11"); // Commented out as Redis server has no password configured
-            String luaScript = jedis.scriptLoad(count);
-            System.out.println(luaScript);
-            object = jedis.evalsha(luaScript, keys, argves);
+            String count = redisService.get(key);
+            return count == null ? "0" : count;
         } catch (Exception e) {
             logger.error("统计访问次数失败！！！", e);
             return "0";
         }
-        return object;
     }
 
     /**
-     * 统计访问次数
+     * 访问次数加一，返回加一后的次数，失败返回 0
      */
-    public static void vistorCount(String key) {
-
-        Jedis jedis = null;
-        Object object = null;
+    public long vistorCount(String key) {
         try {
-            jedis = RedisManager.getJedis();
-            String count =
-                    "local num=redis.call('incr',KEYS[1]) return num";
-            List<String> keys = new ArrayList<String>();
-            keys.add(key);
-            List<String> argves = new ArrayList<String>();
-            // jedis.auth("youxin11"); // Commented out as Redis server has no password configured
-            String luaScript = jedis.scriptLoad(count);
-            jedis.evalsha(luaScript, keys, argves);
+            return luaScriptRegistry.script("visitor_count").evalForLong(Collections.singletonList(key),
+                    Collections.<String>emptyList());
         } catch (Exception e) {
             logger.error("统计访问次数失败！！！", e);
-        } finally {
-            // 确保Jedis连接被归还到连接池
-            if (jedis != null) {
-                try {
-                    jedis.close();
-                } catch (Exception e) {
-                    logger.error("关闭Jedis连接失败", e);
-                }
-            }
+            return 0;
         }
     }
 }
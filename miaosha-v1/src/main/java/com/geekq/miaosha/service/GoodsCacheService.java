@@ -0,0 +1,248 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.dao.GoodsDao;
+import com.geekq.miaosha.redis.GoodsKey;
+import com.geekq.miaosha.redis.RedisChannelSubscriber;
+import com.geekq.miaosha.redis.RedisConfig;
+import com.geekq.miaosha.redis.RedisService;
+import com.geekq.miaosha.vo.GoodsVo;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 商品信息二级缓存
+ * 本机有界缓存(L1) -> redis(L2) -> 数据库，只缓存商品元数据，库存置空，由调用方从实时计数取。
+ * 每个商品在 redis 有一个版本号，失效时版本号加一并通过 pub/sub 广播，
+ * 各节点丢弃旧版本的本地快照；redis 里版本号对不上的快照视为过期重新加载
+ */
+@Service
+public class GoodsCacheService implements InitializingBean, DisposableBean {
+
+    public static final String GOODS_INVALIDATE_CHANNEL = "miaosha:goods:invalidate";
+
+    private static Logger logger = LoggerFactory.getLogger(GoodsCacheService.class);
+
+    @Autowired
+    GoodsDao goodsDao;
+
+    @Autowired
+    RedisService redisService;
+
+    @Autowired
+    RedisConfig redisConfig;
+
+    @Value("${miaosha.goods.cache.enable:true}")
+    private boolean enable;
+
+    @Value("${miaosha.goods.cache.local-size:1000}")
+    private int localSize;
+
+    /**
+     * 本地快照最长存活(秒)，失效广播丢失时兜底
+     */
+    @Value("${miaosha.goods.cache.local-ttl:60}")
+    private int localTtlSeconds;
+
+    private Cache<Long, Snapshot> local;
+
+    /**
+     * 本节点收到过的最新版本号，加载完成前收到的失效消息不会被覆盖
+     */
+    private final Map<Long, Long> latestVersions = new ConcurrentHashMap<Long, Long>();
+
+    private final AtomicLong redisHits = new AtomicLong();
+
+    private final AtomicLong dbLoads = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private RedisChannelSubscriber subscriber;
+
+    /**
+     * 商品元数据快照，stockCount 为 null；返回的是副本，调用方可以随意修改
+     *
+     * @return null 表示商品不存在
+     */
+    public GoodsVo get(long goodsId) {
+        if (!enable) {
+            GoodsVo goods = goodsDao.getGoodsVoByGoodsId(goodsId);
+            if (goods != null) {
+                goods.setStockCount(null);
+            }
+            return goods;
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = local.get(goodsId, () -> load(goodsId));
+        } catch (CacheLoader.InvalidCacheLoadException e) {
+            // 商品不存在，不缓存
+            return null;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("加载商品失败 goodsId:" + goodsId, e.getCause());
+        }
+        Long latest = latestVersions.get(goodsId);
+        if (latest != null && snapshot.getVersion() < latest) {
+            // 加载期间收到了失效消息，这份快照只用一次
+            local.invalidate(goodsId);
+        }
+        return copyOf(snapshot.getGoods());
+    }
+
+    /**
+     * 商品信息修改后调用：版本号加一，删除 redis 快照，广播所有节点丢弃本地快照
+     */
+    public void invalidate(long goodsId) {
+        if (!enable) {
+            return;
+        }
+        long version = redisService.incr(GoodsKey.goodsVersion, "" + goodsId);
+        redisService.delete(GoodsKey.getGoodsVo, "" + goodsId);
+        evictLocal(goodsId, version);
+        try {
+            redisService.publish(GOODS_INVALIDATE_CHANNEL, goodsId + ":" + version);
+        } catch (Exception e) {
+            logger.error("广播商品失效失败 goodsId:{} version:{}", goodsId, version, e);
+        }
+    }
+
+    /**
+     * 先读版本号再读快照，版本号对不上说明快照写入后商品又改过
+     */
+    private Snapshot load(long goodsId) {
+        long start = System.nanoTime();
+        long version = 0;
+        try {
+            Long current = redisService.get(GoodsKey.goodsVersion, "" + goodsId, Long.class);
+            version = current == null ? 0 : current;
+            Snapshot cached = redisService.get(GoodsKey.getGoodsVo, "" + goodsId, Snapshot.class);
+            if (cached != null && cached.getVersion() == version && cached.getGoods() != null) {
+                redisHits.incrementAndGet();
+                return cached;
+            }
+        } catch (Exception e) {
+            logger.warn("读取 redis 商品快照失败，直接查库 goodsId:{}", goodsId, e);
+        }
+        GoodsVo goods = goodsDao.getGoodsVoByGoodsId(goodsId);
+        dbLoads.incrementAndGet();
+        if (goods == null) {
+            return null;
+        }
+        goods.setStockCount(null);
+        Snapshot snapshot = new Snapshot();
+        snapshot.setVersion(version);
+        snapshot.setGoods(goods);
+        try {
+            redisService.set(GoodsKey.getGoodsVo, "" + goodsId, snapshot);
+        } catch (Exception e) {
+            logger.warn("写入 redis 商品快照失败 goodsId:{}", goodsId, e);
+        }
+        logger.debug("加载商品快照 goodsId:{} version:{} cost:{}us", goodsId, version,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        return snapshot;
+    }
+
+    private void evictLocal(long goodsId, long version) {
+        invalidations.incrementAndGet();
+        latestVersions.merge(goodsId, version, Math::max);
+        Snapshot snapshot = local.getIfPresent(goodsId);
+        if (snapshot != null && snapshot.getVersion() < version) {
+            local.invalidate(goodsId);
+        }
+    }
+
+    private static GoodsVo copyOf(GoodsVo goods) {
+        GoodsVo copy = new GoodsVo();
+        BeanUtils.copyProperties(goods, copy);
+        return copy;
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        if (local == null) {
+            return metrics;
+        }
+        CacheStats stats = local.stats();
+        metrics.put("size", local.size());
+        metrics.put("localHitRate", String.format("%.4f", stats.hitRate()));
+        metrics.put("localHits", stats.hitCount());
+        metrics.put("localMisses", stats.missCount());
+        metrics.put("redisHits", redisHits.get());
+        metrics.put("dbLoads", dbLoads.get());
+        metrics.put("avgLoadMicros", TimeUnit.NANOSECONDS.toMicros((long) stats.averageLoadPenalty()));
+        metrics.put("evictions", stats.evictionCount());
+        metrics.put("invalidations", invalidations.get());
+        return metrics;
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void logMetrics() {
+        if (enable && local.stats().requestCount() > 0) {
+            logger.info("商品缓存统计:{}", metrics());
+        }
+    }
+
+    private void onInvalidateMessage(String message) {
+        int split = message.indexOf(':');
+        try {
+            evictLocal(Long.parseLong(message.substring(0, split)), Long.parseLong(message.substring(split + 1)));
+        } catch (RuntimeException e) {
+            logger.warn("非法商品失效消息:{}", message);
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enable) {
+            return;
+        }
+        local = CacheBuilder.newBuilder()
+                .maximumSize(localSize)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        // 断线期间可能漏掉失效消息，每次订阅成功后清空本地快照
+        subscriber = new RedisChannelSubscriber(redisConfig, GOODS_INVALIDATE_CHANNEL,
+                this::onInvalidateMessage, local::invalidateAll);
+        subscriber.start("goods-cache-subscriber");
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (subscriber != null) {
+            subscriber.stop();
+        }
+    }
+
+    /**
+     * redis 里存的快照：版本号 + 商品元数据
+     */
+    @Setter
+    @Getter
+    @NoArgsConstructor
+    public static class Snapshot {
+        private long version;
+        private GoodsVo goods;
+    }
+}
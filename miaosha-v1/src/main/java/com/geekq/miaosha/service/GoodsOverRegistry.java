@@ -0,0 +1,158 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.redis.MiaoshaKey;
+import com.geekq.miaosha.redis.RedisChannelSubscriber;
+import com.geekq.miaosha.redis.RedisConfig;
+import com.geekq.miaosha.redis.RedisService;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * 商品售罄标记(集群共享)
+ * 本地保存有序 long[]，读无锁无装箱；任一节点发现售罄后通过 redis pub/sub 广播，
+ * 其他节点毫秒级同步置位，不再继续去 redis 减库存；补货时广播清除。
+ * 标记和清除同时写入 redis 售罄集合(MiaoshaKey:gos)，每次(重新)订阅成功后 SMEMBERS 重建，
+ * 断线期间漏掉的广播不会留下错误标记，重连也不用扫描整个 keyspace
+ */
+@Service
+public class GoodsOverRegistry implements InitializingBean, DisposableBean {
+
+    public static final String GOODS_OVER_CHANNEL = "miaosha:goods:over";
+
+    private static final String OVER = "over:";
+
+    private static final String RESET = "reset:";
+
+    private static Logger logger = LoggerFactory.getLogger(GoodsOverRegistry.class);
+
+    @Autowired
+    RedisService redisService;
+
+    @Autowired
+    RedisConfig redisConfig;
+
+    /**
+     * 已售罄商品id，有序，写时复制
+     */
+    private volatile long[] overGoods = new long[0];
+
+    private RedisChannelSubscriber subscriber;
+
+    public boolean isOver(long goodsId) {
+        return Arrays.binarySearch(overGoods, goodsId) >= 0;
+    }
+
+    /**
+     * 标记售罄，写入售罄集合并广播到所有节点
+     */
+    public void markOver(long goodsId) {
+        if (!add(goodsId)) {
+            return;
+        }
+        try {
+            redisService.sadd(MiaoshaKey.goodsOverSet, "", "" + goodsId);
+        } catch (Exception e) {
+            logger.error("写入售罄集合失败 goodsId:{}", goodsId, e);
+        }
+        broadcast(OVER + goodsId);
+    }
+
+    /**
+     * 补货后清除售罄标记，移出售罄集合并广播到所有节点
+     */
+    public void reset(long goodsId) {
+        remove(goodsId);
+        try {
+            redisService.srem(MiaoshaKey.goodsOverSet, "", "" + goodsId);
+        } catch (Exception e) {
+            logger.error("移出售罄集合失败 goodsId:{}", goodsId, e);
+        }
+        broadcast(RESET + goodsId);
+    }
+
+    private void broadcast(String message) {
+        try {
+            redisService.publish(GOODS_OVER_CHANNEL, message);
+        } catch (Exception e) {
+            logger.error("广播售罄消息失败:{}", message, e);
+        }
+    }
+
+    private synchronized boolean add(long goodsId) {
+        long[] current = overGoods;
+        int index = Arrays.binarySearch(current, goodsId);
+        if (index >= 0) {
+            return false;
+        }
+        int insert = -index - 1;
+        long[] next = new long[current.length + 1];
+        System.arraycopy(current, 0, next, 0, insert);
+        next[insert] = goodsId;
+        System.arraycopy(current, insert, next, insert + 1, current.length - insert);
+        overGoods = next;
+        return true;
+    }
+
+    private synchronized void remove(long goodsId) {
+        long[] current = overGoods;
+        int index = Arrays.binarySearch(current, goodsId);
+        if (index < 0) {
+            return;
+        }
+        long[] next = new long[current.length - 1];
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        overGoods = next;
+    }
+
+    private void onOverMessage(String message) {
+        try {
+            if (message.startsWith(OVER)) {
+                add(Long.parseLong(message.substring(OVER.length())));
+            } else if (message.startsWith(RESET)) {
+                remove(Long.parseLong(message.substring(RESET.length())));
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("非法售罄消息:{}", message);
+        }
+    }
+
+    /**
+     * 清空本地标记，按 redis 售罄集合重建
+     */
+    private void reload() {
+        Set<String> members = redisService.smembers(MiaoshaKey.goodsOverSet, "");
+        long[] next = new long[members.size()];
+        int size = 0;
+        for (String member : members) {
+            if (StringUtils.isNumeric(member)) {
+                next[size++] = Long.parseLong(member);
+            }
+        }
+        next = Arrays.copyOf(next, size);
+        Arrays.sort(next);
+        synchronized (this) {
+            overGoods = next;
+        }
+        logger.info("已按 redis 重建售罄标记 {} 个", size);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        subscriber = new RedisChannelSubscriber(redisConfig, GOODS_OVER_CHANNEL, this::onOverMessage, this::reload);
+        subscriber.start("goods-over-subscriber");
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        subscriber.stop();
+    }
+}
@@ -14,13 +14,45 @@ public class GoodsService {
     @Autowired
     GoodsDao goodsDao;
 
+    @Autowired
+    GoodsCacheService goodsCacheService;
+
+    @Autowired
+    StockShardService stockShardService;
+
 
     public List<GoodsVo> listGoodsVo() {
         return goodsDao.listGoodsVo();
     }
 
+    /**
+     * 商品详情：元数据走二级缓存，库存取 redis 实时计数，redis 里还没有时查库
+     */
     public GoodsVo getGoodsVoByGoodsId(long goodsId) {
-        return goodsDao.getGoodsVoByGoodsId(goodsId);
+        GoodsVo goods = goodsCacheService.get(goodsId);
+        if (goods == null) {
+            return null;
+        }
+        Integer stock = stockShardService.totalStock(goodsId);
+        if (stock == null) {
+            stock = goodsDao.getStockCount(goodsId);
+        }
+        goods.setStockCount(stock == null ? 0 : Math.max(stock, 0));
+        return goods;
+    }
+
+    /**
+     * 下单用的商品元数据，不带库存(stockCount 为 null)，库存以扣减库存的 update 结果为准
+     */
+    public GoodsVo getGoodsSnapshot(long goodsId) {
+        return goodsCacheService.get(goodsId);
+    }
+
+    /**
+     * 商品信息修改后通知所有节点丢弃缓存
+     */
+    public void evictGoods(long goodsId) {
+        goodsCacheService.invalidate(goodsId);
     }
 
     public boolean reduceStock(GoodsVo goods) {
@@ -30,5 +62,23 @@ public class GoodsService {
         return ret > 0;
     }
 
+    /**
+     * 最多扣减 count 件，库存不够时有多少扣多少；须在事务里调用，库存行锁到事务结束
+     *
+     * @return 实际扣到的件数
+     */
+    public int reduceStockBy(long goodsId, int count) {
+        Integer stock = goodsDao.getStockCountForUpdate(goodsId);
+        int granted = stock == null ? 0 : Math.min(stock, count);
+        if (granted <= 0) {
+            return 0;
+        }
+        return goodsDao.reduceStockCount(goodsId, granted) > 0 ? granted : 0;
+    }
+
+    public void returnStock(long goodsId, int count) {
+        goodsDao.returnStock(goodsId, count);
+    }
+
 
 }
@@ -0,0 +1,154 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.common.SnowflakeIdWorker;
+import com.geekq.miaosha.redis.IdWorkerKey;
+import com.geekq.miaosha.redis.LuaScript;
+import com.geekq.miaosha.redis.LuaScriptRegistry;
+import com.geekq.miaosha.redis.RedisService;
+import com.geekq.miaosha.utils.UUIDUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 节点 snowflake ID
+ * 启动时从 redis 租一个 worker id(数据中心ID+工作ID 共 1024 个)，定时续期；
+ * 续期发现租约已被别的节点拿走时换一个重新租。不开启租约或 redis 不可用时用配置的固定值
+ */
+@Service
+public class IdWorkerService implements InitializingBean, DisposableBean {
+
+    private static final String LEASE_SCRIPT = "id_worker_lease";
+
+    private static final int MAX_WORKERS = 1024;
+
+    private static Logger logger = LoggerFactory.getLogger(IdWorkerService.class);
+
+    @Autowired
+    RedisService redisService;
+
+    @Autowired
+    LuaScriptRegistry luaScriptRegistry;
+
+    @Value("${miaosha.id.worker.lease:true}")
+    private boolean lease;
+
+    @Value("${miaosha.id.worker.datacenter-id:0}")
+    private long datacenterId;
+
+    @Value("${miaosha.id.worker.worker-id:0}")
+    private long workerId;
+
+    /**
+     * 时钟回拨时最多向未来借的毫秒数
+     */
+    @Value("${miaosha.id.worker.max-borrow:1000}")
+    private long maxBorrowMillis;
+
+    /**
+     * 已借满时再遇到回拨，最多等时钟追上来的毫秒数
+     */
+    @Value("${miaosha.id.worker.max-wait:100}")
+    private long maxWaitMillis;
+
+    private final String owner = UUIDUtil.uuid();
+
+    private LuaScript leaseScript;
+
+    /**
+     * 租到的 worker id，-1 表示用的固定配置
+     */
+    private volatile int leased = -1;
+
+    private volatile SnowflakeIdWorker idWorker;
+
+    public long nextId() {
+        return idWorker.nextId();
+    }
+
+    public long[] nextIds(int count) {
+        return idWorker.nextIds(count);
+    }
+
+    /**
+     * 从随机位置开始找一个空闲的 worker id，避免同时启动的节点挤在一起
+     */
+    private void acquire() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (start + i) % MAX_WORKERS;
+            if (redisService.setnx(IdWorkerKey.lease, "" + id, owner)) {
+                // 重新租回原来的 id 时沿用原实例，新实例的序列会从头开始
+                if (id != leased || idWorker == null) {
+                    idWorker = new SnowflakeIdWorker(id & 31, id >> 5, maxBorrowMillis, maxWaitMillis);
+                }
+                leased = id;
+                logger.info("租到 snowflake worker id:{} datacenterId:{} workerId:{}", id, id >> 5, id & 31);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的 snowflake worker id");
+    }
+
+    @Scheduled(fixedDelay = 20000)
+    public void renew() {
+        int id = leased;
+        if (id < 0) {
+            return;
+        }
+        try {
+            if (!lease(id, IdWorkerKey.lease.expireSeconds())) {
+                logger.warn("snowflake worker id:{} 租约已失效，重新租", id);
+                acquire();
+            }
+        } catch (Exception e) {
+            logger.error("续租 snowflake worker id:{} 失败", id, e);
+        }
+    }
+
+    private boolean lease(int id, int seconds) {
+        List<String> keys = Collections.singletonList(IdWorkerKey.lease.getPrefix() + id);
+        List<String> args = Arrays.asList(owner, String.valueOf(seconds));
+        return leaseScript.evalForLong(keys, args) == 1;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (lease) {
+            try {
+                leaseScript = luaScriptRegistry.script(LEASE_SCRIPT);
+                acquire();
+                return;
+            } catch (Exception e) {
+                logger.error("租 snowflake worker id 失败，使用配置的 datacenterId:{} workerId:{}", datacenterId, workerId, e);
+            }
+        }
+        idWorker = new SnowflakeIdWorker(workerId, datacenterId, maxBorrowMillis, maxWaitMillis);
+    }
+
+    /**
+     * 停机归还租约
+     */
+    @Override
+    public void destroy() throws Exception {
+        int id = leased;
+        if (id < 0) {
+            return;
+        }
+        try {
+            lease(id, 0);
+        } catch (Exception e) {
+            logger.warn("归还 snowflake worker id:{} 失败，等待过期", id, e);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.geekq.miaosha.exception.GlobleException;
 import com.geekq.miaosha.rabbitmq.MQSender;
 import com.geekq.miaosha.redis.MiaoShaUserKey;
 import com.geekq.miaosha.redis.RedisService;
+import com.geekq.miaosha.redis.SingleFlightLoader;
 import com.geekq.miaosha.utils.MD5Utils;
 import com.geekq.miaosha.utils.UUIDUtil;
 import com.geekq.miaosha.vo.LoginVo;
@@ -36,6 +37,9 @@ public class MiaoShaUserService {
     @Autowired
     private MQSender sender;
 
+    @Autowired
+    private SingleFlightLoader singleFlightLoader;
+
 
     public MiaoshaUser getByToken(HttpServletResponse response, String token) {
 
@@ -51,17 +55,9 @@ public class MiaoShaUserService {
     }
 
     public MiaoshaUser getByNickName(String nickName) {
-        //取缓存
-        MiaoshaUser user = redisService.get(MiaoShaUserKey.getByNickName, "" + nickName, MiaoshaUser.class);
-        if (user != null) {
-            return user;
-        }
-        //取数据库
-        user = miaoShaUserDao.getByNickname(nickName);
-        if (user != null) {
-            redisService.set(MiaoShaUserKey.getByNickName, "" + nickName, user);
-        }
-        return user;
+        //取缓存，缺失时同一个用户只查一次库
+        return singleFlightLoader.get(MiaoShaUserKey.getByNickName, "" + nickName, MiaoshaUser.class,
+                () -> miaoShaUserDao.getByNickname(nickName));
     }
 
 
@@ -3,11 +3,17 @@ package com.geekq.miaosha.service;
 import com.geekq.miaosha.domain.MiaoshaOrder;
 import com.geekq.miaosha.domain.MiaoshaUser;
 import com.geekq.miaosha.domain.OrderInfo;
+import com.geekq.miaosha.exception.GlobleException;
+import com.geekq.miaosha.redis.GoodsKey;
+import com.geekq.miaosha.redis.LuaScript;
+import com.geekq.miaosha.redis.LuaScriptRegistry;
 import com.geekq.miaosha.redis.MiaoshaKey;
+import com.geekq.miaosha.redis.OrderKey;
 import com.geekq.miaosha.redis.RedisService;
 import com.geekq.miaosha.utils.MD5Utils;
 import com.geekq.miaosha.utils.UUIDUtil;
 import com.geekq.miaosha.vo.GoodsVo;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -16,10 +22,30 @@ import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.function.Supplier;
 
 @Service
-public class MiaoshaService {
+public class MiaoshaService implements InitializingBean {
+
+    /**
+     * 秒杀准入脚本返回码
+     */
+    public static final int ADMISSION_SUCCESS = 0;
+    public static final int ADMISSION_PATH_ILLEGAL = 1;
+    public static final int ADMISSION_REPEATE = 2;
+    public static final int ADMISSION_OVER = 3;
+    /**
+     * 扣减库存超时或 redis 异常，不能当作已卖完
+     */
+    public static final int ADMISSION_BUSY = 4;
+
+    private static final String ADMISSION_SCRIPT = "miaosha_admission";
 
     private static char[] ops = new char[]{'+', '-', '*'};
     @Autowired
@@ -28,6 +54,18 @@ public class MiaoshaService {
     OrderService orderService;
     @Autowired
     RedisService redisService;
+    @Autowired
+    StockLeaseService stockLeaseService;
+    @Autowired
+    StockCoalesceService stockCoalesceService;
+    @Autowired
+    StockShardService stockShardService;
+    @Autowired
+    GoodsOverRegistry goodsOverRegistry;
+    @Autowired
+    LuaScriptRegistry luaScriptRegistry;
+
+    private LuaScript admissionScript;
 
     private static int calc(String exp) {
         try {
@@ -50,32 +88,94 @@ public class MiaoshaService {
             return orderService.createOrder(user, goods);
         } else {
             //如果库存不存在则内存标记为true
-            // 如果库存不足，redis缓存商品已卖完
+            // 如果库存不足，redis缓存商品已卖完，清掉购买标记，用户不会一直被当成重复秒杀
             setGoodsOver(goods.getId());
+            redisService.delete(MiaoshaKey.isUserMiaosha, user.getNickname() + "_" + goods.getId());
             return null;
         }
     }
 
-    public long getMiaoshaResult(Long userId, long goodsId) {
-        MiaoshaOrder order = orderService.getMiaoshaOrderByUserIdGoodsId(userId, goodsId);
-        if (order != null) {//秒杀成功
-            return order.getOrderId();
-        } else {
-            boolean isOver = getGoodsOver(goodsId);
-            if (isOver) {
-                return -1;
-            } else {
-                return 0;
+    /**
+     * 异步下单：商品没库存或用户已下过单时跳过
+     *
+     * @return 新建的订单，跳过时返回 null
+     */
+    @Transactional
+    public OrderInfo placeOrder(MiaoshaUser user, long goodsId) {
+        // 商品信息走缓存，没库存时减库存的 update 会失败
+        GoodsVo goods = goodsService.getGoodsSnapshot(goodsId);
+        if (goods == null) {
+            redisService.delete(MiaoshaKey.isUserMiaosha, user.getNickname() + "_" + goodsId);
+            return null;
+        }
+        //判断是否已经秒杀到了
+        MiaoshaOrder order = orderService.getMiaoshaOrderByUserIdGoodsId(Long.valueOf(user.getNickname()), goodsId);
+        if (order != null) {
+            return null;
+        }
+        // 减库存 下订单 写入秒杀订单
+        return miaosha(user, goods);
+    }
+
+    /**
+     * 批量秒杀：整批一次扣库存、一次多行插入订单
+     * 库存不够整批时按顺序给前面的用户下单，其余视为已卖完
+     *
+     * @return 新建的订单，和 users 里实际下单的用户一一对应
+     */
+    @Transactional
+    public List<OrderInfo> miaoshaBatch(List<MiaoshaUser> users, GoodsVo goods) {
+        List<MiaoshaUser> buyers = orderService.filterOrderedUsers(users, goods.getId());
+        if (buyers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int granted = goodsService.reduceStockBy(goods.getId(), buyers.size());
+        if (granted < buyers.size()) {
+            setGoodsOver(goods.getId());
+            for (MiaoshaUser user : buyers.subList(granted, buyers.size())) {
+                redisService.delete(MiaoshaKey.isUserMiaosha, user.getNickname() + "_" + goods.getId());
             }
         }
+        if (granted == 0) {
+            return Collections.emptyList();
+        }
+        return orderService.createOrders(buyers.subList(0, granted), goods);
+    }
+
+    /**
+     * 秒杀订单和售罄标记一次 pipeline 取回
+     */
+    public long getMiaoshaResult(Long userId, long goodsId) {
+        return redisService.pipelineGet(batch -> {
+            Supplier<MiaoshaOrder> order = batch.get(OrderKey.getMiaoshaOrderByUidGid, "" + userId + "_" + goodsId, MiaoshaOrder.class);
+            Supplier<Boolean> isOver = batch.exists(MiaoshaKey.isGoodsOver, "" + goodsId);
+            return () -> {
+                if (order.get() != null) {//秒杀成功
+                    return order.get().getOrderId();
+                }
+                return isOver.get() ? -1L : 0L;
+            };
+        });
     }
 
     private void setGoodsOver(Long goodsId) {
         redisService.set(MiaoshaKey.isGoodsOver, "" + goodsId, true);
+        goodsOverRegistry.markOver(goodsId);
     }
 
-    private boolean getGoodsOver(long goodsId) {
-        return redisService.exists(MiaoshaKey.isGoodsOver, "" + goodsId);
+    /**
+     * 补货：重置 redis 库存并清除所有节点的售罄标记
+     */
+    public void replenishStock(long goodsId, int stockCount) {
+        if (stockShardService.isSharded(goodsId)) {
+            stockShardService.replenish(goodsId, stockCount);
+        } else {
+            redisService.set(GoodsKey.getMiaoshaGoodsStock, "" + goodsId, stockCount);
+        }
+        redisService.delete(MiaoshaKey.isGoodsOver, "" + goodsId);
+        goodsOverRegistry.reset(goodsId);
+        // 补货通常伴随秒杀时间、价格调整
+        goodsService.evictGoods(goodsId);
     }
 
     public boolean checkPath(MiaoshaUser user, long goodsId, String path) {
@@ -87,6 +187,89 @@ public class MiaoshaService {
         return path.equals(pathOld);
     }
 
+    /**
+     * 秒杀准入：校验path、重复秒杀标记、预减库存 一次 EVALSHA 原子完成
+     *
+     * @return ADMISSION_* 返回码
+     */
+    public int admission(MiaoshaUser user, long goodsId, String path) {
+        if (user == null || path == null) {
+            return ADMISSION_PATH_ILLEGAL;
+        }
+        String userGoods = user.getNickname() + "_" + goodsId;
+        List<String> keys = Arrays.asList(
+                MiaoshaKey.getMiaoshaPath.getPrefix() + userGoods,
+                OrderKey.getMiaoshaOrderByUidGid.getPrefix() + userGoods,
+                MiaoshaKey.isUserMiaosha.getPrefix() + userGoods,
+                GoodsKey.getMiaoshaGoodsStock.getPrefix() + goodsId);
+        // 库存分片、库存租约或请求合并时脚本不减库存，由本节点扣减
+        boolean shard = stockShardService.isSharded(goodsId);
+        boolean lease = !shard && stockLeaseService.isEnable();
+        boolean coalesce = !shard && !lease && stockCoalesceService.isEnable();
+        List<String> args = Arrays.asList(path, String.valueOf(MiaoshaKey.isUserMiaosha.expireSeconds()), shard || lease || coalesce ? "0" : "1");
+        int status = admissionScript.evalForLong(keys, args).intValue();
+        if (status != ADMISSION_SUCCESS) {
+            return status;
+        }
+        boolean acquired;
+        try {
+            acquired = (!shard || stockShardService.acquire(goodsId, Long.valueOf(user.getNickname())))
+                    && (!lease || stockLeaseService.acquire(goodsId))
+                    && (!coalesce || stockCoalesceService.acquire(goodsId));
+        } catch (GlobleException e) {
+            redisService.delete(MiaoshaKey.isUserMiaosha, userGoods);
+            return ADMISSION_BUSY;
+        }
+        if (!acquired) {
+            redisService.delete(MiaoshaKey.isUserMiaosha, userGoods);
+            return ADMISSION_OVER;
+        }
+        return status;
+    }
+
+    /**
+     * 撤销准入：下单消息最终没能投递时退回一件库存并清除重复秒杀标记，用户可以重新抢
+     */
+    public void rollbackAdmission(long userId, long goodsId) {
+        if (stockShardService.isSharded(goodsId)) {
+            stockShardService.returnStock(goodsId, stockShardService.shardOf(goodsId, userId), 1);
+        } else {
+            redisService.incrBy(GoodsKey.getMiaoshaGoodsStock, "" + goodsId, 1);
+        }
+        redisService.delete(MiaoshaKey.isUserMiaosha, userId + "_" + goodsId);
+        if (goodsOverRegistry.isOver(goodsId)) {
+            redisService.delete(MiaoshaKey.isGoodsOver, "" + goodsId);
+            goodsOverRegistry.reset(goodsId);
+        }
+    }
+
+    /**
+     * 超时关闭的订单退回 redis 库存，清掉用户的购买标记和秒杀订单缓存，让用户可以重新抢；
+     * 涉及的商品清除所有节点的售罄标记
+     */
+    public void rollbackOrders(List<OrderInfo> orders) {
+        Map<Long, Long> counts = new HashMap<Long, Long>();
+        for (OrderInfo order : orders) {
+            long goodsId = order.getGoodsId();
+            long userId = order.getUserId();
+            if (stockShardService.isSharded(goodsId)) {
+                stockShardService.returnStock(goodsId, stockShardService.shardOf(goodsId, userId), order.getGoodsCount());
+                counts.putIfAbsent(goodsId, 0L);
+            } else {
+                counts.merge(goodsId, (long) order.getGoodsCount(), Long::sum);
+            }
+            redisService.delete(MiaoshaKey.isUserMiaosha, userId + "_" + goodsId);
+            redisService.delete(OrderKey.getMiaoshaOrderByUidGid, userId + "_" + goodsId);
+        }
+        for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+            if (entry.getValue() > 0) {
+                redisService.incrBy(GoodsKey.getMiaoshaGoodsStock, "" + entry.getKey(), entry.getValue());
+            }
+            redisService.delete(MiaoshaKey.isGoodsOver, "" + entry.getKey());
+            goodsOverRegistry.reset(entry.getKey());
+        }
+    }
+
     public String createMiaoshaPath(MiaoshaUser user, long goodsId) {
         if (user == null || goodsId <= 0) {
             return null;
@@ -206,4 +389,12 @@ public class MiaoshaService {
         return exp;
     }
 
+    /**
+     * 取秒杀准入脚本
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        admissionScript = luaScriptRegistry.script(ADMISSION_SCRIPT);
+    }
+
 }
@@ -0,0 +1,196 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.domain.MiaoshaUser;
+import com.geekq.miaosha.domain.OrderInfo;
+import com.geekq.miaosha.vo.GoodsVo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下单组提交
+ * 多个消费者线程对同一商品的下单在一个时间窗口(或攒够 N 个)内合并，
+ * 一个事务里一次锁库存行按实际库存扣减、一次多行插入领到库存的订单，库存行锁只争一次
+ */
+@Service
+public class OrderGroupCommitService implements InitializingBean, DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(OrderGroupCommitService.class);
+
+    @Autowired
+    GoodsService goodsService;
+
+    @Autowired
+    MiaoshaService miaoshaService;
+
+    @Value("${miaosha.order.group-commit.enable:false}")
+    private boolean enable;
+
+    /**
+     * 合并窗口(毫秒)
+     */
+    @Value("${miaosha.order.group-commit.window:5}")
+    private long windowMillis;
+
+    /**
+     * 攒够多少个下单立即提交
+     */
+    @Value("${miaosha.order.group-commit.max-batch:200}")
+    private int maxBatch;
+
+    /**
+     * 提交线程数，不同商品的批次并行提交
+     */
+    @Value("${miaosha.order.group-commit.threads:4}")
+    private int threads;
+
+    private final Map<Long, Batch> pending = new ConcurrentHashMap<Long, Batch>();
+
+    private ScheduledExecutorService flusher;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 下单，未开启组提交时直接单笔下单；开启时阻塞到所在批次提交
+     * 没库存或用户已下过单时跳过，数据库异常原样抛给调用方
+     *
+     * @return 新建的订单，跳过时返回 null
+     */
+    public OrderInfo placeOrder(MiaoshaUser user, long goodsId) {
+        if (!enable) {
+            return miaoshaService.placeOrder(user, goodsId);
+        }
+        CompletableFuture<OrderInfo> waiter = new CompletableFuture<OrderInfo>();
+        Batch[] full = new Batch[1];
+        pending.compute(goodsId, (id, batch) -> {
+            if (batch == null) {
+                batch = new Batch();
+                Batch scheduled = batch;
+                flusher.schedule(() -> flush(id, scheduled), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.add(user, waiter);
+            if (batch.size >= maxBatch) {
+                full[0] = batch;
+                return null;
+            }
+            return batch;
+        });
+        if (full[0] != null) {
+            submit(goodsId, full[0]);
+        }
+        try {
+            return waiter.join();
+        } catch (CompletionException e) {
+            // 还原数据库异常，调用方据此判断重试还是幂等冲突
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void flush(long goodsId, Batch batch) {
+        if (pending.remove(goodsId, batch)) {
+            submit(goodsId, batch);
+        }
+    }
+
+    private void submit(long goodsId, Batch batch) {
+        Map<Long, OrderInfo> orders = new HashMap<Long, OrderInfo>();
+        try {
+            GoodsVo goods = goodsService.getGoodsSnapshot(goodsId);
+            if (goods != null) {
+                for (OrderInfo order : miaoshaService.miaoshaBatch(new ArrayList<MiaoshaUser>(batch.users.values()), goods)) {
+                    orders.put(order.getUserId(), order);
+                }
+            }
+        } catch (Exception e) {
+            // 整批回滚后逐个单笔重下，异常(如某个用户的唯一键冲突)只交给对应用户，不连累同批其他用户
+            logger.warn("组提交下单失败，逐个单笔下单 goodsId:{} size:{}", goodsId, batch.size, e);
+            placeSingly(goodsId, batch);
+            return;
+        }
+        for (Map.Entry<Long, List<CompletableFuture<OrderInfo>>> entry : batch.waiters.entrySet()) {
+            OrderInfo order = orders.get(entry.getKey());
+            for (CompletableFuture<OrderInfo> waiter : entry.getValue()) {
+                waiter.complete(order);
+            }
+        }
+    }
+
+    private void placeSingly(long goodsId, Batch batch) {
+        for (Map.Entry<Long, MiaoshaUser> entry : batch.users.entrySet()) {
+            List<CompletableFuture<OrderInfo>> waiters = batch.waiters.get(entry.getKey());
+            try {
+                OrderInfo order = miaoshaService.placeOrder(entry.getValue(), goodsId);
+                for (CompletableFuture<OrderInfo> waiter : waiters) {
+                    waiter.complete(order);
+                }
+            } catch (Exception e) {
+                for (CompletableFuture<OrderInfo> waiter : waiters) {
+                    waiter.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enable) {
+            return;
+        }
+        flusher = Executors.newScheduledThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "order-group-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (!enable) {
+            return;
+        }
+        flusher.shutdown();
+        for (Map.Entry<Long, Batch> entry : pending.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 同一用户的重复消息合并成一个下单，共用结果
+     */
+    private static class Batch {
+
+        private final Map<Long, MiaoshaUser> users = new LinkedHashMap<Long, MiaoshaUser>();
+
+        private final Map<Long, List<CompletableFuture<OrderInfo>>> waiters = new HashMap<Long, List<CompletableFuture<OrderInfo>>>();
+
+        private int size;
+
+        private void add(MiaoshaUser user, CompletableFuture<OrderInfo> waiter) {
+            Long userId = Long.valueOf(user.getNickname());
+            users.putIfAbsent(userId, user);
+            waiters.computeIfAbsent(userId, id -> new ArrayList<CompletableFuture<OrderInfo>>()).add(waiter);
+            size++;
+        }
+    }
+}
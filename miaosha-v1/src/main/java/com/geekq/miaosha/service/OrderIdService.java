@@ -0,0 +1,156 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.dao.IdSegmentDao;
+import com.geekq.miaosha.domain.IdSegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 订单号段分配
+ * 每个节点从 id_segment 表一次领一段 id(默认 1000 个)，本机 CAS 递增发号，不再依赖自增主键和 last_insert_id；
+ * 当前号段用掉一成后后台预取下一段，切换号段时通常不用等数据库。
+ * 领号段在独立事务里完成，不占用下单事务的行锁
+ */
+@Service
+public class OrderIdService implements InitializingBean, DisposableBean {
+
+    private static final String BIZ_TAG = "order_info";
+
+    private static Logger logger = LoggerFactory.getLogger(OrderIdService.class);
+
+    @Autowired
+    IdSegmentDao idSegmentDao;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    /**
+     * 号段不存在时初始化的号段长度，之后以表里的 step 为准
+     */
+    @Value("${miaosha.order.id.step:1000}")
+    private int step;
+
+    private TransactionTemplate segmentTransaction;
+
+    private final Object lock = new Object();
+
+    private volatile Segment current = new Segment(1, 0);
+
+    private volatile Segment next;
+
+    private final AtomicBoolean loading = new AtomicBoolean();
+
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "order-id-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public long nextId() {
+        for (; ; ) {
+            Segment segment = current;
+            long id = segment.cursor.getAndIncrement();
+            if (id <= segment.max) {
+                if (next == null && segment.max - id < segment.step * 9 / 10) {
+                    prefetch();
+                }
+                return id;
+            }
+            switchSegment(segment);
+        }
+    }
+
+    public long[] nextIds(int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = nextId();
+        }
+        return ids;
+    }
+
+    /**
+     * 当前号段用完：换上预取好的号段，没有则同步领一段
+     */
+    private void switchSegment(Segment exhausted) {
+        synchronized (lock) {
+            if (current != exhausted) {
+                return;
+            }
+            Segment prefetched = next;
+            if (prefetched != null) {
+                next = null;
+                current = prefetched;
+            } else {
+                current = loadSegment();
+            }
+        }
+    }
+
+    private void prefetch() {
+        if (!loading.compareAndSet(false, true)) {
+            return;
+        }
+        prefetcher.execute(() -> {
+            try {
+                if (next == null) {
+                    next = loadSegment();
+                }
+            } catch (Exception e) {
+                logger.warn("预取订单号段失败，用完后同步领取", e);
+            } finally {
+                loading.set(false);
+            }
+        });
+    }
+
+    private Segment loadSegment() {
+        IdSegment segment = segmentTransaction.execute(status -> {
+            if (idSegmentDao.updateMaxId(BIZ_TAG) == 0) {
+                idSegmentDao.initOrderSegment(BIZ_TAG, step);
+                idSegmentDao.updateMaxId(BIZ_TAG);
+            }
+            return idSegmentDao.getIdSegment(BIZ_TAG);
+        });
+        logger.info("领取订单号段 ({}, {}]", segment.getMaxId() - segment.getStep(), segment.getMaxId());
+        return new Segment(segment.getMaxId() - segment.getStep() + 1, segment.getMaxId());
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        segmentTransaction = new TransactionTemplate(transactionManager);
+        segmentTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        prefetcher.shutdownNow();
+    }
+
+    private static class Segment {
+
+        private final AtomicLong cursor;
+
+        private final long max;
+
+        private final long step;
+
+        private Segment(long start, long max) {
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.step = max - start + 1;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.redis.MiaoshaKey;
+import com.geekq.miaosha.redis.RedisService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * 下单消息幂等
+ * 按消息 requestId 记录已处理：先查本机有界缓存，再查 redis；处理完成后写本机缓存并 SETNX 到 redis。
+ * 重投、重试回流的消息在碰数据库之前就能确认，不必等唯一索引报错回滚整个事务。
+ * 只在处理成功后标记，标记失败最多退回到唯一索引兜底
+ */
+@Service
+public class OrderIdempotencyService implements InitializingBean {
+
+    private static final String DONE = "1";
+
+    private static Logger logger = LoggerFactory.getLogger(OrderIdempotencyService.class);
+
+    @Autowired
+    RedisService redisService;
+
+    @Value("${miaosha.order.idempotent.local-size:100000}")
+    private long localSize;
+
+    private Cache<Long, Boolean> processed;
+
+    /**
+     * requestId 是否已处理过，0 为旧版消息没有 requestId
+     */
+    public boolean isProcessed(long requestId) {
+        if (requestId == 0) {
+            return false;
+        }
+        if (processed.getIfPresent(requestId) != null) {
+            return true;
+        }
+        try {
+            if (redisService.exists(MiaoshaKey.orderRequestDone, "" + requestId)) {
+                processed.put(requestId, Boolean.TRUE);
+                return true;
+            }
+        } catch (Exception e) {
+            logger.warn("查询下单幂等标记失败 requestId:{}", requestId, e);
+        }
+        return false;
+    }
+
+    public void markProcessed(long requestId) {
+        if (requestId == 0) {
+            return;
+        }
+        processed.put(requestId, Boolean.TRUE);
+        try {
+            redisService.setnx(MiaoshaKey.orderRequestDone, "" + requestId, DONE);
+        } catch (Exception e) {
+            logger.warn("写入下单幂等标记失败 requestId:{}", requestId, e);
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        processed = CacheBuilder.newBuilder().maximumSize(localSize).build();
+    }
+}
@@ -0,0 +1,492 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.domain.MiaoshaUser;
+import com.geekq.miaosha.rabbitmq.MiaoshaMessage;
+import com.geekq.miaosha.rabbitmq.MiaoshaMessageConverter;
+import com.geekq.miaosha.vo.GoodsVo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * 进程内下单流水线(单节点部署时替代 RabbitMQ)
+ * 预分配的环形缓冲区：请求线程 CAS 认领槽位写入事件；日志线程先把事件批量写入重放日志，
+ * 下单线程只处理已落日志的事件，按 goodsId 哈希分给固定线程，同一商品的一批事件一次 miaoshaBatch 下单，
+ * 整批失败时逐个单笔下单，每批结束才推进消费序号。最终下单失败的事件退回准入并写入死信日志。
+ * 所有事件都下单完成后截断日志；启动时重放日志里的事件，重复的由下单幂等跳过
+ */
+@Service
+public class OrderPipeline implements InitializingBean, DisposableBean {
+
+    private static final int RECORD = 4 + MiaoshaMessageConverter.LENGTH;
+
+    private static Logger logger = LoggerFactory.getLogger(OrderPipeline.class);
+
+    @Autowired
+    MiaoshaService miaoshaService;
+
+    @Autowired
+    OrderIdempotencyService idempotencyService;
+
+    @Autowired
+    GoodsService goodsService;
+
+    /**
+     * rabbit：经 RabbitMQ 异步下单；local：进程内流水线
+     */
+    @Value("${miaosha.order.pipeline:rabbit}")
+    private String mode;
+
+    /**
+     * 槽位数，取 2 的幂
+     */
+    @Value("${miaosha.order.local.ring-size:65536}")
+    private int ringSize;
+
+    @Value("${miaosha.order.local.consumers:4}")
+    private int consumerCount;
+
+    @Value("${miaosha.order.local.batch-size:256}")
+    private int batchSize;
+
+    @Value("${miaosha.order.local.journal:./data/order.journal}")
+    private String journalPath;
+
+    /**
+     * 每批日志是否刷盘
+     */
+    @Value("${miaosha.order.local.journal-force:true}")
+    private boolean journalForce;
+
+    /**
+     * 缓冲区满时请求线程最长等待(毫秒)
+     */
+    @Value("${miaosha.order.local.publish-timeout:1000}")
+    private long publishTimeoutMillis;
+
+    @Value("${miaosha.order.local.max-retry:3}")
+    private int maxRetry;
+
+    private Event[] slots;
+
+    private int mask;
+
+    private int shift;
+
+    /**
+     * 槽位已发布的圈数，判断某个序号是否写完
+     */
+    private AtomicIntegerArray available;
+
+    private final AtomicLong cursor = new AtomicLong(-1);
+
+    private final AtomicLong journalSequence = new AtomicLong(-1);
+
+    /**
+     * 启动重放的最后一个序号，重放事件全部重新落日志之前不截断日志
+     */
+    private volatile long replayHigh = -1;
+
+    private AtomicLong[] consumerSequences;
+
+    private FileChannel journal;
+
+    /**
+     * 最终下单失败的事件，格式同重放日志，供人工核对
+     */
+    private FileChannel deadJournal;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private volatile boolean running;
+
+    public boolean isEnable() {
+        return "local".equals(mode);
+    }
+
+    /**
+     * 提交下单事件
+     *
+     * @return false 表示缓冲区一直是满的
+     */
+    public boolean publish(MiaoshaMessage mm) {
+        long sequence = claim();
+        if (sequence < 0) {
+            return false;
+        }
+        Event event = slots[(int) sequence & mask];
+        event.userId = mm.getUserId();
+        event.goodsId = mm.getGoodsId();
+        event.requestId = mm.getRequestId();
+        event.timestamp = mm.getTimestamp();
+        available.lazySet((int) sequence & mask, (int) (sequence >>> shift));
+        return true;
+    }
+
+    /**
+     * 先等到有空槽再认领，认领后必须发布，否则消费者会卡住
+     */
+    private long claim() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(publishTimeoutMillis);
+        for (; ; ) {
+            long current = cursor.get();
+            long next = current + 1;
+            if (next - ringSize > minConsumerSequence()) {
+                if (!running || System.nanoTime() > deadline) {
+                    return -1;
+                }
+                LockSupport.parkNanos(1000);
+                continue;
+            }
+            if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    private boolean isAvailable(long sequence) {
+        return available.get((int) sequence & mask) == (int) (sequence >>> shift);
+    }
+
+    private long minConsumerSequence() {
+        long min = Long.MAX_VALUE;
+        for (AtomicLong sequence : consumerSequences) {
+            min = Math.min(min, sequence.get());
+        }
+        return min;
+    }
+
+    /**
+     * 日志线程：把已发布的事件批量写入重放日志
+     */
+    private void journalLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD * batchSize);
+        CRC32 crc = new CRC32();
+        long next = journalSequence.get() + 1;
+        while (running || next <= cursor.get()) {
+            long high = next - 1;
+            while (high + 1 - next < batchSize && isAvailable(high + 1)) {
+                high++;
+            }
+            long mark = -1;
+            try {
+                if (high < next) {
+                    truncateIfDrained();
+                    LockSupport.parkNanos(100_000);
+                    continue;
+                }
+                mark = journal.position();
+                buffer.clear();
+                for (long s = next; s <= high; s++) {
+                    Event event = slots[(int) s & mask];
+                    byte[] payload = MiaoshaMessageConverter.encode(event.toMessage());
+                    crc.reset();
+                    crc.update(payload);
+                    buffer.putInt((int) crc.getValue()).put(payload);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer);
+                }
+                if (journalForce) {
+                    journal.force(false);
+                }
+                journalSequence.set(high);
+                next = high + 1;
+            } catch (IOException e) {
+                logger.error("写下单重放日志失败，稍后重试", e);
+                // 丢掉写了一半的批次，重试时整批重写
+                try {
+                    if (mark >= 0) {
+                        journal.position(mark);
+                    }
+                } catch (IOException ignore) {
+                }
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * 重放事件都已重新落日志、日志里的事件都已下单完成时截断，日志线程独占写入，截断不会丢掉新事件
+     */
+    private void truncateIfDrained() throws IOException {
+        long journaled = journalSequence.get();
+        if (journal.position() > 0 && journaled >= replayHigh && minConsumerSequence() >= journaled) {
+            journal.truncate(0);
+            journal.position(0);
+        }
+    }
+
+    /**
+     * 下单线程：只处理已落日志且归自己的商品
+     */
+    private void consumeLoop(int index) {
+        AtomicLong sequence = consumerSequences[index];
+        long next = sequence.get() + 1;
+        while (running || next <= cursor.get()) {
+            long high = Math.min(journalSequence.get(), next + batchSize - 1);
+            if (high < next) {
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            // goodsId -> 本批该商品的事件
+            Map<Long, List<Event>> groups = new LinkedHashMap<Long, List<Event>>();
+            for (long s = next; s <= high; s++) {
+                Event event = slots[(int) s & mask];
+                if ((Long.hashCode(event.goodsId) & Integer.MAX_VALUE) % consumerCount == index
+                        && !idempotencyService.isProcessed(event.requestId)) {
+                    groups.computeIfAbsent(event.goodsId, id -> new ArrayList<Event>()).add(event);
+                }
+            }
+            for (Map.Entry<Long, List<Event>> group : groups.entrySet()) {
+                placeOrders(group.getKey(), group.getValue());
+            }
+            sequence.set(high);
+            next = high + 1;
+        }
+    }
+
+    /**
+     * 同一商品的一批事件一次下单，同一用户只下一次；整批失败时逐个单笔下单
+     */
+    private void placeOrders(long goodsId, List<Event> events) {
+        if (events.size() > 1) {
+            Map<Long, MiaoshaUser> users = new LinkedHashMap<Long, MiaoshaUser>();
+            for (Event event : events) {
+                users.computeIfAbsent(event.userId, OrderPipeline::userOf);
+            }
+            try {
+                GoodsVo goods = goodsService.getGoodsSnapshot(goodsId);
+                if (goods != null) {
+                    miaoshaService.miaoshaBatch(new ArrayList<MiaoshaUser>(users.values()), goods);
+                }
+                for (Event event : events) {
+                    idempotencyService.markProcessed(event.requestId);
+                }
+                return;
+            } catch (Exception e) {
+                logger.warn("本地批量下单失败，逐个单笔下单 goodsId:{} size:{}", goodsId, events.size(), e);
+            }
+        }
+        for (Event event : events) {
+            placeOrder(event);
+        }
+    }
+
+    private static MiaoshaUser userOf(long userId) {
+        MiaoshaUser user = new MiaoshaUser();
+        user.setNickname(String.valueOf(userId));
+        return user;
+    }
+
+    private void placeOrder(Event event) {
+        if (idempotencyService.isProcessed(event.requestId)) {
+            return;
+        }
+        MiaoshaUser user = new MiaoshaUser();
+        user.setNickname(String.valueOf(event.userId));
+        for (int attempt = 1; ; attempt++) {
+            try {
+                miaoshaService.placeOrder(user, event.goodsId);
+                idempotencyService.markProcessed(event.requestId);
+                return;
+            } catch (DuplicateKeyException e) {
+                // 重放或重复提交：已下过单
+                idempotencyService.markProcessed(event.requestId);
+                return;
+            } catch (TransientDataAccessException e) {
+                if (attempt >= maxRetry) {
+                    logger.error("本地下单重试超限，退回准入并写入死信日志 userId:{} goodsId:{} requestId:{}",
+                            event.userId, event.goodsId, event.requestId, e);
+                    deadLetter(event);
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100L * attempt));
+            } catch (Exception e) {
+                logger.error("本地下单失败，退回准入并写入死信日志 userId:{} goodsId:{} requestId:{}",
+                        event.userId, event.goodsId, event.requestId, e);
+                deadLetter(event);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 最终下单失败：先记死信日志再退回预减的库存和购买标记，之后才会推进消费序号、截断重放日志
+     */
+    private void deadLetter(Event event) {
+        byte[] payload = MiaoshaMessageConverter.encode(event.toMessage());
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD);
+        record.putInt((int) crc.getValue()).put(payload).flip();
+        try {
+            synchronized (deadJournal) {
+                while (record.hasRemaining()) {
+                    deadJournal.write(record);
+                }
+                deadJournal.force(false);
+            }
+        } catch (IOException e) {
+            logger.error("写下单死信日志失败 userId:{} goodsId:{} requestId:{}",
+                    event.userId, event.goodsId, event.requestId, e);
+        }
+        try {
+            miaoshaService.rollbackAdmission(event.userId, event.goodsId);
+        } catch (Exception e) {
+            logger.error("退回秒杀准入失败 userId:{} goodsId:{}", event.userId, event.goodsId, e);
+        }
+    }
+
+    /**
+     * 读出上次未截断的日志，只截掉末尾写了一半的记录；
+     * 重放的事件由日志线程重新追加，全部下单完成后才随整个日志截断，重放途中宕机不会丢
+     */
+    private List<MiaoshaMessage> readJournal() throws IOException {
+        List<MiaoshaMessage> replay = new ArrayList<MiaoshaMessage>();
+        ByteBuffer record = ByteBuffer.allocate(RECORD);
+        CRC32 crc = new CRC32();
+        journal.position(0);
+        long valid = 0;
+        while (true) {
+            record.clear();
+            int read;
+            do {
+                read = journal.read(record);
+            } while (read > 0 && record.hasRemaining());
+            if (record.hasRemaining()) {
+                break;
+            }
+            record.flip();
+            int expected = record.getInt();
+            byte[] payload = new byte[MiaoshaMessageConverter.LENGTH];
+            record.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+            replay.add(MiaoshaMessageConverter.decode(payload));
+            valid += RECORD;
+        }
+        journal.truncate(valid);
+        journal.position(valid);
+        return replay;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!isEnable()) {
+            return;
+        }
+        if (Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("miaosha.order.local.ring-size 必须是 2 的幂:" + ringSize);
+        }
+        slots = new Event[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            slots[i] = new Event();
+        }
+        mask = ringSize - 1;
+        shift = Integer.numberOfTrailingZeros(ringSize);
+        available = new AtomicIntegerArray(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            available.set(i, -1);
+        }
+        consumerSequences = new AtomicLong[consumerCount];
+        for (int i = 0; i < consumerCount; i++) {
+            consumerSequences[i] = new AtomicLong(-1);
+        }
+
+        File file = new File(journalPath);
+        if (file.getParentFile() != null && !file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("无法创建下单日志目录:" + file.getParentFile().getAbsolutePath());
+        }
+        journal = new RandomAccessFile(file, "rw").getChannel();
+        deadJournal = new RandomAccessFile(file.getPath() + ".dead", "rw").getChannel();
+        deadJournal.position(deadJournal.size());
+        List<MiaoshaMessage> replay = readJournal();
+        // 重放事件先于新请求发布，占用序号 0 ~ size-1
+        replayHigh = replay.size() - 1;
+
+        running = true;
+        start(this::journalLoop, "order-pipeline-journal");
+        for (int i = 0; i < consumerCount; i++) {
+            int index = i;
+            start(() -> consumeLoop(index), "order-pipeline-consumer-" + i);
+        }
+        for (MiaoshaMessage mm : replay) {
+            if (!publish(mm)) {
+                throw new IllegalStateException("重放下单日志失败，缓冲区已满");
+            }
+        }
+        if (!replay.isEmpty()) {
+            logger.info("重放下单日志 {} 条", replay.size());
+        }
+    }
+
+    private void start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    /**
+     * 停机时把已提交的事件处理完；超时未处理完的留在日志里，下次启动重放
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (!isEnable()) {
+            return;
+        }
+        running = false;
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        truncateIfDrained();
+        journal.close();
+        deadJournal.close();
+    }
+
+    private static class Event {
+
+        private long userId;
+
+        private long goodsId;
+
+        private long requestId;
+
+        private long timestamp;
+
+        private MiaoshaMessage toMessage() {
+            MiaoshaMessage mm = new MiaoshaMessage();
+            mm.setUserId(userId);
+            mm.setGoodsId(goodsId);
+            mm.setRequestId(requestId);
+            mm.setTimestamp(timestamp);
+            return mm;
+        }
+    }
+}
@@ -6,16 +6,23 @@ import com.geekq.miaosha.domain.MiaoshaUser;
 import com.geekq.miaosha.domain.OrderInfo;
 import com.geekq.miaosha.redis.OrderKey;
 import com.geekq.miaosha.redis.RedisService;
-import com.geekq.miaosha.utils.DateTimeUtils;
 import com.geekq.miaosha.vo.GoodsVo;
-import org.apache.commons.lang3.time.DateUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import static com.geekq.miaosha.common.Constanst.orderStaus.ORDER_CLOSED;
 import static com.geekq.miaosha.common.Constanst.orderStaus.ORDER_NOT_PAY;
 
 @Service
@@ -27,6 +34,15 @@ public class OrderService {
     @Autowired
     private RedisService redisService;
 
+    @Autowired
+    OrderIdService orderIdService;
+
+    @Autowired
+    OrderTimeoutService orderTimeoutService;
+
+    @Autowired
+    GoodsService goodsService;
+
     public MiaoshaOrder getMiaoshaOrderByUserIdGoodsId(long userId, long goodsId) {
         return redisService.get(OrderKey.getMiaoshaOrderByUidGid, "" + userId + "_" + goodsId, MiaoshaOrder.class);
     }
@@ -48,6 +64,7 @@ public class OrderService {
         orderInfo.setOrderChannel(1);
         orderInfo.setStatus(0);
         orderInfo.setUserId(Long.valueOf(user.getNickname()));
+        orderInfo.setId(orderIdService.nextId());
         orderDao.insert(orderInfo);
         // 创建秒杀订单
         MiaoshaOrder miaoshaOrder = new MiaoshaOrder();
@@ -57,16 +74,110 @@ public class OrderService {
         orderDao.insertMiaoshaOrder(miaoshaOrder);
         // redis 缓存秒杀订单
         redisService.set(OrderKey.getMiaoshaOrderByUidGid, "" + user.getNickname() + "_" + goods.getId(), miaoshaOrder);
+        registerTimeoutAfterCommit(Collections.singletonList(orderInfo));
         return orderInfo;
     }
 
-    public void closeOrder(int hour) {
-        Date closeDateTime = DateUtils.addHours(new Date(), -hour);
-        List<OrderInfo> orderInfoList = orderDao.selectOrderStatusByCreateTime(Integer.valueOf(ORDER_NOT_PAY.ordinal()), DateTimeUtils.dateToStr(closeDateTime));
-        for (OrderInfo orderInfo : orderInfoList) {
-            System.out.println("orderinfo  infomation " + orderInfo.getGoodsName());
+    /**
+     * 批量创建订单：order_info / miaosha_order 各一次多行插入，redis 订单标记 pipeline 写入
+     */
+    @Transactional
+    public List<OrderInfo> createOrders(List<MiaoshaUser> users, GoodsVo goods) {
+        Date now = new Date();
+        long[] ids = orderIdService.nextIds(users.size());
+        List<OrderInfo> orderInfos = new ArrayList<OrderInfo>(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            MiaoshaUser user = users.get(i);
+            OrderInfo orderInfo = new OrderInfo();
+            orderInfo.setId(ids[i]);
+            orderInfo.setCreateDate(now);
+            orderInfo.setDeliveryAddrId(0L);
+            orderInfo.setGoodsCount(1);
+            orderInfo.setGoodsId(goods.getId());
+            orderInfo.setGoodsName(goods.getGoodsName());
+            orderInfo.setGoodsPrice(goods.getMiaoshaPrice());
+            orderInfo.setOrderChannel(1);
+            orderInfo.setStatus(0);
+            orderInfo.setUserId(Long.valueOf(user.getNickname()));
+            orderInfos.add(orderInfo);
+        }
+        orderDao.insertBatch(orderInfos);
+        List<MiaoshaOrder> miaoshaOrders = new ArrayList<MiaoshaOrder>(orderInfos.size());
+        Map<String, MiaoshaOrder> cached = new HashMap<String, MiaoshaOrder>();
+        for (OrderInfo orderInfo : orderInfos) {
+            MiaoshaOrder miaoshaOrder = new MiaoshaOrder();
+            miaoshaOrder.setGoodsId(goods.getId());
+            miaoshaOrder.setOrderId(orderInfo.getId());
+            miaoshaOrder.setUserId(orderInfo.getUserId());
+            miaoshaOrders.add(miaoshaOrder);
+            cached.put("" + orderInfo.getUserId() + "_" + goods.getId(), miaoshaOrder);
+        }
+        orderDao.insertMiaoshaOrderBatch(miaoshaOrders);
+        redisService.mset(OrderKey.getMiaoshaOrderByUidGid, cached);
+        registerTimeoutAfterCommit(orderInfos);
+        return orderInfos;
+    }
+
+    /**
+     * 事务提交后才登记超时关单，回滚的订单不会进超时队列被关单、回补库存；没有事务时直接登记
+     */
+    private void registerTimeoutAfterCommit(List<OrderInfo> orderInfos) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            orderTimeoutService.register(orderInfos);
+            return;
         }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                orderTimeoutService.register(orderInfos);
+            }
+        });
     }
 
+    /**
+     * 过滤掉已经下过单的用户
+     */
+    public List<MiaoshaUser> filterOrderedUsers(List<MiaoshaUser> users, long goodsId) {
+        List<Long> userIds = new ArrayList<Long>(users.size());
+        for (MiaoshaUser user : users) {
+            userIds.add(Long.valueOf(user.getNickname()));
+        }
+        Set<Long> ordered = new HashSet<Long>(orderDao.listMiaoshaOrderUserIds(goodsId, userIds));
+        if (ordered.isEmpty()) {
+            return users;
+        }
+        List<MiaoshaUser> buyers = new ArrayList<MiaoshaUser>(users.size());
+        for (MiaoshaUser user : users) {
+            if (!ordered.contains(Long.valueOf(user.getNickname()))) {
+                buyers.add(user);
+            }
+        }
+        return buyers;
+    }
+
+    /**
+     * 关闭超时未支付的订单：仍未支付的改为超时关闭并删除秒杀订单，让用户可以重新抢；库存按商品合并退回
+     *
+     * @return 本次实际关闭的订单，已支付或已关闭的不在其中
+     */
+    @Transactional
+    public List<OrderInfo> closeTimeoutOrders(List<Long> orderIds) {
+        List<OrderInfo> orders = orderDao.listOrdersByStatusForUpdate(orderIds, ORDER_NOT_PAY.ordinal());
+        if (orders.isEmpty()) {
+            return orders;
+        }
+        List<Long> ids = new ArrayList<Long>(orders.size());
+        Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        for (OrderInfo order : orders) {
+            ids.add(order.getId());
+            counts.merge(order.getGoodsId(), order.getGoodsCount(), Integer::sum);
+        }
+        orderDao.updateOrderStatus(ids, ORDER_NOT_PAY.ordinal(), ORDER_CLOSED.ordinal());
+        orderDao.deleteMiaoshaOrders(ids);
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            goodsService.returnStock(entry.getKey(), entry.getValue());
+        }
+        return orders;
+    }
 
 }
@@ -0,0 +1,125 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.common.TimingWheel;
+import com.geekq.miaosha.domain.OrderInfo;
+import com.geekq.miaosha.redis.LuaScript;
+import com.geekq.miaosha.redis.LuaScriptRegistry;
+import com.geekq.miaosha.redis.OrderKey;
+import com.geekq.miaosha.redis.RedisService;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 未支付订单超时
+ * 新订单登记到 redis 超时队列(有序集合，score 为超时时间)，重启不丢、所有节点共享；
+ * 同时放进本机分层时间轮，到点由本机关单。本机没处理掉的(重启、宕机、关单失败)超时一段时间后由各节点从 redis 领取
+ */
+@Service
+public class OrderTimeoutService implements InitializingBean {
+
+    private static final String CLAIM_SCRIPT = "order_timeout_claim";
+
+    @Autowired
+    RedisService redisService;
+
+    @Autowired
+    LuaScriptRegistry luaScriptRegistry;
+
+    @Value("${miaosha.order.timeout.enable:false}")
+    private boolean enable;
+
+    /**
+     * 未支付订单多久后关闭(秒)
+     */
+    @Value("${miaosha.order.timeout.seconds:900}")
+    private long timeoutSeconds;
+
+    /**
+     * 时间轮每格(毫秒)
+     */
+    @Value("${miaosha.order.timeout.tick:1000}")
+    private long tickMillis;
+
+    @Value("${miaosha.order.timeout.wheel-size:60}")
+    private int wheelSize;
+
+    /**
+     * 从 redis 领取后多久没关掉就允许别的节点再领(毫秒)
+     */
+    @Value("${miaosha.order.timeout.claim-lease:60000}")
+    private long claimLeaseMillis;
+
+    private TimingWheel<Long> wheel;
+
+    private LuaScript claimScript;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 登记新建的未支付订单
+     */
+    public void register(List<OrderInfo> orders) {
+        if (!enable || orders.isEmpty()) {
+            return;
+        }
+        Map<String, Double> members = new HashMap<String, Double>();
+        for (OrderInfo order : orders) {
+            long expireAt = order.getCreateDate().getTime() + timeoutSeconds * 1000;
+            members.put(String.valueOf(order.getId()), (double) expireAt);
+            wheel.add(order.getId(), expireAt);
+        }
+        redisService.zadd(OrderKey.orderTimeout, "", members);
+    }
+
+    /**
+     * 本机时间轮里到期的订单
+     */
+    public List<Long> pollExpired() {
+        return wheel.poll(System.currentTimeMillis());
+    }
+
+    /**
+     * 从 redis 领取 before 之前就已超时的订单，领到的在租约期内别的节点领不到
+     */
+    public List<Long> claimExpired(long before, int count) {
+        List<String> keys = Collections.singletonList(OrderKey.orderTimeout.getPrefix());
+        List<String> args = Arrays.asList(String.valueOf(before), String.valueOf(count),
+                String.valueOf(System.currentTimeMillis() + claimLeaseMillis));
+        List<Long> ids = new ArrayList<Long>();
+        for (String id : claimScript.evalForList(keys, args)) {
+            ids.add(Long.valueOf(id));
+        }
+        return ids;
+    }
+
+    /**
+     * 已关闭或已不需要关闭的订单移出超时队列
+     */
+    public void remove(List<Long> orderIds) {
+        String[] members = new String[orderIds.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = String.valueOf(orderIds.get(i));
+        }
+        redisService.zrem(OrderKey.orderTimeout, "", members);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enable) {
+            return;
+        }
+        wheel = new TimingWheel<Long>(tickMillis, wheelSize, System.currentTimeMillis());
+        claimScript = luaScriptRegistry.script(CLAIM_SCRIPT);
+    }
+}
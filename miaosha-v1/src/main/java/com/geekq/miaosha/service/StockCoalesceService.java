@@ -0,0 +1,161 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.common.enums.ResultStatus;
+import com.geekq.miaosha.exception.GlobleException;
+import com.geekq.miaosha.redis.GoodsKey;
+import com.geekq.miaosha.redis.RedisService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 库存扣减请求合并
+ * 同一商品在一个时间窗口(或攒够 N 个请求)内的扣减合并成一次 DECRBY n，
+ * 领到的库存按到达顺序分给等待的请求，减少 jedis 连接借用和 redis 往返
+ */
+@Service
+public class StockCoalesceService implements DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(StockCoalesceService.class);
+
+    @Autowired
+    RedisService redisService;
+
+    @Autowired
+    StockLeaseService stockLeaseService;
+
+    @Value("${miaosha.stock.coalesce.enable:false}")
+    private boolean enable;
+
+    /**
+     * 合并窗口(毫秒)
+     */
+    @Value("${miaosha.stock.coalesce.window:2}")
+    private long windowMillis;
+
+    /**
+     * 攒够多少个请求立即合并提交
+     */
+    @Value("${miaosha.stock.coalesce.max-batch:200}")
+    private int maxBatch;
+
+    /**
+     * 请求线程最长等待(毫秒)
+     */
+    @Value("${miaosha.stock.coalesce.timeout:1000}")
+    private long timeoutMillis;
+
+    private final Map<Long, Batch> pending = new ConcurrentHashMap<Long, Batch>();
+
+    private final ScheduledExecutorService flusher = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "stock-coalesce-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 扣减一件库存，阻塞到所在批次提交
+     *
+     * @return false 表示已卖完
+     * @throws GlobleException MIAOSHA_BUSY：等待超时、被中断或 redis 异常，不代表已卖完
+     */
+    public boolean acquire(long goodsId) {
+        CompletableFuture<Boolean> waiter = new CompletableFuture<Boolean>();
+        Batch[] full = new Batch[1];
+        pending.compute(goodsId, (id, batch) -> {
+            if (batch == null) {
+                batch = new Batch();
+                Batch scheduled = batch;
+                flusher.schedule(() -> flush(id, scheduled), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.waiters.add(waiter);
+            if (batch.waiters.size() >= maxBatch) {
+                full[0] = batch;
+                return null;
+            }
+            return batch;
+        });
+        if (full[0] != null) {
+            submit(goodsId, full[0]);
+        }
+        try {
+            return waiter.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // 抢在提交前放弃，提交时会把这一件还回去
+            if (waiter.completeExceptionally(e)) {
+                throw new GlobleException(ResultStatus.MIAOSHA_BUSY);
+            }
+            return waiter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiter.completeExceptionally(e)) {
+                throw new GlobleException(ResultStatus.MIAOSHA_BUSY);
+            }
+            return waiter.join();
+        } catch (Exception e) {
+            logger.error("合并扣减库存失败 goodsId:{}", goodsId, e);
+            throw new GlobleException(ResultStatus.MIAOSHA_BUSY);
+        }
+    }
+
+    private void flush(long goodsId, Batch batch) {
+        if (pending.remove(goodsId, batch)) {
+            submit(goodsId, batch);
+        }
+    }
+
+    private void submit(long goodsId, Batch batch) {
+        List<CompletableFuture<Boolean>> waiters = batch.waiters;
+        long granted;
+        try {
+            granted = stockLeaseService.leaseStock(goodsId, waiters.size());
+        } catch (Exception e) {
+            logger.error("合并扣减库存失败 goodsId:{} size:{}", goodsId, waiters.size(), e);
+            for (CompletableFuture<Boolean> waiter : waiters) {
+                waiter.completeExceptionally(e);
+            }
+            return;
+        }
+        long unused = 0;
+        for (int i = 0; i < waiters.size(); i++) {
+            boolean success = i < granted;
+            // 已超时放弃的请求，领到的库存要还回去
+            if (!waiters.get(i).complete(success) && success) {
+                unused++;
+            }
+        }
+        if (unused > 0) {
+            redisService.incrBy(GoodsKey.getMiaoshaGoodsStock, "" + goodsId, unused);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        flusher.shutdown();
+        for (Map.Entry<Long, Batch> entry : pending.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static class Batch {
+
+        private final List<CompletableFuture<Boolean>> waiters = new ArrayList<CompletableFuture<Boolean>>();
+    }
+}
@@ -0,0 +1,279 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.common.enums.ResultStatus;
+import com.geekq.miaosha.exception.GlobleException;
+import com.geekq.miaosha.redis.GoodsKey;
+import com.geekq.miaosha.redis.LuaScript;
+import com.geekq.miaosha.redis.LuaScriptRegistry;
+import com.geekq.miaosha.redis.RedisService;
+import com.geekq.miaosha.utils.UUIDUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 节点库存租约
+ * 每个节点一次从 redis 领取一批库存(DECRBY n)，在本地用无锁计数器扣减，
+ * 热点商品不再每个请求都 DECR 同一个 key；租约大小随请求速率自适应，空闲或停机时把没用完的库存还回 redis。
+ * 持有租约的节点登记在 redis(GoodsKey:lh)，每秒续期；总库存为 0 且没有节点持有租约才算卖完，
+ * 其他节点手里还有租约时本节点领不到库存只返回繁忙，不会广播售罄
+ */
+@Service
+public class StockLeaseService implements InitializingBean, DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(StockLeaseService.class);
+
+    private static final String LEASE_SCRIPT = "miaosha_stock_lease";
+
+    private static final String NODE_LEASE_SCRIPT = "miaosha_node_lease";
+
+    @Autowired
+    RedisService redisService;
+
+    @Autowired
+    LuaScriptRegistry luaScriptRegistry;
+
+    @Value("${miaosha.stock.lease.enable:false}")
+    private boolean enable;
+
+    /**
+     * 租约大小上下限
+     */
+    @Value("${miaosha.stock.lease.min-size:10}")
+    private int minLeaseSize;
+
+    @Value("${miaosha.stock.lease.max-size:500}")
+    private int maxLeaseSize;
+
+    /**
+     * 期望的两次领取间隔(毫秒)，领取得比这更快则租约翻倍，慢很多则减半
+     */
+    @Value("${miaosha.stock.lease.interval:100}")
+    private long leaseIntervalMillis;
+
+    /**
+     * 租约空闲多久(毫秒)后归还
+     */
+    @Value("${miaosha.stock.lease.idle:5000}")
+    private long idleMillis;
+
+    /**
+     * 持有租约的节点多久(毫秒)未续期视为已宕机
+     */
+    @Value("${miaosha.stock.lease.holder-timeout:10000}")
+    private long holderTimeoutMillis;
+
+    private final String node = UUIDUtil.uuid();
+
+    private final Map<Long, StockLease> leases = new ConcurrentHashMap<Long, StockLease>();
+
+    private LuaScript leaseScript;
+
+    private LuaScript nodeLeaseScript;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 从本地租约扣减一件库存，本地用完时再向 redis 领取
+     *
+     * @return false 表示已卖完
+     * @throws GlobleException MIAOSHA_BUSY：redis 总库存已空但其他节点手里还有租约，不代表已卖完
+     */
+    public boolean acquire(long goodsId) {
+        StockLease lease = leases.computeIfAbsent(goodsId, id -> new StockLease(minLeaseSize));
+        lease.lastAccessTime = System.currentTimeMillis();
+        for (; ; ) {
+            long remaining = lease.remaining.get();
+            if (remaining > 0) {
+                if (lease.remaining.compareAndSet(remaining, remaining - 1)) {
+                    return true;
+                }
+                continue;
+            }
+            synchronized (lease) {
+                if (lease.remaining.get() > 0) {
+                    continue;
+                }
+                long granted = leaseForNode(goodsId, nextLeaseSize(lease));
+                if (granted < 0) {
+                    lease.holding = false;
+                    throw new GlobleException(ResultStatus.MIAOSHA_BUSY);
+                }
+                if (granted == 0) {
+                    lease.holding = false;
+                    return false;
+                }
+                lease.remaining.addAndGet(granted);
+                lease.holding = true;
+            }
+        }
+    }
+
+    /**
+     * 本节点租约里是否还有库存，有时即使集群已标记售罄也可以继续卖
+     */
+    public boolean hasLocalStock(long goodsId) {
+        StockLease lease = leases.get(goodsId);
+        return lease != null && lease.remaining.get() > 0;
+    }
+
+    /**
+     * 归还本节点未用完的库存并注销持有；售罄标记只在总库存和所有租约都用完时才打，归还时不用清除
+     */
+    public void release(long goodsId) {
+        StockLease lease = leases.get(goodsId);
+        if (lease == null) {
+            return;
+        }
+        synchronized (lease) {
+            long remaining = lease.remaining.getAndSet(0);
+            if (remaining > 0) {
+                redisService.incrBy(GoodsKey.getMiaoshaGoodsStock, "" + goodsId, remaining);
+                logger.info("归还库存租约 goodsId:{} count:{}", goodsId, remaining);
+            }
+            if (lease.holding) {
+                redisService.zrem(GoodsKey.getMiaoshaGoodsLeaseHolders, "" + goodsId, node);
+                lease.holding = false;
+            }
+        }
+    }
+
+    /**
+     * 秒杀结束后租约不再被访问，定时归还；仍在用的租约续期持有，已用完的注销持有。
+     * 领取新租约也在租约锁内，续期和注销不会和领取交错
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void releaseIdleLeases() {
+        if (!enable) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, StockLease> entry : leases.entrySet()) {
+            long goodsId = entry.getKey();
+            StockLease lease = entry.getValue();
+            if (!lease.holding) {
+                continue;
+            }
+            try {
+                if (lease.remaining.get() > 0 && now - lease.lastAccessTime > idleMillis) {
+                    release(goodsId);
+                    continue;
+                }
+                synchronized (lease) {
+                    if (!lease.holding) {
+                        continue;
+                    }
+                    if (lease.remaining.get() > 0) {
+                        redisService.zadd(GoodsKey.getMiaoshaGoodsLeaseHolders, "" + goodsId,
+                                Collections.singletonMap(node, (double) now));
+                    } else {
+                        redisService.zrem(GoodsKey.getMiaoshaGoodsLeaseHolders, "" + goodsId, node);
+                        lease.holding = false;
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("续期库存租约失败 goodsId:{}", goodsId, e);
+            }
+        }
+    }
+
+    private int nextLeaseSize(StockLease lease) {
+        long now = System.currentTimeMillis();
+        if (lease.lastLeaseTime > 0) {
+            long elapsed = now - lease.lastLeaseTime;
+            if (elapsed < leaseIntervalMillis) {
+                lease.size = Math.min(lease.size * 2, maxLeaseSize);
+            } else if (elapsed > leaseIntervalMillis * 4) {
+                lease.size = Math.max(lease.size / 2, minLeaseSize);
+            }
+        }
+        lease.lastLeaseTime = now;
+        return lease.size;
+    }
+
+    /**
+     * 为本节点租约领取至多 count 件并登记持有
+     *
+     * @return 实际领取数量，0 表示已卖完，-1 表示其他节点手里还有租约
+     */
+    private long leaseForNode(long goodsId, int count) {
+        List<String> keys = Arrays.asList(
+                GoodsKey.getMiaoshaGoodsStock.getPrefix() + goodsId,
+                GoodsKey.getMiaoshaGoodsLeaseHolders.getPrefix() + goodsId);
+        List<String> args = Arrays.asList(String.valueOf(count), node,
+                String.valueOf(System.currentTimeMillis()), String.valueOf(holderTimeoutMillis));
+        return nodeLeaseScript.evalForLong(keys, args);
+    }
+
+    /**
+     * 从 redis 总库存原子领取至多 count 件
+     *
+     * @return 实际领取数量，0 表示已卖完
+     */
+    public long leaseStock(long goodsId, int count) {
+        return leaseStock(GoodsKey.getMiaoshaGoodsStock.getPrefix() + goodsId, count);
+    }
+
+    /**
+     * 从指定库存 key 原子领取至多 count 件
+     */
+    public long leaseStock(String stockKey, int count) {
+        List<String> keys = Collections.singletonList(stockKey);
+        List<String> args = Collections.singletonList(String.valueOf(count));
+        return leaseScript.evalForLong(keys, args);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        leaseScript = luaScriptRegistry.script(LEASE_SCRIPT);
+        nodeLeaseScript = luaScriptRegistry.script(NODE_LEASE_SCRIPT);
+    }
+
+    /**
+     * 停机归还全部租约
+     */
+    @Override
+    public void destroy() throws Exception {
+        for (Long goodsId : leases.keySet()) {
+            try {
+                release(goodsId);
+            } catch (Exception e) {
+                logger.error("归还库存租约失败 goodsId:{}", goodsId, e);
+            }
+        }
+    }
+
+    private static class StockLease {
+
+        private final AtomicLong remaining = new AtomicLong();
+
+        private volatile int size;
+
+        private volatile long lastLeaseTime;
+
+        private volatile long lastAccessTime;
+
+        /**
+         * 本节点是否登记在持有租约的节点里，只在租约锁内修改
+         */
+        private volatile boolean holding;
+
+        StockLease(int size) {
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.redis.GoodsKey;
+import com.geekq.miaosha.redis.RedisService;
+import com.geekq.miaosha.vo.GoodsVo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 热点商品库存分片
+ * 库存拆到 N 个子 key (GoodsKey:gs{goodsId}:{shard})，集群下分散到不同节点；
+ * 按用户 hash 选分片，分片扣完再探测其他分片，全部为空才算售罄。
+ * 分片数取 miaosha_goods.stock_shards，<=1 表示不分片
+ */
+@Service
+public class StockShardService {
+
+    /**
+     * 干涸分片用 long 位图记录，分片数上限 64
+     */
+    public static final int MAX_SHARDS = 64;
+
+    private static Logger logger = LoggerFactory.getLogger(StockShardService.class);
+
+    @Autowired
+    RedisService redisService;
+
+    @Autowired
+    StockLeaseService stockLeaseService;
+
+    private final Map<Long, Integer> shards = new ConcurrentHashMap<Long, Integer>();
+
+    /**
+     * 本节点已探测为空的分片
+     */
+    private final Map<Long, AtomicLong> dryShards = new ConcurrentHashMap<Long, AtomicLong>();
+
+    public static String shardKey(long goodsId, int shard) {
+        return goodsId + ":" + shard;
+    }
+
+    public boolean isSharded(long goodsId) {
+        return shardCount(goodsId) > 1;
+    }
+
+    /**
+     * 用户首选的分片
+     */
+    public int shardOf(long goodsId, long userId) {
+        return (Long.hashCode(userId) & Integer.MAX_VALUE) % shardCount(goodsId);
+    }
+
+    public int shardCount(long goodsId) {
+        Integer count = shards.get(goodsId);
+        return count == null ? 1 : count;
+    }
+
+    /**
+     * 把商品库存均分到各分片，余数放在前面的分片
+     */
+    public void init(GoodsVo goods) {
+        int count = goods.getStockShards() == null ? 1 : Math.min(goods.getStockShards(), MAX_SHARDS);
+        long goodsId = goods.getId();
+        if (count <= 1) {
+            shards.remove(goodsId);
+            dryShards.remove(goodsId);
+            return;
+        }
+        distribute(goodsId, goods.getStockCount(), count);
+    }
+
+    /**
+     * 补货：按现有分片数重新分配库存
+     */
+    public void replenish(long goodsId, int stock) {
+        distribute(goodsId, stock, shardCount(goodsId));
+    }
+
+    private void distribute(long goodsId, int stock, int count) {
+        Map<String, Integer> shardStocks = new HashMap<String, Integer>();
+        for (int i = 0; i < count; i++) {
+            shardStocks.put(shardKey(goodsId, i), stock / count + (i < stock % count ? 1 : 0));
+        }
+        redisService.mset(GoodsKey.getMiaoshaGoodsStock, shardStocks);
+        shards.put(goodsId, count);
+        dryShards.put(goodsId, new AtomicLong());
+        logger.info("库存分片 goodsId:{} stock:{} shards:{}", goodsId, stock, count);
+    }
+
+    /**
+     * redis 里的剩余库存，分片时为各分片之和
+     *
+     * @return null 表示库存还没加载到 redis
+     */
+    public Integer totalStock(long goodsId) {
+        int count = shardCount(goodsId);
+        if (count <= 1) {
+            return redisService.get(GoodsKey.getMiaoshaGoodsStock, "" + goodsId, Integer.class);
+        }
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = shardKey(goodsId, i);
+        }
+        int total = 0;
+        for (Integer stock : redisService.mget(GoodsKey.getMiaoshaGoodsStock, Integer.class, keys)) {
+            if (stock == null) {
+                return null;
+            }
+            total += Math.max(stock, 0);
+        }
+        return total;
+    }
+
+    /**
+     * 扣减一件库存
+     *
+     * @return false 表示所有分片都已卖完
+     */
+    public boolean acquire(long goodsId, long userId) {
+        int count = shardCount(goodsId);
+        AtomicLong dry = dryShards.get(goodsId);
+        int start = shardOf(goodsId, userId);
+        // 第一轮跳过本节点已知为空的分片，第二轮再确认这些分片(其他节点可能退回过库存)
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < count; i++) {
+                int shard = (start + i) % count;
+                long bit = 1L << shard;
+                boolean known = dry != null && (dry.get() & bit) != 0;
+                if (known != (pass == 1)) {
+                    continue;
+                }
+                if (stockLeaseService.leaseStock(GoodsKey.getMiaoshaGoodsStock.getPrefix() + shardKey(goodsId, shard), 1) > 0) {
+                    if (known) {
+                        dry.getAndUpdate(v -> v & ~bit);
+                    }
+                    return true;
+                }
+                if (dry != null) {
+                    dry.getAndUpdate(v -> v | bit);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 库存退回某个分片，并清除该分片的干涸标记
+     */
+    public void returnStock(long goodsId, int shard, long count) {
+        redisService.incrBy(GoodsKey.getMiaoshaGoodsStock, shardKey(goodsId, shard), count);
+        AtomicLong dry = dryShards.get(goodsId);
+        if (dry != null) {
+            dry.getAndUpdate(v -> v & ~(1L << shard));
+        }
+    }
+}
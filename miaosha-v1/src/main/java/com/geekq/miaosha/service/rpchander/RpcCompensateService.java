@@ -1,12 +1,15 @@
 package com.geekq.miaosha.service.rpchander;
 
-import com.geekq.miaosha.common.SnowflakeIdWorker;
 import com.geekq.miaosha.common.resultbean.ResultGeekQ;
+import com.geekq.miaosha.service.IdWorkerService;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
 public class RpcCompensateService {
 
+    @Autowired
+    IdWorkerService idWorkerService;
 
     public ResultGeekQ<String> recharge() {
         ResultGeekQ<String> result = ResultGeekQ.build();
@@ -33,7 +36,7 @@ public class RpcCompensateService {
         /**
          * 获取订单
          */
-        long orderId = SnowflakeIdWorker.getOrderId(1, 1);
+        long orderId = idWorkerService.nextId();
 
         /**
          * 创建订单步骤 可定义一个VO
@@ -1,107 +1,101 @@
 package com.geekq.miaosha.timeTask;
 
-import com.geekq.miaosha.dao.OrderDao;
-import com.geekq.miaosha.redis.RedisService;
+import com.geekq.miaosha.domain.OrderInfo;
+import com.geekq.miaosha.service.MiaoshaService;
 import com.geekq.miaosha.service.OrderService;
+import com.geekq.miaosha.service.OrderTimeoutService;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import static com.geekq.miaosha.common.Constanst.CLOSE_ORDER_INFO_TASK_LOCK;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * 关闭超时未支付订单
+ * 每个时间轮刻度取出本机到期的订单关闭；定期从 redis 超时队列领取超时已久的订单兜底。
+ * 分批关单，每批一个事务，提交后退回 redis 库存并移出超时队列
+ */
 @Component
 @Slf4j
 public class OrderCloseTask {
 
     @Autowired
-    private OrderDao orderDao;
-    @Autowired
-    private RedisService redisService;
+    private OrderService orderService;
 
     @Autowired
-    private OrderService orderService;
-//    @Autowired
-//    private RedissonService redissonService;
+    private MiaoshaService miaoshaService;
 
+    @Autowired
+    private OrderTimeoutService orderTimeoutService;
 
-    //    @Scheduled(cron = "0/1 * * * * ?")
-    private void closeOrderTaskv1() {
-        int hour = 2;
-        orderService.closeOrder(hour);
-        log.info("关闭订单定时任务结束");
-    }
-//    @Scheduled(cron = "0/1 * * * * ?")
-//    public void closeOrderTaskV2(){
-//        log.info("关闭订单定时任务启动");
-//        long lockTime = 5000;
-//        Long setnxResult = redisService.setnx(CLOSE_ORDER_INFO_TASK_LOCK,String.valueOf(System.currentTimeMillis()+lockTime));
-//        //代表获取了锁
-//        if(setnxResult !=null && setnxResult ==1){
-//            closeOrder(CLOSE_ORDER_INFO_TASK_LOCK);
-//        }else {
-//            log.info("没有获得分布式锁:{}",CLOSE_ORDER_INFO_TASK_LOCK);
-//        }
-//        log.info("关闭订单定时任务结束");
-//    }
+    @Value("${miaosha.order.timeout.batch-size:200}")
+    private int batchSize;
 
-    //    @Scheduled(cron = "0/1 * * * * ?")
-    public void closeOrderTaskV3() {
-        log.info("关闭订单定时任务启动");
-        long lockTime = 5000;
-        Long setnxResult = redisService.setnx(CLOSE_ORDER_INFO_TASK_LOCK, String.valueOf(System.currentTimeMillis() + lockTime));
-        //代表获取了锁
-        if (setnxResult != null && setnxResult == 1) {
-            closeOrder(CLOSE_ORDER_INFO_TASK_LOCK);
-        } else {
-            log.info("没有获得分布式锁:{}", CLOSE_ORDER_INFO_TASK_LOCK);
-            String lockValueStr = redisService.get(CLOSE_ORDER_INFO_TASK_LOCK);
-            if (lockValueStr != null && System.currentTimeMillis() > Long.parseLong(lockValueStr)) {
-                //把之前的释放在新加入锁
-                String getSetResult = redisService.getset(CLOSE_ORDER_INFO_TASK_LOCK, String.valueOf(System.currentTimeMillis() + lockTime));
+    /**
+     * 超时多久仍在 redis 里的订单由兜底任务领取(毫秒)，留给本机时间轮先处理
+     */
+    @Value("${miaosha.order.timeout.sweep-grace:10000}")
+    private long sweepGraceMillis;
 
-                if (getSetResult == null || (getSetResult != null && StringUtils.equals(lockValueStr, getSetResult))) {
-                    closeOrder(CLOSE_ORDER_INFO_TASK_LOCK);
-                } else {
-                    log.info("没有获取到分布式锁:{}", CLOSE_ORDER_INFO_TASK_LOCK);
-                }
-            } else {
-                log.info("没有获取到分布式锁:{}", CLOSE_ORDER_INFO_TASK_LOCK);
-            }
+    @Scheduled(fixedDelayString = "${miaosha.order.timeout.tick:1000}")
+    public void closeExpiredOrders() {
+        if (!orderTimeoutService.isEnable()) {
+            return;
+        }
+        List<Long> expired = orderTimeoutService.pollExpired();
+        for (int from = 0; from < expired.size(); from += batchSize) {
+            close(new ArrayList<Long>(expired.subList(from, Math.min(from + batchSize, expired.size()))));
         }
-        log.info("关闭订单定时任务结束");
     }
-//    @Scheduled(cron="0 */1 * * * ?")
-//    public void closeOrderTaskV4(){
-//        RLock lock = redissonService.getRLock(CLOSE_ORDER_INFO_TASK_LOCK);
-//        boolean getLock = false;
-//        try {
-//            if(getLock = lock.tryLock(0,50, TimeUnit.SECONDS)){
-//                log.info("Redisson获取到分布式锁:{},ThreadName:{}",CLOSE_ORDER_INFO_TASK_LOCK,Thread.currentThread().getName());
-//                int hour = 2;
-////                iOrderService.closeOrder(hour);
-//            }else{
-//                log.info("Redisson没有获取到分布式锁:{},ThreadName:{}",CLOSE_ORDER_INFO_TASK_LOCK,Thread.currentThread().getName());
-//            }
-//        } catch (InterruptedException e) {
-//            log.error("Redisson分布式锁获取异常",e);
-//        } finally {
-//            if(!getLock){
-//                return;
-//            }
-//            lock.unlock();
-//            log.info("Redisson分布式锁释放锁");
-//        }
-//    }
-
 
-    private void closeOrder(String lockName) {
-        redisService.expire(lockName, 5);
-        log.info("获取{},当前线程名称！", lockName, Thread.currentThread().getName());
-        int hour = 2;
-        orderService.closeOrder(hour);
-        redisService.del(CLOSE_ORDER_INFO_TASK_LOCK);
-        log.info("===============================");
+    @Scheduled(fixedDelayString = "${miaosha.order.timeout.sweep-interval:30000}")
+    public void sweepExpiredOrders() {
+        if (!orderTimeoutService.isEnable()) {
+            return;
+        }
+        long before = System.currentTimeMillis() - sweepGraceMillis;
+        List<Long> claimed;
+        do {
+            try {
+                claimed = orderTimeoutService.claimExpired(before, batchSize);
+            } catch (Exception e) {
+                log.error("领取超时订单失败", e);
+                return;
+            }
+            if (!claimed.isEmpty() && !close(claimed)) {
+                return;
+            }
+        } while (claimed.size() == batchSize);
+    }
 
+    /**
+     * 关闭一批订单，失败的留在超时队列里等兜底任务重试
+     */
+    private boolean close(List<Long> orderIds) {
+        List<OrderInfo> closed;
+        try {
+            closed = orderService.closeTimeoutOrders(orderIds);
+        } catch (Exception e) {
+            log.error("关闭超时订单失败 size:{}", orderIds.size(), e);
+            return false;
+        }
+        try {
+            if (!closed.isEmpty()) {
+                miaoshaService.rollbackOrders(closed);
+                log.info("关闭超时订单 {} 个", closed.size());
+            }
+        } catch (Exception e) {
+            // 数据库已退回，redis 少退只会少卖
+            log.error("超时订单退回 redis 库存失败 size:{}", closed.size(), e);
+        }
+        try {
+            orderTimeoutService.remove(orderIds);
+        } catch (Exception e) {
+            log.warn("移出超时队列失败，稍后重复关单会被跳过 size:{}", orderIds.size(), e);
+        }
+        return true;
     }
 }
@@ -17,4 +17,5 @@ public class GoodsVo extends Goods {
     private Integer stockCount;
     private Date startDate;
     private Date endDate;
+    private Integer stockShards;
 }
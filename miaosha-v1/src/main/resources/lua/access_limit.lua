@@ -0,0 +1,13 @@
+--- 固定窗口限流：窗口内第一次访问时设置有效期
+--- KEYS[1] 计数 key，如 ip:limit:127.0.0.1
+--- ARGV[1] 窗口(秒)  ARGV[2] 窗口内最多访问次数
+--- 返回：1 放行，0 超出限制
+local num = redis.call('incr', KEYS[1])
+if tonumber(num) == 1 then
+    redis.call('expire', KEYS[1], ARGV[1])
+    return 1
+elseif tonumber(num) > tonumber(ARGV[2]) then
+    return 0
+else
+    return 1
+end
@@ -0,0 +1,15 @@
+--- snowflake worker id 续租/归还：仍由本节点持有时才操作
+--- KEYS[1] 租约 IdWorkerKey:lease{workerId}
+--- ARGV[1] 本节点标识
+--- ARGV[2] 续租有效期(秒)，<=0 表示归还
+--- 返回：1 成功 0 租约已不属于本节点
+if redis.call('get', KEYS[1]) ~= ARGV[1] then
+    return 0
+end
+local ttl = tonumber(ARGV[2])
+if ttl <= 0 then
+    redis.call('del', KEYS[1])
+else
+    redis.call('expire', KEYS[1], ttl)
+end
+return 1
@@ -0,0 +1,32 @@
+--- 秒杀准入：校验path + 重复秒杀标记 + 预减库存，一次 EVALSHA 原子完成
+--- KEYS[1] 秒杀路径 MiaoshaKey:mp{nickname}_{goodsId}
+--- KEYS[2] 秒杀订单 OrderKey:moug{nickname}_{goodsId}
+--- KEYS[3] 用户购买标记 MiaoshaKey:um{nickname}_{goodsId}
+--- KEYS[4] 商品库存 GoodsKey:gs{goodsId}
+--- ARGV[1] 客户端提交的 path
+--- ARGV[2] 购买标记过期时间(秒)，<=0 不过期
+--- ARGV[3] 是否在脚本内预减库存，0 表示由本地库存租约扣减
+--- 返回：0 成功 1 path非法 2 重复秒杀 3 已卖完
+local path = redis.call('get', KEYS[1])
+if (not path) or path ~= ARGV[1] then
+    return 1
+end
+if redis.call('exists', KEYS[2]) == 1 then
+    return 2
+end
+if redis.call('setnx', KEYS[3], '1') == 0 then
+    return 2
+end
+if ARGV[3] ~= '0' then
+    local stock = tonumber(redis.call('get', KEYS[4]) or '0')
+    if stock <= 0 then
+        redis.call('del', KEYS[3])
+        return 3
+    end
+    redis.call('decr', KEYS[4])
+end
+local ttl = tonumber(ARGV[2])
+if ttl > 0 then
+    redis.call('expire', KEYS[3], ttl)
+end
+return 0
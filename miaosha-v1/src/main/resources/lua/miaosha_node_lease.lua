@@ -0,0 +1,21 @@
+--- 节点库存租约：从总库存中一次领取至多 ARGV[1] 件，并登记本节点持有租约
+--- KEYS[1] 商品库存 GoodsKey:gs{goodsId}
+--- KEYS[2] 持有租约的节点 GoodsKey:lh{goodsId}，有序集合，分数为最近一次续期时间(毫秒)
+--- ARGV[1] 领取数量
+--- ARGV[2] 本节点标识
+--- ARGV[3] 当前时间(毫秒)
+--- ARGV[4] 持有超时(毫秒)，超时未续期的节点视为已宕机
+--- 返回：实际领取数量；0 表示已卖完，-1 表示总库存已空但其他节点手里还有租约
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if stock <= 0 then
+    redis.call('zrem', KEYS[2], ARGV[2])
+    redis.call('zremrangebyscore', KEYS[2], '-inf', tonumber(ARGV[3]) - tonumber(ARGV[4]))
+    if redis.call('zcard', KEYS[2]) > 0 then
+        return -1
+    end
+    return 0
+end
+local n = math.min(stock, tonumber(ARGV[1]))
+redis.call('decrby', KEYS[1], n)
+redis.call('zadd', KEYS[2], ARGV[3], ARGV[2])
+return n
@@ -0,0 +1,10 @@
+--- 节点库存租约：从总库存中一次领取至多 ARGV[1] 件
+--- KEYS[1] 商品库存 GoodsKey:gs{goodsId}
+--- 返回：实际领取数量，0 表示已卖完
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if stock <= 0 then
+    return 0
+end
+local n = math.min(stock, tonumber(ARGV[1]))
+redis.call('decrby', KEYS[1], n)
+return n
@@ -0,0 +1,12 @@
+--- 领取已超时的订单：取出至多 ARGV[2] 个 score <= ARGV[1] 的订单，score 改成 ARGV[3] 作为领取租约，
+--- 关单成功后由领取方 ZREM；领取方宕机时租约到期重新可领
+--- KEYS[1] 超时队列 OrderKey:timeout
+--- ARGV[1] 当前时间(毫秒)
+--- ARGV[2] 最多领取个数
+--- ARGV[3] 租约到期时间(毫秒)
+--- 返回：领到的订单id
+local ids = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))
+for _, id in ipairs(ids) do
+    redis.call('zadd', KEYS[1], ARGV[3], id)
+end
+return ids
@@ -0,0 +1,4 @@
+--- 访问次数加一
+--- KEYS[1] 计数 key
+--- 返回：加一后的访问次数
+return redis.call('incr', KEYS[1])
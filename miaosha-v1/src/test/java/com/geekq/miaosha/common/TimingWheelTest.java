@@ -0,0 +1,102 @@
+package com.geekq.miaosha.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    @Test
+    public void expiredItemIsNotAdded() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 1000);
+        assertFalse(wheel.add("past", 990));
+        assertFalse(wheel.add("now", 1000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pollsNeverEarlyAndAtMostOneTickLate() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 1000);
+        assertTrue(wheel.add("a", 1015));
+        assertTrue(wheel.add("b", 1020));
+        assertEquals(2, wheel.size());
+
+        assertTrue(wheel.poll(1014).isEmpty());
+        // a 落在结束时间 1020 的格子里
+        assertTrue(wheel.poll(1019).isEmpty());
+        List<String> expired = wheel.poll(1020);
+        assertEquals(2, expired.size());
+        assertTrue(expired.contains("a") && expired.contains("b"));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void overflowLevelsCascadeDown() {
+        // 第一层一圈 80ms，第二层 640ms，第三层 5120ms
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 0);
+        assertTrue(wheel.add("level0", 50));
+        assertTrue(wheel.add("level1", 500));
+        assertTrue(wheel.add("level2", 3000));
+        assertTrue(wheel.add("level3", 60000));
+
+        assertEquals(1, wheel.poll(50).size());
+        assertTrue(wheel.poll(499).isEmpty());
+        assertEquals("level1", wheel.poll(500).get(0));
+        assertTrue(wheel.poll(2999).isEmpty());
+        assertEquals("level2", wheel.poll(3000).get(0));
+        assertTrue(wheel.poll(59999).isEmpty());
+        assertEquals("level3", wheel.poll(60000).get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void itemsAddedAfterAdvancingUseNewTime() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 0);
+        wheel.poll(10000);
+        assertFalse(wheel.add("old", 9000));
+        assertTrue(wheel.add("new", 10030));
+        assertTrue(wheel.poll(10029).isEmpty());
+        assertEquals("new", wheel.poll(10030).get(0));
+    }
+
+    @Test
+    public void randomScheduleMatchesReference() {
+        Random random = new Random(42);
+        long tick = 5;
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(tick, 16, 0);
+        Map<Integer, Long> expireAt = new HashMap<Integer, Long>();
+        long now = 0;
+        int next = 0;
+        List<Integer> polled = new ArrayList<Integer>();
+        while (now < 200000) {
+            for (int i = random.nextInt(5); i > 0; i--) {
+                long at = now + 1 + (long) (random.nextDouble() * random.nextDouble() * 100000);
+                assertTrue(wheel.add(next, at));
+                expireAt.put(next++, at);
+            }
+            now += 1 + random.nextInt(50);
+            for (Integer item : wheel.poll(now)) {
+                long at = expireAt.get(item);
+                assertTrue("早于到期时间取出 " + item, at <= now);
+                polled.add(item);
+            }
+            // 到期超过一格还没取出的不应该存在
+            for (Map.Entry<Integer, Long> entry : expireAt.entrySet()) {
+                if (!polled.contains(entry.getKey())) {
+                    assertTrue("到期未取出 " + entry.getKey(), entry.getValue() + tick > now);
+                }
+            }
+            expireAt.keySet().removeAll(polled);
+            polled.clear();
+        }
+        assertEquals(expireAt.size(), wheel.size());
+    }
+}
@@ -0,0 +1,108 @@
+package com.geekq.miaosha.rabbitmq;
+
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MiaoshaMessageConverterTest {
+
+    private final MiaoshaMessageConverter converter = new MiaoshaMessageConverter();
+
+    @Test
+    public void encodesFixed33Bytes() {
+        byte[] body = MiaoshaMessageConverter.encode(message());
+        assertEquals(33, MiaoshaMessageConverter.LENGTH);
+        assertEquals(MiaoshaMessageConverter.LENGTH, body.length);
+        assertEquals(MiaoshaMessageConverter.VERSION, body[0]);
+        // userId 大端紧跟在版本号后面
+        assertEquals(0, body[1]);
+        assertEquals((byte) (13000000000L & 0xFF), body[8]);
+    }
+
+    @Test
+    public void roundTripThroughMessage() {
+        MessageProperties properties = new MessageProperties();
+        Message amqpMsg = converter.toMessage(message(), properties);
+        assertEquals(MiaoshaMessageConverter.CONTENT_TYPE, amqpMsg.getMessageProperties().getContentType());
+        assertEquals(MiaoshaMessageConverter.LENGTH, amqpMsg.getMessageProperties().getContentLength());
+
+        MiaoshaMessage mm = converter.fromMessage(amqpMsg);
+        assertEquals(13000000000L, mm.getUserId());
+        assertEquals(2L, mm.getGoodsId());
+        assertEquals(Long.MAX_VALUE, mm.getRequestId());
+        assertEquals(1600000000000L, mm.getTimestamp());
+        // 消费端需要时按 userId 懒构造用户
+        assertEquals("13000000000", mm.getUser().getNickname());
+    }
+
+    @Test
+    public void fallsBackToLegacyJson() {
+        String json = "{\"goodsId\":2,\"user\":{\"nickname\":\"13000000000\",\"password\":\"x\",\"salt\":\"y\"}}";
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        MiaoshaMessage mm = converter.fromMessage(new Message(json.getBytes(StandardCharsets.UTF_8), properties));
+        assertEquals(13000000000L, mm.getUserId());
+        assertEquals(2L, mm.getGoodsId());
+        assertEquals(0L, mm.getRequestId());
+    }
+
+    @Test
+    public void rejectsTruncatedBody() {
+        byte[] body = Arrays.copyOf(MiaoshaMessageConverter.encode(message()), MiaoshaMessageConverter.LENGTH - 1);
+        try {
+            MiaoshaMessageConverter.decode(body);
+            fail("截断的消息应该拒绝");
+        } catch (MessageConversionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsUnknownVersion() {
+        byte[] body = MiaoshaMessageConverter.encode(message());
+        body[0] = MiaoshaMessageConverter.VERSION + 1;
+        try {
+            MiaoshaMessageConverter.decode(body);
+            fail("未知版本应该拒绝");
+        } catch (MessageConversionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsBrokenLegacyJson() {
+        MessageProperties properties = new MessageProperties();
+        try {
+            converter.fromMessage(new Message("{not json".getBytes(StandardCharsets.UTF_8), properties));
+            fail("无法解析的 JSON 应该拒绝");
+        } catch (MessageConversionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsOtherTypes() {
+        try {
+            converter.toMessage("text", new MessageProperties());
+            fail("只支持 MiaoshaMessage");
+        } catch (MessageConversionException e) {
+            // expected
+        }
+    }
+
+    private static MiaoshaMessage message() {
+        MiaoshaMessage mm = new MiaoshaMessage();
+        mm.setUserId(13000000000L);
+        mm.setGoodsId(2L);
+        mm.setRequestId(Long.MAX_VALUE);
+        mm.setTimestamp(1600000000000L);
+        return mm;
+    }
+}
@@ -0,0 +1,223 @@
+package com.geekq.miaosha.rabbitmq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 不启动转发线程，直接调用 recover / relayOnce 模拟崩溃重启
+ */
+public class MiaoshaOutboxTest {
+
+    /**
+     * 一条记录 8 字节头 + 33 字节消息，一段放 99 条
+     */
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File dir;
+
+    private final List<Long> sent = new ArrayList<Long>();
+
+    private boolean ack = true;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("outbox").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void recoversWritePositionAfterCrash() throws Exception {
+        MiaoshaOutbox outbox = open();
+        for (long i = 1; i <= 250; i++) {
+            assertTrue(outbox.append(message(i)));
+        }
+        assertEquals(3, segmentFiles().length);
+
+        // 不调用 destroy，模拟进程崩溃后重启
+        MiaoshaOutbox recovered = open();
+        assertTrue(recovered.hasBacklog());
+        for (long i = 251; i <= 260; i++) {
+            assertTrue(recovered.append(message(i)));
+        }
+        relayAll(recovered);
+        assertEquals(260, sent.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(i + 1, (long) sent.get(i));
+        }
+        assertFalse(recovered.hasBacklog());
+        // 转发完的段已删除，只留正在写的一段
+        assertEquals(1, segmentFiles().length);
+    }
+
+    @Test
+    public void tornTailRecordIsOverwritten() throws Exception {
+        MiaoshaOutbox outbox = open();
+        for (long i = 1; i <= 5; i++) {
+            outbox.append(message(i));
+        }
+        // 第 6 条只写了一半：长度和 CRC 写进去了，消息体没写完
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFiles()[0], "rw")) {
+            raf.seek(5 * 41);
+            raf.writeInt(33);
+            raf.writeInt(12345);
+            raf.write(new byte[]{1, 0, 0});
+        }
+
+        MiaoshaOutbox recovered = open();
+        recovered.append(message(6));
+        relayAll(recovered);
+        assertEquals(6, sent.size());
+        assertEquals(6L, (long) sent.get(5));
+    }
+
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        MiaoshaOutbox outbox = open();
+        for (long i = 1; i <= 150; i++) {
+            outbox.append(message(i));
+        }
+        // 一批不跨段，取小于一段的批量
+        set(outbox, "relayBatch", 60);
+        relayOnce(outbox);
+        assertEquals(60, sent.size());
+
+        sent.clear();
+        MiaoshaOutbox recovered = open();
+        relayAll(recovered);
+        // 检查点之后的才重新转发
+        assertEquals(90, sent.size());
+        assertEquals(61L, (long) sent.get(0));
+        assertEquals(150L, (long) sent.get(89));
+    }
+
+    @Test
+    public void unconfirmedBatchIsNotCheckpointed() throws Exception {
+        MiaoshaOutbox outbox = open();
+        for (long i = 1; i <= 10; i++) {
+            outbox.append(message(i));
+        }
+        ack = false;
+        try {
+            relayOnce(outbox);
+        } catch (IllegalStateException e) {
+            // 未确认，稍后重试
+        }
+        ack = true;
+        sent.clear();
+        relayAll(open());
+        assertEquals(10, sent.size());
+        assertEquals(1L, (long) sent.get(0));
+    }
+
+    @Test
+    public void rejectsAppendBeyondDiskBudget() throws Exception {
+        MiaoshaOutbox outbox = open();
+        set(outbox, "maxBytes", (long) SEGMENT_SIZE * 2);
+        int appended = 0;
+        while (outbox.append(message(appended + 1))) {
+            appended++;
+        }
+        assertEquals(99 * 2, appended);
+        assertEquals(1L, outbox.metrics().get("rejected"));
+    }
+
+    private MiaoshaOutbox open() throws Exception {
+        MiaoshaOutbox outbox = new MiaoshaOutbox();
+        outbox.rabbitTemplate = new CapturingTemplate();
+        set(outbox, "enable", true);
+        set(outbox, "dir", dir.getPath());
+        set(outbox, "segmentSize", SEGMENT_SIZE);
+        set(outbox, "maxBytes", 1L << 20);
+        set(outbox, "relayBatch", 100);
+        set(outbox, "confirmTimeoutMillis", 100L);
+        set(outbox, "force", true);
+        invoke(outbox, "recover");
+        return outbox;
+    }
+
+    private static void relayAll(MiaoshaOutbox outbox) throws Exception {
+        while (relayOnce(outbox)) {
+            // 继续转发
+        }
+    }
+
+    private static boolean relayOnce(MiaoshaOutbox outbox) throws Exception {
+        return (Boolean) invoke(outbox, "relayOnce");
+    }
+
+    private File[] segmentFiles() {
+        return dir.listFiles((d, name) -> name.endsWith(".seg"));
+    }
+
+    private static MiaoshaMessage message(long requestId) {
+        MiaoshaMessage mm = new MiaoshaMessage();
+        mm.setUserId(13000000000L + requestId);
+        mm.setGoodsId(1);
+        mm.setRequestId(requestId);
+        mm.setTimestamp(1600000000000L);
+        return mm;
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static Object invoke(Object target, String name) throws Exception {
+        Method method = target.getClass().getDeclaredMethod(name);
+        method.setAccessible(true);
+        try {
+            return method.invoke(target);
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * 记录发出的消息，按 ack 立即确认
+     */
+    private class CapturingTemplate extends RabbitTemplate {
+
+        @Override
+        public <T> T invoke(OperationsCallback<T> action, com.rabbitmq.client.ConfirmCallback acks,
+                            com.rabbitmq.client.ConfirmCallback nacks) {
+            return action.doInRabbit(this);
+        }
+
+        @Override
+        public void send(String exchange, String routingKey, Message message, CorrelationData correlationData) {
+            if (ack) {
+                sent.add(MiaoshaMessageConverter.decode(message.getBody()).getRequestId());
+            }
+            correlationData.getFuture().set(new CorrelationData.Confirm(ack, ack ? null : "nack"));
+        }
+    }
+}
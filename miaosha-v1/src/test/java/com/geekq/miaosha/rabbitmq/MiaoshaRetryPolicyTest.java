@@ -0,0 +1,90 @@
+package com.geekq.miaosha.rabbitmq;
+
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MiaoshaRetryPolicyTest {
+
+    private final MiaoshaRetryPolicy policy = new MiaoshaRetryPolicy(new long[]{1000, 5000, 30000, 120000}, 0.2);
+
+    @Test
+    public void retryNumberSelectsTier() {
+        assertEquals(4, policy.maxRetry());
+        assertEquals(0, policy.tierOf(0));
+        assertEquals(0, policy.tierOf(1));
+        assertEquals(1, policy.tierOf(2));
+        assertEquals(3, policy.tierOf(4));
+        // 超过级数的都留在最后一级
+        assertEquals(3, policy.tierOf(9));
+    }
+
+    @Test
+    public void queueNamesAndTtl() {
+        assertEquals(MQConfig.MIAOSHA_RETRY_QUEUE_PREFIX + "1000ms", policy.queueName(0));
+        assertEquals(MQConfig.MIAOSHA_RETRY_QUEUE_PREFIX + "120000ms", policy.queueName(3));
+        assertEquals(6000, policy.queueTtl(1));
+    }
+
+    @Test
+    public void prepareMarksRetryAndJittersExpiration() {
+        for (int retry = 1; retry <= 4; retry++) {
+            Message message = new Message(new byte[0], new MessageProperties());
+            String queue = policy.prepare(message, retry);
+            int tier = policy.tierOf(retry);
+            assertEquals(policy.queueName(tier), queue);
+            assertEquals(retry, message.getMessageProperties().getHeaders().get(MiaoshaRetryPolicy.RETRY_HEADER));
+            long expiration = Long.parseLong(message.getMessageProperties().getExpiration());
+            // 抖动范围 [0.8, 1.2] 倍，且不超过队列 TTL
+            assertTrue(expiration >= policy.queueTtl(tier) * 0.8 / 1.2 - 1);
+            assertTrue(expiration <= policy.queueTtl(tier));
+        }
+        assertEquals(1L, policy.metrics().get("1000ms"));
+        assertEquals(1L, policy.metrics().get("120000ms"));
+    }
+
+    @Test
+    public void simultaneousFailuresSpreadOut() {
+        // 同一时刻失败的 1000 条消息，回流时间分散在 [4000, 6000] 毫秒，不会整齐地一起打回来
+        int[] buckets = new int[10];
+        Set<Long> distinct = new HashSet<Long>();
+        for (int i = 0; i < 1000; i++) {
+            Message message = new Message(new byte[0], new MessageProperties());
+            policy.prepare(message, 2);
+            long expiration = Long.parseLong(message.getMessageProperties().getExpiration());
+            distinct.add(expiration);
+            buckets[(int) Math.min(9, (expiration - 4000) / 200)]++;
+        }
+        assertTrue(distinct.size() > 500);
+        for (int count : buckets) {
+            // 均匀分布时每 200ms 约 100 条，没有哪一段扎堆
+            assertTrue("bucket " + count, count > 40 && count < 200);
+        }
+    }
+
+    @Test
+    public void noJitterKeepsExactDelay() {
+        MiaoshaRetryPolicy exact = new MiaoshaRetryPolicy(new long[]{2000}, 0);
+        Message message = new Message(new byte[0], new MessageProperties());
+        exact.prepare(message, 3);
+        assertEquals("2000", message.getMessageProperties().getExpiration());
+        assertEquals(2000, exact.queueTtl(0));
+    }
+
+    @Test
+    public void rejectsEmptyDelays() {
+        try {
+            new MiaoshaRetryPolicy(new long[0], 0.2);
+            fail("没有延迟级别应该拒绝");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
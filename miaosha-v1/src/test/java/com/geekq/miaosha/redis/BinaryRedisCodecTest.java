@@ -0,0 +1,213 @@
+package com.geekq.miaosha.redis;
+
+import com.alibaba.fastjson.JSON;
+import com.geekq.miaosha.vo.GoodsVo;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class BinaryRedisCodecTest {
+
+    private final BinaryRedisCodec codec = BinaryRedisCodec.INSTANCE;
+
+    @Test
+    public void roundTripGoodsVo() {
+        GoodsVo goods = goods();
+        GoodsVo decoded = codec.decode(codec.encode(goods), GoodsVo.class);
+        assertEquals(goods.getId(), decoded.getId());
+        assertEquals(goods.getGoodsName(), decoded.getGoodsName());
+        assertEquals(goods.getGoodsPrice(), decoded.getGoodsPrice());
+        assertEquals(goods.getMiaoshaPrice(), decoded.getMiaoshaPrice());
+        assertEquals(goods.getStartDate(), decoded.getStartDate());
+        assertNull(decoded.getStockCount());
+        assertNull(decoded.getGoodsDetail());
+    }
+
+    @Test
+    public void roundTripScalars() {
+        Scalars value = new Scalars();
+        value.i = -1;
+        value.l = Long.MIN_VALUE;
+        value.b = true;
+        value.d = 1.5;
+        value.c = '秒';
+        value.decimal = new BigDecimal("-12.3400");
+        value.bytes = new byte[]{1, 2, 3};
+        value.mode = Mode.B;
+        value.nested = new Scalars();
+        value.nested.i = 7;
+        Scalars decoded = codec.decode(codec.encode(value), Scalars.class);
+        assertEquals(value.i, decoded.i);
+        assertEquals(value.l, decoded.l);
+        assertEquals(value.b, decoded.b);
+        assertEquals(value.d, decoded.d, 0);
+        assertEquals(value.c, decoded.c);
+        assertEquals(value.decimal, decoded.decimal);
+        assertArrayEquals(value.bytes, decoded.bytes);
+        assertEquals(Mode.B, decoded.mode);
+        assertEquals(7, decoded.nested.i);
+        assertNull(decoded.nested.nested);
+    }
+
+    @Test
+    public void readsLegacyJson() {
+        GoodsVo goods = goods();
+        GoodsVo decoded = codec.decode(JSON.toJSONBytes(goods), GoodsVo.class);
+        assertEquals(goods.getId(), decoded.getId());
+        assertEquals(goods.getGoodsName(), decoded.getGoodsName());
+    }
+
+    @Test
+    public void schemaMismatchDecodesToNull() {
+        assertNull(codec.decode(codec.encode(new Node()), Scalars.class));
+    }
+
+    @Test
+    public void everyTruncationDecodesToNull() {
+        byte[] bytes = codec.encode(goods());
+        for (int length = 1; length < bytes.length; length++) {
+            assertNull("截断到 " + length, codec.decode(Arrays.copyOf(bytes, length), GoodsVo.class));
+        }
+    }
+
+    @Test
+    public void corruptedBytesNeverThrow() {
+        byte[] bytes = codec.encode(goods());
+        for (int i = 1; i < bytes.length; i++) {
+            for (int b : new int[]{0x00, 0x7F, 0x80, 0xFF}) {
+                byte[] corrupted = bytes.clone();
+                corrupted[i] = (byte) b;
+                // 可能解出错误的值，但不能抛异常
+                codec.decode(corrupted, GoodsVo.class);
+            }
+        }
+    }
+
+    @Test
+    public void negativeLengthDecodesToNull() {
+        Scalars value = new Scalars();
+        value.bytes = new byte[]{1};
+        byte[] bytes = codec.encode(value);
+        // 长度字段 zigzag(1)=0x02 改成 zigzag(-1)=0x01
+        int index = indexOf(bytes, new byte[]{1, 0x02, 1});
+        bytes[index + 1] = 0x01;
+        assertNull(codec.decode(bytes, Scalars.class));
+    }
+
+    @Test
+    public void rejectsSubclassField() {
+        Holder holder = new Holder();
+        holder.goods = goods();
+        try {
+            codec.encode(holder);
+            fail("子类字段应该拒绝编码");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void selfReferencingTypeWithinDepth() {
+        Node head = chain(BinaryRedisCodec.MAX_DEPTH);
+        Node decoded = codec.decode(codec.encode(head), Node.class);
+        int length = 0;
+        for (Node node = decoded; node != null; node = node.next) {
+            assertEquals(length++, node.value);
+        }
+        assertEquals(BinaryRedisCodec.MAX_DEPTH + 1, length);
+    }
+
+    @Test
+    public void rejectsTooDeepOrCyclicGraph() {
+        Node cyclic = new Node();
+        cyclic.next = cyclic;
+        for (Node node : new Node[]{chain(BinaryRedisCodec.MAX_DEPTH + 1), cyclic}) {
+            try {
+                codec.encode(node);
+                fail("嵌套过深应该拒绝编码");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void deeplyNestedDataDecodesToNull() {
+        byte[] single = codec.encode(new Node());
+        byte[] hash = Arrays.copyOfRange(single, 1, 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(single[0]);
+        for (int i = 0; i < 100000; i++) {
+            out.write(hash, 0, hash.length);
+            out.write(1);
+        }
+        assertNull(codec.decode(out.toByteArray(), Node.class));
+    }
+
+    private static GoodsVo goods() {
+        GoodsVo goods = new GoodsVo();
+        goods.setId(1L);
+        goods.setGoodsName("iphone");
+        goods.setGoodsTitle("秒杀");
+        goods.setGoodsPrice(6999.0);
+        goods.setGoodsStock(100);
+        goods.setMiaoshaPrice(0.01);
+        goods.setStartDate(new Date(1600000000000L));
+        goods.setEndDate(new Date(1600003600000L));
+        goods.setStockShards(4);
+        return goods;
+    }
+
+    private static Node chain(int depth) {
+        Node head = null;
+        for (int i = depth; i >= 0; i--) {
+            Node node = new Node();
+            node.value = i;
+            node.next = head;
+            head = node;
+        }
+        return head;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = bytes.length - pattern.length; i >= 0; i--) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        throw new AssertionError("pattern not found");
+    }
+
+    enum Mode {
+        A, B
+    }
+
+    static class Scalars {
+        int i;
+        Long l;
+        boolean b;
+        Double d;
+        char c;
+        BigDecimal decimal;
+        byte[] bytes;
+        Mode mode;
+        Scalars nested;
+    }
+
+    static class Node {
+        Node next;
+        int value;
+    }
+
+    static class Holder {
+        com.geekq.miaosha.domain.Goods goods;
+    }
+}
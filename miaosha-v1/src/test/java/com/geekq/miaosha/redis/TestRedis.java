@@ -0,0 +1,67 @@
+package com.geekq.miaosha.redis;
+
+import com.github.fppt.jedismock.RedisServer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+
+/**
+ * 测试用 redis：进程内的 jedis-mock 服务端，lua 脚本、pub/sub 都能跑，
+ * RedisService、脚本注册表直接连上去，不走 spring 容器
+ */
+public class TestRedis {
+
+    private final RedisServer server;
+
+    private final JedisPool jedisPool;
+
+    private final RedisService redisService;
+
+    private final LuaScriptRegistry luaScriptRegistry;
+
+    private TestRedis(RedisServer server) throws Exception {
+        this.server = server;
+        this.jedisPool = new JedisPool(new JedisPoolConfig(), server.getHost(), server.getBindPort(), 2000);
+        this.redisService = new RedisService();
+        redisService.jedisPool = jedisPool;
+        redisService.multiplexed = new MultiplexedRedisClient();
+        this.luaScriptRegistry = new LuaScriptRegistry();
+        luaScriptRegistry.redisService = redisService;
+        luaScriptRegistry.afterPropertiesSet();
+    }
+
+    public static TestRedis start() throws Exception {
+        RedisServer server = RedisServer.newRedisServer();
+        server.start();
+        return new TestRedis(server);
+    }
+
+    public RedisService redisService() {
+        return redisService;
+    }
+
+    public LuaScriptRegistry luaScriptRegistry() {
+        return luaScriptRegistry;
+    }
+
+    public RedisConfig redisConfig() {
+        RedisConfig config = new RedisConfig();
+        config.setHost(server.getHost());
+        config.setPort(server.getBindPort());
+        return config;
+    }
+
+    /**
+     * 直接操作 redis 准备数据、检查结果
+     */
+    public Jedis jedis() {
+        return jedisPool.getResource();
+    }
+
+    public void stop() throws IOException {
+        jedisPool.close();
+        server.stop();
+    }
+}
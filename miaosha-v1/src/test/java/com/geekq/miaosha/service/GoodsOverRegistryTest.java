@@ -0,0 +1,119 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.redis.MiaoshaKey;
+import com.geekq.miaosha.redis.TestRedis;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 两个 GoodsOverRegistry 实例模拟两个节点，通过同一个 redis 的 pub/sub 同步
+ */
+public class GoodsOverRegistryTest {
+
+    private static final String OVER_SET = MiaoshaKey.goodsOverSet.getPrefix();
+
+    private TestRedis redis;
+
+    private final List<GoodsOverRegistry> registries = new ArrayList<GoodsOverRegistry>();
+
+    @Before
+    public void setUp() throws Exception {
+        redis = TestRedis.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (GoodsOverRegistry registry : registries) {
+            registry.destroy();
+        }
+        redis.stop();
+    }
+
+    @Test
+    public void subscribeLoadsOverSet() throws Exception {
+        try (Jedis jedis = redis.jedis()) {
+            jedis.sadd(OVER_SET, "5", "abc");
+        }
+        GoodsOverRegistry registry = start();
+        await(() -> registry.isOver(5));
+        assertFalse(registry.isOver(6));
+    }
+
+    @Test
+    public void markOverAndResetReachOtherNodes() throws Exception {
+        GoodsOverRegistry nodeA = start();
+        GoodsOverRegistry nodeB = start();
+        nodeA.markOver(7);
+        assertTrue(nodeA.isOver(7));
+        await(() -> nodeB.isOver(7));
+        assertTrue(members().contains("7"));
+
+        nodeB.reset(7);
+        assertFalse(nodeB.isOver(7));
+        await(() -> !nodeA.isOver(7));
+        assertFalse(members().contains("7"));
+    }
+
+    @Test
+    public void resubscribeKeepsMarksAndDropsMissedResets() throws Exception {
+        GoodsOverRegistry nodeA = start();
+        GoodsOverRegistry nodeB = start();
+        nodeA.markOver(3);
+        nodeA.markOver(4);
+        await(() -> nodeB.isOver(3) && nodeB.isOver(4));
+
+        // B 断线期间 3 被清除、8 被标记售罄，广播都没收到
+        try (Jedis jedis = redis.jedis()) {
+            jedis.srem(OVER_SET, "3");
+            jedis.sadd(OVER_SET, "8");
+        }
+        reload(nodeB);
+        assertFalse(nodeB.isOver(3));
+        assertTrue(nodeB.isOver(4));
+        assertTrue(nodeB.isOver(8));
+    }
+
+    private GoodsOverRegistry start() throws Exception {
+        GoodsOverRegistry registry = new GoodsOverRegistry();
+        registry.redisService = redis.redisService();
+        registry.redisConfig = redis.redisConfig();
+        registry.afterPropertiesSet();
+        registries.add(registry);
+        return registry;
+    }
+
+    private Set<String> members() {
+        try (Jedis jedis = redis.jedis()) {
+            return jedis.smembers(OVER_SET);
+        }
+    }
+
+    private static void reload(GoodsOverRegistry registry) throws Exception {
+        Method method = GoodsOverRegistry.class.getDeclaredMethod("reload");
+        method.setAccessible(true);
+        method.invoke(registry);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("等待超时");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
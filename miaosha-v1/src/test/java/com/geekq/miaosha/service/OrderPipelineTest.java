@@ -0,0 +1,258 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.domain.MiaoshaUser;
+import com.geekq.miaosha.domain.OrderInfo;
+import com.geekq.miaosha.rabbitmq.MiaoshaMessage;
+import com.geekq.miaosha.rabbitmq.MiaoshaMessageConverter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 直接写重放日志再启动流水线，不调用 destroy 模拟下单前宕机
+ */
+public class OrderPipelineTest {
+
+    private static final int RECORD = 4 + MiaoshaMessageConverter.LENGTH;
+
+    private File dir;
+
+    private File journal;
+
+    /**
+     * 打开时下单线程卡住，模拟还没来得及下单
+     */
+    private final CountDownLatch consume = new CountDownLatch(1);
+
+    private final List<Long> placed = new CopyOnWriteArrayList<Long>();
+
+    private final List<Long> rolledBack = new CopyOnWriteArrayList<Long>();
+
+    private final Set<Long> failing = ConcurrentHashMap.newKeySet();
+
+    private final List<OrderPipeline> opened = new ArrayList<OrderPipeline>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("pipeline").toFile();
+        journal = new File(dir, "order.journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        consume.countDown();
+        for (OrderPipeline pipeline : opened) {
+            set(pipeline, "running", false);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void crashBeforeConsumingKeepsReplayedRecords() throws Exception {
+        writeJournal(1, 10);
+        OrderPipeline pipeline = open(64);
+        AtomicLong journaled = (AtomicLong) get(pipeline, "journalSequence");
+        await(() -> journaled.get() >= 9);
+        // 日志线程已经空转过几轮，下单线程还卡着
+        Thread.sleep(50);
+
+        // 此时宕机：原有记录和重新追加的记录都还在
+        assertEquals(range(1, 10), new HashSet<Long>(readJournal()));
+        assertTrue(placed.isEmpty());
+    }
+
+    @Test
+    public void replayLargerThanRingKeepsJournal() throws Exception {
+        writeJournal(1, 20);
+        try {
+            open(8);
+            fail("下单线程卡住时重放超过缓冲区应该失败");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // 重放失败不能把还没重新落日志的记录截掉，下次启动还能重放
+        assertEquals(range(1, 20), new HashSet<Long>(readJournal()));
+    }
+
+    @Test
+    public void replayedEventsAreOrderedThenJournalTruncated() throws Exception {
+        writeJournal(1, 10);
+        // 末尾写了一半的记录
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[RECORD / 2]);
+        }
+        consume.countDown();
+        open(64);
+        await(() -> journal.length() == 0);
+        assertEquals(10, placed.size());
+        assertEquals(range(1, 10), new HashSet<Long>(placed));
+    }
+
+    @Test
+    public void failedEventIsDeadLetteredAndRolledBack() throws Exception {
+        writeJournal(1, 5);
+        failing.add(3L);
+        consume.countDown();
+        open(64);
+        await(() -> journal.length() == 0);
+        assertEquals(4, placed.size());
+        assertEquals(1, rolledBack.size());
+        assertEquals(3L, (long) rolledBack.get(0));
+        assertEquals(RECORD, new File(journal.getPath() + ".dead").length());
+    }
+
+    private OrderPipeline open(int ringSize) throws Exception {
+        OrderPipeline pipeline = new OrderPipeline();
+        pipeline.miaoshaService = new StubMiaoshaService();
+        pipeline.idempotencyService = new StubIdempotencyService();
+        set(pipeline, "mode", "local");
+        set(pipeline, "ringSize", ringSize);
+        set(pipeline, "consumerCount", 1);
+        set(pipeline, "batchSize", 16);
+        set(pipeline, "journalPath", journal.getPath());
+        set(pipeline, "journalForce", true);
+        set(pipeline, "publishTimeoutMillis", 100L);
+        set(pipeline, "maxRetry", 1);
+        opened.add(pipeline);
+        pipeline.afterPropertiesSet();
+        return pipeline;
+    }
+
+    /**
+     * 每个请求一个商品，下单线程逐个单笔下单
+     */
+    private void writeJournal(long from, long to) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.seek(raf.length());
+            CRC32 crc = new CRC32();
+            for (long i = from; i <= to; i++) {
+                MiaoshaMessage mm = new MiaoshaMessage();
+                mm.setUserId(13000000000L + i);
+                mm.setGoodsId(i);
+                mm.setRequestId(i);
+                mm.setTimestamp(1600000000000L);
+                byte[] payload = MiaoshaMessageConverter.encode(mm);
+                crc.reset();
+                crc.update(payload);
+                raf.writeInt((int) crc.getValue());
+                raf.write(payload);
+            }
+        }
+    }
+
+    private List<Long> readJournal() throws IOException {
+        byte[] bytes = Files.readAllBytes(journal.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        List<Long> requestIds = new ArrayList<Long>();
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD) {
+            int expected = buffer.getInt();
+            byte[] payload = new byte[MiaoshaMessageConverter.LENGTH];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+            requestIds.add(MiaoshaMessageConverter.decode(payload).getRequestId());
+        }
+        return requestIds;
+    }
+
+    private static Set<Long> range(long from, long to) {
+        Set<Long> ids = new HashSet<Long>();
+        for (long i = from; i <= to; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("等待超时");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static Object get(Object target, String name) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    private class StubMiaoshaService extends MiaoshaService {
+
+        @Override
+        public OrderInfo placeOrder(MiaoshaUser user, long goodsId) {
+            try {
+                consume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // 每个商品只有一个请求，goodsId 就是 requestId
+            if (failing.contains(goodsId)) {
+                throw new IllegalStateException("下单失败 goodsId:" + goodsId);
+            }
+            placed.add(goodsId);
+            return new OrderInfo();
+        }
+
+        @Override
+        public void rollbackAdmission(long userId, long goodsId) {
+            rolledBack.add(goodsId);
+        }
+    }
+
+    private static class StubIdempotencyService extends OrderIdempotencyService {
+
+        private final Set<Long> processed = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public boolean isProcessed(long requestId) {
+            return processed.contains(requestId);
+        }
+
+        @Override
+        public void markProcessed(long requestId) {
+            processed.add(requestId);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.common.enums.ResultStatus;
+import com.geekq.miaosha.exception.GlobleException;
+import com.geekq.miaosha.redis.GoodsKey;
+import com.geekq.miaosha.redis.TestRedis;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 合并扣减直接打到 jedis-mock 上跑真实的领取脚本
+ */
+public class StockCoalesceServiceTest {
+
+    private static final long GOODS_ID = 1;
+
+    private static final String STOCK = GoodsKey.getMiaoshaGoodsStock.getPrefix() + GOODS_ID;
+
+    private TestRedis redis;
+
+    private StubStockLeaseService stockLeaseService;
+
+    private StockCoalesceService service;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(32);
+
+    @Before
+    public void setUp() throws Exception {
+        redis = TestRedis.start();
+        stockLeaseService = new StubStockLeaseService();
+        stockLeaseService.redisService = redis.redisService();
+        stockLeaseService.luaScriptRegistry = redis.luaScriptRegistry();
+        stockLeaseService.afterPropertiesSet();
+        service = new StockCoalesceService();
+        service.redisService = redis.redisService();
+        service.stockLeaseService = stockLeaseService;
+        set(service, "enable", true);
+        set(service, "windowMillis", 2L);
+        set(service, "maxBatch", 200);
+        set(service, "timeoutMillis", 5000L);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        stockLeaseService.blocked.countDown();
+        executor.shutdownNow();
+        service.destroy();
+        redis.stop();
+    }
+
+    @Test
+    public void concurrentAcquireNeverOversells() throws Exception {
+        setStock(50);
+        set(service, "maxBatch", 16);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 200; i++) {
+            results.add(executor.submit(() -> service.acquire(GOODS_ID)));
+        }
+        int granted = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get(5, TimeUnit.SECONDS)) {
+                granted++;
+            }
+        }
+        assertEquals(50, granted);
+        assertEquals(0, stock());
+        assertTrue("请求应该被合并提交", stockLeaseService.calls.get() < 200);
+    }
+
+    @Test
+    public void fullBatchSubmitsBeforeWindow() throws Exception {
+        setStock(10);
+        set(service, "windowMillis", 60000L);
+        set(service, "maxBatch", 4);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> service.acquire(GOODS_ID)));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, stockLeaseService.calls.get());
+        assertEquals(6, stock());
+    }
+
+    @Test
+    public void timedOutWaiterReturnsStock() throws Exception {
+        setStock(10);
+        set(service, "timeoutMillis", 50L);
+        stockLeaseService.blocking = true;
+        assertBusy();
+        // 超时之后批次才提交，领到的那一件要还回去
+        stockLeaseService.blocked.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (stockLeaseService.calls.get() == 0 || stock() != 10) {
+            if (System.nanoTime() > deadline) {
+                fail("库存没有还回去 stock:" + stock());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void redisFailureIsBusyNotSoldOut() throws Exception {
+        setStock(10);
+        stockLeaseService.failing = true;
+        assertBusy();
+        assertEquals(10, stock());
+    }
+
+    private void assertBusy() {
+        try {
+            service.acquire(GOODS_ID);
+            fail("应该返回繁忙而不是卖完");
+        } catch (GlobleException e) {
+            assertEquals(ResultStatus.MIAOSHA_BUSY, e.getStatus());
+        }
+    }
+
+    private void setStock(long stock) {
+        try (Jedis jedis = redis.jedis()) {
+            jedis.set(STOCK, String.valueOf(stock));
+        }
+    }
+
+    private long stock() {
+        try (Jedis jedis = redis.jedis()) {
+            String value = jedis.get(STOCK);
+            return value == null ? 0 : Long.parseLong(value);
+        }
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static class StubStockLeaseService extends StockLeaseService {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        private volatile boolean blocking;
+
+        private volatile boolean failing;
+
+        @Override
+        public long leaseStock(long goodsId, int count) {
+            if (blocking) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                throw new IllegalStateException("redis 不可用");
+            }
+            long granted = super.leaseStock(goodsId, count);
+            calls.incrementAndGet();
+            return granted;
+        }
+    }
+}
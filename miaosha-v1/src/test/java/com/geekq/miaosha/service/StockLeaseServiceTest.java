@@ -0,0 +1,186 @@
+package com.geekq.miaosha.service;
+
+import com.geekq.miaosha.common.enums.ResultStatus;
+import com.geekq.miaosha.exception.GlobleException;
+import com.geekq.miaosha.redis.GoodsKey;
+import com.geekq.miaosha.redis.TestRedis;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 两个 StockLeaseService 实例模拟两个节点，共用一个 redis
+ */
+public class StockLeaseServiceTest {
+
+    private static final long GOODS_ID = 1;
+
+    private static final String STOCK = GoodsKey.getMiaoshaGoodsStock.getPrefix() + GOODS_ID;
+
+    private static final String HOLDERS = GoodsKey.getMiaoshaGoodsLeaseHolders.getPrefix() + GOODS_ID;
+
+    private TestRedis redis;
+
+    private StockLeaseService nodeA;
+
+    private StockLeaseService nodeB;
+
+    @Before
+    public void setUp() throws Exception {
+        redis = TestRedis.start();
+        nodeA = node();
+        nodeB = node();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        redis.stop();
+    }
+
+    @Test
+    public void runningOutWhileOthersHoldLeasesIsBusyNotOver() {
+        setStock(20);
+        assertTrue(nodeA.acquire(GOODS_ID));
+        assertTrue(nodeB.acquire(GOODS_ID));
+        assertEquals(0, stock());
+        for (int i = 1; i < 10; i++) {
+            assertTrue(nodeB.acquire(GOODS_ID));
+        }
+        // B 的租约用完，A 手里还有 9 件
+        assertBusy(nodeB);
+        assertTrue(nodeA.hasLocalStock(GOODS_ID));
+        assertFalse(nodeB.hasLocalStock(GOODS_ID));
+
+        for (int i = 1; i < 10; i++) {
+            assertTrue(nodeA.acquire(GOODS_ID));
+        }
+        // 最后一个持有者用完才算卖完
+        assertFalse(nodeA.acquire(GOODS_ID));
+        assertFalse(nodeB.acquire(GOODS_ID));
+        assertEquals(0, holders());
+    }
+
+    @Test
+    public void releaseReturnsStockToOtherNodes() {
+        setStock(10);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(nodeA.acquire(GOODS_ID));
+        }
+        assertBusy(nodeB);
+
+        nodeA.release(GOODS_ID);
+        assertEquals(7, stock());
+        assertEquals(0, holders());
+        assertFalse(nodeA.hasLocalStock(GOODS_ID));
+        for (int i = 0; i < 7; i++) {
+            assertTrue(nodeB.acquire(GOODS_ID));
+        }
+        assertFalse(nodeB.acquire(GOODS_ID));
+    }
+
+    @Test
+    public void tickRenewsHoldersAndDropsDrainedLeases() throws Exception {
+        setStock(10);
+        assertTrue(nodeA.acquire(GOODS_ID));
+        try (Jedis jedis = redis.jedis()) {
+            jedis.zadd(HOLDERS, 0, node(nodeA));
+        }
+        nodeA.releaseIdleLeases();
+        try (Jedis jedis = redis.jedis()) {
+            assertTrue(jedis.zscore(HOLDERS, node(nodeA)) > 0);
+        }
+
+        for (int i = 1; i < 10; i++) {
+            assertTrue(nodeA.acquire(GOODS_ID));
+        }
+        assertEquals(1, holders());
+        // 用完的租约在下一次定时任务注销，其他节点马上能确认卖完
+        nodeA.releaseIdleLeases();
+        assertEquals(0, holders());
+        assertFalse(nodeB.acquire(GOODS_ID));
+    }
+
+    @Test
+    public void idleLeaseIsReturned() throws Exception {
+        set(nodeA, "idleMillis", 0L);
+        setStock(10);
+        assertTrue(nodeA.acquire(GOODS_ID));
+        Thread.sleep(5);
+        nodeA.releaseIdleLeases();
+        assertEquals(9, stock());
+        assertEquals(0, holders());
+    }
+
+    @Test
+    public void expiredHolderDoesNotBlockSoldOut() {
+        setStock(0);
+        try (Jedis jedis = redis.jedis()) {
+            // 宕机节点很久没续期
+            jedis.zadd(HOLDERS, System.currentTimeMillis() - 60000, "dead");
+        }
+        assertFalse(nodeA.acquire(GOODS_ID));
+        assertEquals(0, holders());
+    }
+
+    private void assertBusy(StockLeaseService node) {
+        try {
+            node.acquire(GOODS_ID);
+            fail("其他节点还有租约时应该返回繁忙");
+        } catch (GlobleException e) {
+            assertEquals(ResultStatus.MIAOSHA_BUSY, e.getStatus());
+        }
+    }
+
+    private StockLeaseService node() throws Exception {
+        StockLeaseService node = new StockLeaseService();
+        node.redisService = redis.redisService();
+        node.luaScriptRegistry = redis.luaScriptRegistry();
+        set(node, "enable", true);
+        set(node, "minLeaseSize", 10);
+        set(node, "maxLeaseSize", 10);
+        set(node, "leaseIntervalMillis", 100L);
+        set(node, "idleMillis", 5000L);
+        set(node, "holderTimeoutMillis", 10000L);
+        node.afterPropertiesSet();
+        return node;
+    }
+
+    private void setStock(long stock) {
+        try (Jedis jedis = redis.jedis()) {
+            jedis.set(STOCK, String.valueOf(stock));
+        }
+    }
+
+    private long stock() {
+        try (Jedis jedis = redis.jedis()) {
+            String value = jedis.get(STOCK);
+            return value == null ? 0 : Long.parseLong(value);
+        }
+    }
+
+    private long holders() {
+        try (Jedis jedis = redis.jedis()) {
+            return jedis.zcard(HOLDERS);
+        }
+    }
+
+    private static String node(StockLeaseService node) throws Exception {
+        Field field = StockLeaseService.class.getDeclaredField("node");
+        field.setAccessible(true);
+        return (String) field.get(node);
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -1,5 +1,11 @@
 package com.geekq.miasha.utils;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Twitter_Snowflake<br>
  * SnowFlake的结构如下(每部分用-分开):<br>
@@ -10,7 +16,9 @@ package com.geekq.miasha.utils;
  * 10位的数据机器位，可以部署在1024个节点，包括5位datacenterId和5位workerId<br>
  * 12位序列，毫秒内的计数，12位的计数顺序号支持每个节点每毫秒(同一机器，同一时间截)产生4096个ID序号<br>
  * 加起来刚好64位，为一个Long型。<br>
- * SnowFlake的优点是，整体上按照时间自增排序，并且整个分布式系统内不会产生ID碰撞(由数据中心ID和机器ID作区分)，并且效率较高，经测试，SnowFlake每秒能够产生26万ID左右。
+ * SnowFlake的优点是，整体上按照时间自增排序，并且整个分布式系统内不会产生ID碰撞(由数据中心ID和机器ID作区分)，并且效率较高，经测试，SnowFlake每秒能够产生26万ID左右。<br>
+ * 时间截和毫秒内序列拼成一个 long 用 CAS 推进，不加锁；序列用完或时钟回拨时向未来借时间，最多借 maxBorrowMillis 毫秒。
+ * 已借满时再遇到回拨，最多等 maxWaitMillis 毫秒让时钟追上来，仍追不上才拒绝生成。
  */
 public class SnowflakeIdWorker {
 
@@ -76,14 +84,34 @@ public class SnowflakeIdWorker {
     private long datacenterId;
 
     /**
-     * 毫秒内序列(0~4095)
+     * 默认最多向未来借的毫秒数
+     */
+    public static final long DEFAULT_MAX_BORROW_MILLIS = 1000L;
+
+    /**
+     * 默认借满后遇到回拨时最多等待的毫秒数
+     */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 100L;
+
+    /**
+     * getOrderId 按 数据中心ID+工作ID 复用的实例
+     */
+    private static final ConcurrentMap<Long, SnowflakeIdWorker> ORDER_ID_WORKERS = new ConcurrentHashMap<Long, SnowflakeIdWorker>();
+
+    /**
+     * 上次生成ID的时间截(相对 twepoch)左移 12 位，低 12 位是毫秒内序列(0~4095)；序列溢出时自然进位到下一毫秒
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * 最多向未来借的毫秒数，时钟回拨超过这个值时拒绝生成
      */
-    private long sequence = 0L;
+    private final long maxBorrowMillis;
 
     /**
-     * 上次生成ID的时间截
+     * 借满后遇到回拨时最多等待的毫秒数
      */
-    private long lastTimestamp = -1L;
+    private final long maxWaitMillis;
 
     //==============================Constructors=====================================
 
@@ -94,6 +122,35 @@ public class SnowflakeIdWorker {
      * @param datacenterId 数据中心ID (0~31)
      */
     public SnowflakeIdWorker(long workerId, long datacenterId) {
+        this(workerId, datacenterId, DEFAULT_MAX_BORROW_MILLIS);
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param workerId        工作ID (0~31)
+     * @param datacenterId    数据中心ID (0~31)
+     * @param maxBorrowMillis 最多向未来借的毫秒数
+     */
+    public SnowflakeIdWorker(long workerId, long datacenterId, long maxBorrowMillis) {
+        this(workerId, datacenterId, maxBorrowMillis, DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param workerId        工作ID (0~31)
+     * @param datacenterId    数据中心ID (0~31)
+     * @param maxBorrowMillis 最多向未来借的毫秒数
+     * @param maxWaitMillis   借满后遇到回拨时最多等待的毫秒数
+     */
+    public SnowflakeIdWorker(long workerId, long datacenterId, long maxBorrowMillis, long maxWaitMillis) {
+        if (maxBorrowMillis < 0) {
+            throw new IllegalArgumentException("max borrow millis can't be less than 0");
+        }
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("max wait millis can't be less than 0");
+        }
         if (workerId > maxWorkerId || workerId < 0) {
             throw new IllegalArgumentException(String.format("worker Id can't be greater than %d or less than 0", maxWorkerId));
         }
@@ -102,6 +159,8 @@ public class SnowflakeIdWorker {
         }
         this.workerId = workerId;
         this.datacenterId = datacenterId;
+        this.maxBorrowMillis = maxBorrowMillis;
+        this.maxWaitMillis = maxWaitMillis;
     }
 
     /**
@@ -112,7 +171,8 @@ public class SnowflakeIdWorker {
      * @return
      */
     public static long getOrderId(long workerId, long datacenterId) {
-        SnowflakeIdWorker idWorker = new SnowflakeIdWorker(0, 0);
+        SnowflakeIdWorker idWorker = ORDER_ID_WORKERS.computeIfAbsent(datacenterId << 5 | workerId,
+                key -> new SnowflakeIdWorker(workerId, datacenterId));
         return idWorker.nextId();
     }
 
@@ -135,51 +195,78 @@ public class SnowflakeIdWorker {
      *
      * @return SnowflakeId
      */
-    public synchronized long nextId() {
-        long timestamp = timeGen();
+    public long nextId() {
+        return toId(reserve(1));
+    }
 
-        //如果当前时间小于上一次ID生成的时间戳，说明系统时钟回退过这个时候应当抛出异常
-        if (timestamp < lastTimestamp) {
-            throw new RuntimeException(
-                    String.format("Clock moved backwards.  Refusing to generate id for %d milliseconds", lastTimestamp - timestamp));
+    /**
+     * 一次 CAS 领 count 个ID，同一毫秒序列不够时顺延到后面的毫秒
+     *
+     * @param count 个数 (1~4096)
+     * @return 递增的 SnowflakeId
+     */
+    public long[] nextIds(int count) {
+        if (count <= 0 || count > sequenceMask + 1) {
+            throw new IllegalArgumentException(String.format("count must be between 1 and %d", sequenceMask + 1));
+        }
+        long last = reserve(count);
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = toId(last - count + 1 + i);
         }
+        return ids;
+    }
+
+    /**
+     * 推进 state，领 count 个连续的 时间截+序列
+     *
+     * @return 领到的最后一个
+     */
+    private long reserve(int count) {
+        long waitDeadline = 0;
+        for (; ; ) {
+            long timestamp = timeGen() - twepoch;
+            long current = state.get();
+            long lastTimestamp = current >>> sequenceBits;
 
-        //如果是同一时间生成的，则进行毫秒内序列
-        if (lastTimestamp == timestamp) {
-            sequence = (sequence + 1) & sequenceMask;
-            //毫秒内序列溢出
-            if (sequence == 0) {
-                //阻塞到下一个毫秒,获得新的时间戳
-                timestamp = tilNextMillis(lastTimestamp);
+            //时钟回退超过可借的范围，在等待上限内等时钟追上来，否则拒绝生成
+            long excess = lastTimestamp - timestamp - maxBorrowMillis;
+            if (excess > 0) {
+                long now = System.nanoTime();
+                if (waitDeadline == 0) {
+                    waitDeadline = now + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                }
+                if (excess > maxWaitMillis || now - waitDeadline >= 0) {
+                    throw new IllegalStateException(
+                            String.format("Clock moved backwards.  Refusing to generate id for %d milliseconds", lastTimestamp - timestamp));
+                }
+                LockSupport.parkNanos(Math.min(TimeUnit.MILLISECONDS.toNanos(excess), waitDeadline - now));
+                continue;
             }
-        }
-        //时间戳改变，毫秒内序列重置
-        else {
-            sequence = 0L;
-        }
 
-        //上次生成ID的时间截
-        lastTimestamp = timestamp;
+            //时间戳改变则从序列 0 开始，否则接着上次的序列；回拨在可借范围内时沿用上次的时间截
+            long first = Math.max(current + 1, timestamp << sequenceBits);
+            long last = first + count - 1;
 
-        //移位并通过或运算拼到一起组成64位的ID
-        return ((timestamp - twepoch) << timestampLeftShift) //
-                | (datacenterId << datacenterIdShift) //
-                | (workerId << workerIdShift) //
-                | sequence;
+            //借的时间到了上限，等时钟追上来
+            if ((last >>> sequenceBits) - timestamp > maxBorrowMillis) {
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            if (state.compareAndSet(current, last)) {
+                return last;
+            }
+        }
     }
 
     /**
-     * 阻塞到下一个毫秒，直到获得新的时间戳
-     *
-     * @param lastTimestamp 上次生成ID的时间截
-     * @return 当前时间戳
+     * 移位并通过或运算拼到一起组成64位的ID
      */
-    protected long tilNextMillis(long lastTimestamp) {
-        long timestamp = timeGen();
-        while (timestamp <= lastTimestamp) {
-            timestamp = timeGen();
-        }
-        return timestamp;
+    private long toId(long reserved) {
+        return ((reserved >>> sequenceBits) << timestampLeftShift) //
+                | (datacenterId << datacenterIdShift) //
+                | (workerId << workerIdShift) //
+                | (reserved & sequenceMask);
     }
 
     //==============================Test=============================================
@@ -15,6 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -40,13 +41,32 @@ public class MQReceiver {
 //		@Autowired
 //        MiaoShaMessageService messageService ;
 
+    /**
+     * 没下成单时退回准入，不再重投：否则购买标记一直在，用户一天内都是重复秒杀，结果一直是排队中
+     */
     @RabbitListener(queues = MQConfig.MIAOSHA_QUEUE)
     public void receive(String message) {
         log.info("receive message:" + message);
         MiaoshaMessage mm = RedisService.stringToBean(message, MiaoshaMessage.class);
         MiaoshaUser user = mm.getUser();
+        long userId = Long.valueOf(user.getNickname());
         long goodsId = mm.getGoodsId();
+        try {
+            if (!placeOrder(user, userId, goodsId)) {
+                miaoshaService.rollbackAdmission(userId, goodsId);
+            }
+        } catch (DuplicateKeyException e) {
+            // 重复投递，已经下过单
+        } catch (Exception e) {
+            log.error("秒杀下单失败，退回准入 userId:{} goodsId:{}", userId, goodsId, e);
+            miaoshaService.rollbackAdmission(userId, goodsId);
+        }
+    }
 
+    /**
+     * @return false 表示没下成单
+     */
+    private boolean placeOrder(MiaoshaUser user, long userId, long goodsId) {
 //			GoodsVo goods = goodsService.getGoodsVoByGoodsId(goodsId);
         ResultGeekQOrder<GoodsVoOrder> goodsVoOrderResultGeekQOrder = goodsServiceRpc.getGoodsVoByGoodsId(goodsId);
         if (!AbstractResultOrder.isSuccess(goodsVoOrderResultGeekQOrder)) {
@@ -56,18 +76,19 @@ public class MQReceiver {
         GoodsVoOrder goods = goodsVoOrderResultGeekQOrder.getData();
         int stock = goods.getStockCount();
         if (stock <= 0) {
-            return;
+            // 数据库已卖完，结果查询返回秒杀失败而不是排队中
+            miaoshaService.setGoodsOver(goodsId);
+            return false;
         }
         //判断是否已经秒杀到了
-        MiaoshaOrder order = orderService.getMiaoshaOrderByUserIdGoodsId(Long.valueOf(user.getNickname()), goodsId);
+        MiaoshaOrder order = orderService.getMiaoshaOrderByUserIdGoodsId(userId, goodsId);
         if (order != null) {
-            return;
+            return true;
         }
         //减库存 下订单 写入秒杀订单
-        miaoshaService.miaosha(user, goods);
+        return miaoshaService.miaosha(user, goods) != null;
     }
 
-
 //	@RabbitListener(queues=MQConfig.MIAOSHATEST)
 //	public void receiveMiaoShaMessage(Message message, Channel channel) throws IOException {
 //		log.info("接受到的消息为:{}",message);
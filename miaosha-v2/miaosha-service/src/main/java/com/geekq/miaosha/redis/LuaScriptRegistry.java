@@ -0,0 +1,90 @@
+package com.geekq.miaosha.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * lua 脚本注册表
+ * 启动时读取 classpath 下 lua/*.lua，以文件名(不含 .lua)注册，并一次性加载进 redis；
+ * 调用方按名字取 {@link LuaScript} 执行，不再每次 scriptLoad，也不用各自处理 NOSCRIPT
+ */
+@Component
+public class LuaScriptRegistry implements InitializingBean {
+
+    public static final String LOCATION = "classpath*:lua/*.lua";
+
+    private static Logger logger = LoggerFactory.getLogger(LuaScriptRegistry.class);
+
+    @Autowired
+    RedisService redisService;
+
+    private final Map<String, LuaScript> scripts = new ConcurrentHashMap<String, LuaScript>();
+
+    /**
+     * 按名字取脚本，如 miaosha_admission
+     */
+    public LuaScript script(String name) {
+        LuaScript script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("未注册的 lua 脚本:" + name);
+        }
+        return script;
+    }
+
+    /**
+     * 把所有脚本重新加载进 redis，用于确认 redis 清空脚本缓存之后
+     */
+    public void reload() {
+        for (LuaScript script : scripts.values()) {
+            script.load();
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources(LOCATION);
+        for (Resource resource : resources) {
+            String filename = resource.getFilename();
+            String name = filename.substring(0, filename.length() - ".lua".length());
+            String source = StreamUtils.copyToString(resource.getInputStream(), StandardCharsets.UTF_8);
+            if (scripts.putIfAbsent(name, new LuaScript(name, source, sha1(source), redisService)) != null) {
+                logger.warn("lua 脚本重名，忽略 {}", resource);
+            }
+        }
+        try {
+            reload();
+            logger.info("已加载 lua 脚本 {}", scripts.keySet());
+        } catch (Exception e) {
+            // 执行时遇到 NOSCRIPT 会再加载
+            logger.warn("预加载 lua 脚本失败", e);
+        }
+    }
+
+    /**
+     * 和 redis SCRIPT LOAD 返回的 sha 一致
+     */
+    static String sha1(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sha = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sha.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sha.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -6,6 +6,8 @@ public class MiaoshaKey extends BasePrefix {
     public static MiaoshaKey getMiaoshaPath = new MiaoshaKey(60, "mp");
     public static MiaoshaKey getMiaoshaVerifyCode = new MiaoshaKey(300, "vc");
     public static MiaoshaKey getMiaoshaVerifyCodeRegister = new MiaoshaKey(300, "register");
+    // 购买标记只在下单完成前防重，下单后由秒杀订单缓存防重；过期兜底没清掉的标记
+    public static MiaoshaKey isUserMiaosha = new MiaoshaKey(3600 * 24, "um");
     private MiaoshaKey(int expireSeconds, String prefix) {
         super(expireSeconds, prefix);
     }
@@ -229,6 +229,32 @@ public class RedisService {
         }
     }
 
+    /**
+     * 预加载lua脚本，返回脚本sha
+     */
+    public String scriptLoad(String script) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            return jedis.scriptLoad(script);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
+    /**
+     * 执行已预加载的lua脚本
+     */
+    public Object evalsha(String sha, List<String> keys, List<String> args) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            return jedis.evalsha(sha, keys, args);
+        } finally {
+            returnToPool(jedis);
+        }
+    }
+
     public Long del(String key) {
         Jedis jedis = null;
         Long result = null;
@@ -1,38 +1,33 @@
 package com.geekq.miaosha.redis.redismanager;
 
-import redis.clients.jedis.Jedis;
+import com.geekq.miaosha.redis.LuaScriptRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
 
-import java.io.IOException;
-import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Collections;
 
+/**
+ * 分布式限流，每秒一个计数 key，脚本见 lua/limit.lua
+ */
+@Component
 public class RedisLimitRateWithLUA {
 
-    public static boolean accquire() throws IOException, URISyntaxException {
-        Jedis jedis = new Jedis("117.72.144.137", 16379);
+    @Autowired
+    LuaScriptRegistry luaScriptRegistry;
 
-        String lua =
-                "local key = KEYS[1] " +
-                        " local limit = tonumber(ARGV[1]) " +
-                        " local current = tonumber(redis.call('get', key) or '0')" +
-                        " if current + 1 > limit " +
-                        " then  return 0 " +
-                        " else " +
-                        " redis.call('INCRBY', key,'1')" +
-                        " redis.call('expire', key,'2') " +
-                        " end return 1 ";
+    /**
+     * 每秒最多放行的请求数
+     */
+    @Value("${miaosha.limit.rate:1000}")
+    private int limit;
 
+    /**
+     * @return 是否放行
+     */
+    public boolean accquire() {
         String key = "ip:" + System.currentTimeMillis() / 1000; // 当前秒
-        String limit = "3"; // 最大限制
-        List<String> keys = new ArrayList<String>();
-        keys.add(key);
-        List<String> args = new ArrayList<String>();
-        args.add(limit);
-        jedis.auth("youxin11");
-        String luaScript = jedis.scriptLoad(lua);
-        Long result = (Long) jedis.evalsha(luaScript, keys, args);
-        return result == 1;
+        return luaScriptRegistry.script("limit").evalForLong(Collections.singletonList(key),
+                Collections.singletonList(String.valueOf(limit))) == 1;
     }
 }
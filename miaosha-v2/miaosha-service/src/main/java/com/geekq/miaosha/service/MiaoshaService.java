@@ -2,13 +2,18 @@ package com.geekq.miaosha.service;
 
 import com.alibaba.dubbo.config.annotation.Reference;
 import com.geekq.api.entity.GoodsVoOrder;
+import com.geekq.miaosha.redis.GoodsKey;
+import com.geekq.miaosha.redis.LuaScript;
+import com.geekq.miaosha.redis.LuaScriptRegistry;
 import com.geekq.miaosha.redis.MiaoshaKey;
+import com.geekq.miaosha.redis.OrderKey;
 import com.geekq.miaosha.redis.RedisService;
 import com.geekq.miasha.entity.MiaoshaOrder;
 import com.geekq.miasha.entity.MiaoshaUser;
 import com.geekq.miasha.entity.OrderInfo;
 import com.geekq.miasha.utils.MD5Utils;
 import com.geekq.miasha.utils.UUIDUtil;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -17,10 +22,22 @@ import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 @Service
-public class MiaoshaService {
+public class MiaoshaService implements InitializingBean {
+
+    /**
+     * 秒杀准入脚本返回码
+     */
+    public static final int ADMISSION_SUCCESS = 0;
+    public static final int ADMISSION_PATH_ILLEGAL = 1;
+    public static final int ADMISSION_REPEATE = 2;
+    public static final int ADMISSION_OVER = 3;
+
+    private static final String ADMISSION_SCRIPT = "miaosha_admission";
 
     private static char[] ops = new char[]{'+', '-', '*'};
     @Autowired
@@ -29,6 +46,10 @@ public class MiaoshaService {
     OrderService orderService;
     @Autowired
     RedisService redisService;
+    @Autowired
+    LuaScriptRegistry luaScriptRegistry;
+
+    private LuaScript admissionScript;
 
     @Reference(version = "${demo.service.version}", retries = 3, timeout = 6000)
     private com.geekq.api.service.GoodsService goodsServiceRpc;
@@ -73,7 +94,7 @@ public class MiaoshaService {
         }
     }
 
-    private void setGoodsOver(Long goodsId) {
+    public void setGoodsOver(Long goodsId) {
         redisService.set(MiaoshaKey.isGoodsOver, "" + goodsId, true);
     }
 
@@ -89,6 +110,33 @@ public class MiaoshaService {
         return path.equals(pathOld);
     }
 
+    /**
+     * 秒杀准入：校验path、重复秒杀标记、预减库存 一次 EVALSHA 原子完成
+     *
+     * @return ADMISSION_* 返回码
+     */
+    public int admission(MiaoshaUser user, long goodsId, String path) {
+        if (user == null || path == null) {
+            return ADMISSION_PATH_ILLEGAL;
+        }
+        String userGoods = user.getNickname() + "_" + goodsId;
+        List<String> keys = Arrays.asList(
+                MiaoshaKey.getMiaoshaPath.getPrefix() + userGoods,
+                OrderKey.getMiaoshaOrderByUidGid.getPrefix() + userGoods,
+                MiaoshaKey.isUserMiaosha.getPrefix() + userGoods,
+                GoodsKey.getMiaoshaGoodsStock.getPrefix() + goodsId);
+        List<String> args = Arrays.asList(path, String.valueOf(MiaoshaKey.isUserMiaosha.expireSeconds()));
+        return admissionScript.evalForLong(keys, args).intValue();
+    }
+
+    /**
+     * 异步下单最终失败：退回预减的 redis 库存，清掉购买标记，用户不会一直被当成重复秒杀
+     */
+    public void rollbackAdmission(long userId, long goodsId) {
+        redisService.incr(GoodsKey.getMiaoshaGoodsStock, "" + goodsId);
+        redisService.delete(MiaoshaKey.isUserMiaosha, userId + "_" + goodsId);
+    }
+
     public String createMiaoshaPath(MiaoshaUser user, long goodsId) {
         if (user == null || goodsId <= 0) {
             return null;
@@ -210,4 +258,12 @@ public class MiaoshaService {
         return exp;
     }
 
+    /**
+     * 取秒杀准入脚本
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        admissionScript = luaScriptRegistry.script(ADMISSION_SCRIPT);
+    }
+
 }
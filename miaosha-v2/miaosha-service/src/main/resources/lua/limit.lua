@@ -1,3 +1,7 @@
+--- 每秒限流
+--- KEYS[1] 限流 key，一秒一个
+--- ARGV[1] 每秒最多请求数
+--- 返回：1 放行，0 超出限制
 local key = KEYS[1] --限流KEY（一秒一个）
 local limit = tonumber(ARGV[1]) --限流大小
 local current = tonumber(redis.call('get', key) or "0")
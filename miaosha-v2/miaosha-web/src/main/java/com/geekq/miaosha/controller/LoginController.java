@@ -26,6 +26,9 @@ public class LoginController {
     @Autowired
     private MiaoShaUserService userService;
 
+    @Autowired
+    private RedisLua redisLua;
+
     @RequestMapping("/sayHello")
     public String sayHello() throws Exception {
         return "login222";
@@ -37,8 +40,7 @@ public class LoginController {
         logger.info(loginVo.toString());
 
         //未完成
-        RedisLua.vistorCount(COUNTLOGIN);
-        String count = RedisLua.getVistorCount(COUNTLOGIN).toString();
+        String count = String.valueOf(redisLua.vistorCount(COUNTLOGIN));
         logger.info("访问网站的次数为:{}", count);
         model.addAttribute("count", count);
         return "login";
@@ -10,7 +10,6 @@ import com.geekq.miaosha.service.GoodsService;
 import com.geekq.miaosha.service.MiaoShaUserService;
 import com.geekq.miaosha.service.MiaoshaService;
 import com.geekq.miaosha.service.OrderService;
-import com.geekq.miasha.entity.MiaoshaOrder;
 import com.geekq.miasha.entity.MiaoshaUser;
 import com.geekq.miasha.enums.resultbean.ResultGeekQ;
 import com.geekq.miasha.vo.GoodsVo;
@@ -26,9 +25,7 @@ import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.image.BufferedImage;
-import java.io.IOException;
 import java.io.OutputStream;
-import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.List;
 
@@ -59,6 +56,9 @@ public class MiaoshaController implements InitializingBean {
     @Autowired
     MQSender mqSender;
 
+    @Autowired
+    RedisLimitRateWithLUA redisLimitRateWithLUA;
+
     private HashMap<Long, Boolean> localOverMap = new HashMap<Long, Boolean>();
 
     /**
@@ -77,12 +77,6 @@ public class MiaoshaController implements InitializingBean {
             result.withError(SESSION_ERROR.getCode(), SESSION_ERROR.getMessage());
             return result;
         }
-        //验证path
-        boolean check = miaoshaService.checkPath(user, goodsId, path);
-        if (!check) {
-            result.withError(REQUEST_ILLEGAL.getCode(), REQUEST_ILLEGAL.getMessage());
-            return result;
-        }
 //		//使用RateLimiter 限流
 //		RateLimiter rateLimiter = RateLimiter.create(10);
 //		//判断能否在1秒内得到令牌，如果不能则立即返回false，不会阻塞程序
@@ -95,31 +89,28 @@ public class MiaoshaController implements InitializingBean {
         /**
          * 分布式限流
          */
-        try {
-            RedisLimitRateWithLUA.accquire();
-        } catch (IOException e) {
-            result.withError(EXCEPTION.getCode(), REPEATE_MIAOSHA.getMessage());
-            return result;
-        } catch (URISyntaxException e) {
-            result.withError(EXCEPTION.getCode(), REPEATE_MIAOSHA.getMessage());
+        if (!redisLimitRateWithLUA.accquire()) {
+            result.withError(ACCESS_LIMIT_REACHED.getCode(), ACCESS_LIMIT_REACHED.getMessage());
             return result;
         }
 
-        //是否已经秒杀到
-        MiaoshaOrder order = orderService.getMiaoshaOrderByUserIdGoodsId(Long.valueOf(user.getNickname()), goodsId);
-        if (order != null) {
-            result.withError(EXCEPTION.getCode(), REPEATE_MIAOSHA.getMessage());
-            return result;
-        }
         //内存标记，减少redis访问
         boolean over = localOverMap.get(goodsId);
         if (over) {
             result.withError(EXCEPTION.getCode(), MIAO_SHA_OVER.getMessage());
             return result;
         }
-        //预见库存
-        Long stock = redisService.decr(GoodsKey.getMiaoshaGoodsStock, "" + goodsId);
-        if (stock < 0) {
+        //验证path + 是否已经秒杀到 + 预减库存，lua 脚本一次往返原子完成
+        int admission = miaoshaService.admission(user, goodsId, path);
+        if (admission == MiaoshaService.ADMISSION_PATH_ILLEGAL) {
+            result.withError(REQUEST_ILLEGAL.getCode(), REQUEST_ILLEGAL.getMessage());
+            return result;
+        }
+        if (admission == MiaoshaService.ADMISSION_REPEATE) {
+            result.withError(EXCEPTION.getCode(), REPEATE_MIAOSHA.getMessage());
+            return result;
+        }
+        if (admission == MiaoshaService.ADMISSION_OVER) {
             localOverMap.put(goodsId, true);
             result.withError(EXCEPTION.getCode(), MIAO_SHA_OVER.getMessage());
             return result;
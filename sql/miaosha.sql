@@ -44,6 +44,32 @@ INSERT INTO `goods` VALUES (1,'iphoneX','Apple iPhone X (A1865) 64GB 银色 移
 /*!40000 ALTER TABLE `goods` ENABLE KEYS */;
 UNLOCK TABLES;
 
+--
+-- Table structure for table `id_segment`
+--
+
+DROP TABLE IF EXISTS `id_segment`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `id_segment` (
+  `biz_tag` varchar(64) NOT NULL COMMENT '业务标识',
+  `max_id` bigint(20) NOT NULL DEFAULT '0' COMMENT '已分配出去的最大id',
+  `step` int(11) NOT NULL DEFAULT '1000' COMMENT '每次分配的号段长度',
+  `update_time` datetime DEFAULT NULL COMMENT '更新时间',
+  PRIMARY KEY (`biz_tag`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `id_segment`
+--
+
+LOCK TABLES `id_segment` WRITE;
+/*!40000 ALTER TABLE `id_segment` DISABLE KEYS */;
+INSERT INTO `id_segment` VALUES ('order_info',1564,1000,'2017-12-28 22:24:35');
+/*!40000 ALTER TABLE `id_segment` ENABLE KEYS */;
+UNLOCK TABLES;
+
 --
 -- Table structure for table `miaosha_goods`
 --
@@ -58,7 +84,9 @@ CREATE TABLE `miaosha_goods` (
   `stock_count` int(11) DEFAULT NULL COMMENT '库存数量',
   `start_date` datetime DEFAULT NULL COMMENT '秒杀开始时间',
   `end_date` datetime DEFAULT NULL COMMENT '秒杀结束时间',
-  PRIMARY KEY (`id`)
+  `stock_shards` int(11) NOT NULL DEFAULT '1' COMMENT 'redis库存分片数',
+  PRIMARY KEY (`id`),
+  KEY `idx_goods_id` (`goods_id`)
 ) ENGINE=InnoDB AUTO_INCREMENT=5 DEFAULT CHARSET=utf8mb4;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
@@ -68,7 +96,7 @@ CREATE TABLE `miaosha_goods` (
 
 LOCK TABLES `miaosha_goods` WRITE;
 /*!40000 ALTER TABLE `miaosha_goods` DISABLE KEYS */;
-INSERT INTO `miaosha_goods` VALUES (1,1,0.01,9,'2017-12-04 21:51:23','2017-12-31 21:51:27'),(2,2,0.01,9,'2017-12-04 21:40:14','2017-12-31 14:00:24'),(3,3,0.01,9,'2017-12-04 21:40:14','2017-12-31 14:00:24'),(4,4,0.01,9,'2017-12-04 21:40:14','2017-12-31 14:00:24');
+INSERT INTO `miaosha_goods` VALUES (1,1,0.01,9,'2017-12-04 21:51:23','2017-12-31 21:51:27',1),(2,2,0.01,9,'2017-12-04 21:40:14','2017-12-31 14:00:24',1),(3,3,0.01,9,'2017-12-04 21:40:14','2017-12-31 14:00:24',1),(4,4,0.01,9,'2017-12-04 21:40:14','2017-12-31 14:00:24',1);
 /*!40000 ALTER TABLE `miaosha_goods` ENABLE KEYS */;
 UNLOCK TABLES;
 
@@ -145,7 +173,7 @@ CREATE TABLE `order_info` (
   `goods_count` int(11) DEFAULT '0' COMMENT '商品数量',
   `goods_price` decimal(10,2) DEFAULT '0.00' COMMENT '商品单价',
   `order_channel` tinyint(4) DEFAULT '0' COMMENT '1pc，2android，3ios',
-  `status` tinyint(4) DEFAULT '0' COMMENT '订单状态，0新建未支付，1已支付，2已发货，3已收货，4已退款，5已完成',
+  `status` tinyint(4) DEFAULT '0' COMMENT '订单状态，0新建未支付，1已支付，2已发货，3已收货，4已退款，5已完成，6超时关闭',
   `create_date` datetime DEFAULT NULL COMMENT '订单的创建时间',
   `pay_date` datetime DEFAULT NULL COMMENT '支付时间',
   PRIMARY KEY (`id`)
@@ -38,6 +38,23 @@ INSERT INTO `goods` VALUES ('2', '华为Meta9', '华为 Mate 9 4GB+32GB版 月
 INSERT INTO `goods` VALUES ('3', 'iphone8', 'Apple iPhone 8 (A1865) 64GB 银色 移动联通电信4G手机', '/img/iphone8.png', 'Apple iPhone 8 (A1865) 64GB 银色 移动联通电信4G手机', '5589.00', '10000');
 INSERT INTO `goods` VALUES ('4', '小米6', '小米6 4GB+32GB版 月光银 移动联通电信4G手机 双卡双待', '/img/mi6.png', '小米6 4GB+32GB版 月光银 移动联通电信4G手机 双卡双待', '3212.00', '10000');
 
+-- ----------------------------
+-- Table structure for id_segment
+-- ----------------------------
+DROP TABLE IF EXISTS `id_segment`;
+CREATE TABLE `id_segment` (
+  `biz_tag` varchar(64) NOT NULL COMMENT '业务标识',
+  `max_id` bigint(20) NOT NULL DEFAULT '0' COMMENT '已分配出去的最大id',
+  `step` int(11) NOT NULL DEFAULT '1000' COMMENT '每次分配的号段长度',
+  `update_time` datetime DEFAULT NULL COMMENT '更新时间',
+  PRIMARY KEY (`biz_tag`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- ----------------------------
+-- Records of id_segment
+-- ----------------------------
+INSERT INTO `id_segment` VALUES ('order_info', '1564', '1000', '2017-12-28 22:24:35');
+
 -- ----------------------------
 -- Table structure for miaosha_goods
 -- ----------------------------
@@ -49,16 +66,18 @@ CREATE TABLE `miaosha_goods` (
   `stock_count` int(11) DEFAULT NULL COMMENT '库存数量',
   `start_date` datetime DEFAULT NULL COMMENT '秒杀开始时间',
   `end_date` datetime DEFAULT NULL COMMENT '秒杀结束时间',
-  PRIMARY KEY (`id`)
+  `stock_shards` int(11) NOT NULL DEFAULT '1' COMMENT 'redis库存分片数',
+  PRIMARY KEY (`id`),
+  KEY `idx_goods_id` (`goods_id`)
 ) ENGINE=InnoDB AUTO_INCREMENT=5 DEFAULT CHARSET=utf8mb4;
 
 -- ----------------------------
 -- Records of miaosha_goods
 -- ----------------------------
-INSERT INTO `miaosha_goods` VALUES ('1', '1', '0.01', '9', '2025-9-04 21:51:23', '2025-12-31 21:51:27');
-INSERT INTO `miaosha_goods` VALUES ('2', '2', '0.01', '9', '2025-9-04 21:40:14', '2025-12-31 14:00:24');
-INSERT INTO `miaosha_goods` VALUES ('3', '3', '0.01', '9', '2025-9-04 21:40:14', '2025-12-31 14:00:24');
-INSERT INTO `miaosha_goods` VALUES ('4', '4', '0.01', '9', '2025-9-04 21:40:14', '2025-12-31 14:00:24');
+INSERT INTO `miaosha_goods` VALUES ('1', '1', '0.01', '9', '2025-9-04 21:51:23', '2025-12-31 21:51:27', '1');
+INSERT INTO `miaosha_goods` VALUES ('2', '2', '0.01', '9', '2025-9-04 21:40:14', '2025-12-31 14:00:24', '1');
+INSERT INTO `miaosha_goods` VALUES ('3', '3', '0.01', '9', '2025-9-04 21:40:14', '2025-12-31 14:00:24', '1');
+INSERT INTO `miaosha_goods` VALUES ('4', '4', '0.01', '9', '2025-9-04 21:40:14', '2025-12-31 14:00:24', '1');
 
 -- ----------------------------
 -- Table structure for miaosha_message
@@ -170,7 +189,7 @@ CREATE TABLE `order_info` (
   `goods_count` int(11) DEFAULT '0' COMMENT '商品数量',
   `goods_price` decimal(10,2) DEFAULT '0.00' COMMENT '商品单价',
   `order_channel` tinyint(4) DEFAULT '0' COMMENT '1pc，2android，3ios',
-  `status` tinyint(4) DEFAULT '0' COMMENT '订单状态，0新建未支付，1已支付，2已发货，3已收货，4已退款，5已完成',
+  `status` tinyint(4) DEFAULT '0' COMMENT '订单状态，0新建未支付，1已支付，2已发货，3已收货，4已退款，5已完成，6超时关闭',
   `create_date` datetime DEFAULT NULL COMMENT '订单的创建时间',
   `pay_date` datetime DEFAULT NULL COMMENT '支付时间',
   PRIMARY KEY (`id`)